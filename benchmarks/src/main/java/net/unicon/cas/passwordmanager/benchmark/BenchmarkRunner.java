@@ -0,0 +1,47 @@
+package net.unicon.cas.passwordmanager.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * <p>Runs the benchmarks with the GC profiler, which reports allocation per
+ * operation and GC counts alongside the timings, and writes the results as
+ * JSON to target/jmh-result.json so runs can be compared. Takes the usual
+ * JMH options as well, e.g. a benchmark name pattern or -f 1; -rf and -rff
+ * replace the JSON defaults.</p>
+ */
+public class BenchmarkRunner {
+
+	public static final String RESULT_FILE = "target/jmh-result.json";
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException, IOException {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		if(commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListWithParams()
+				|| commandLine.shouldListProfilers() || commandLine.shouldListResultFormats()) {
+			// JMH's own main handles the informational options
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+
+		ChainedOptionsBuilder options = new OptionsBuilder()
+				.parent(commandLine)
+				.addProfiler(GCProfiler.class);
+		if(!commandLine.getResultFormat().hasValue()) {
+			options.resultFormat(ResultFormatType.JSON);
+		}
+		if(!commandLine.getResult().hasValue()) {
+			new File(RESULT_FILE).getAbsoluteFile().getParentFile().mkdirs();
+			options.result(RESULT_FILE);
+		}
+		new Runner(options.build()).run();
+	}
+}
@@ -0,0 +1,73 @@
+package net.unicon.cas.passwordmanager.flow;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Checks a response to a security question, with SecurityResponseMatcher
+ * and with the regular expressions and SimpleDateFormat it replaced.</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class SecurityQuestionBenchmark {
+
+	@Param({"text", "textMismatch", "date", "dateMismatch"})
+	private String response;
+
+	private SecurityQuestion question;
+	private String responseText;
+
+	@Setup
+	public void setUp() {
+		if(response.startsWith("text")) {
+			question = new SecurityQuestion("What was the name of your first pet?", "Mister Whiskers");
+			responseText = response.equals("text") ? "mister whiskers" : "mister whiskerz";
+		} else {
+			question = new SecurityQuestion("What is your date of birth? (mm/dd/yyyy)", "05/02/1980");
+			responseText = response.equals("date") ? "5/2/1980" : "5/3/1980";
+		}
+	}
+
+	@Benchmark
+	public boolean validateResponse() {
+		return question.validateResponse(responseText);
+	}
+
+	@Benchmark
+	public boolean regexAndSimpleDateFormat() {
+		return legacyValidateResponse(question.getResponseText(), responseText);
+	}
+
+	// SecurityQuestion.validateResponse before SecurityResponseMatcher
+	private static boolean legacyValidateResponse(String expected, String responseText) {
+		if(responseText.matches(SecurityQuestion.DATE_REGEX) && expected.matches(SecurityQuestion.DATE_REGEX)) {
+			SimpleDateFormat sdf = new SimpleDateFormat(SecurityQuestion.DATE_FORMAT);
+			try {
+				Date d1 = sdf.parse(responseText);
+				Date d2 = sdf.parse(expected);
+				return d1.equals(d2);
+			} catch(ParseException e) {
+				// fall back to a plain text match below
+			}
+		}
+		return expected.equalsIgnoreCase(responseText);
+	}
+}
@@ -0,0 +1,137 @@
+package net.unicon.cas.passwordmanager.flow.validator;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.unicon.cas.passwordmanager.flow.model.ChangePasswordBean;
+import net.unicon.cas.passwordmanager.policy.DigitRule;
+import net.unicon.cas.passwordmanager.policy.LengthRule;
+import net.unicon.cas.passwordmanager.policy.LowercaseRule;
+import net.unicon.cas.passwordmanager.policy.OldPasswordRule;
+import net.unicon.cas.passwordmanager.policy.PasswordPolicy;
+import net.unicon.cas.passwordmanager.policy.PasswordRule;
+import net.unicon.cas.passwordmanager.policy.RepetitionRule;
+import net.unicon.cas.passwordmanager.policy.SequenceRule;
+import net.unicon.cas.passwordmanager.policy.UppercaseRule;
+import net.unicon.cas.passwordmanager.policy.UsernameRule;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.binding.message.DefaultMessageContext;
+import org.springframework.binding.message.MessageContext;
+import org.springframework.binding.validation.ValidationContext;
+
+/**
+ * <p>Validates the change password form with the password policy as
+ * passwordManagerContext.xml configures it by default, with the old
+ * password regex compiled once, and with the regex matched by
+ * String.matches as it was before the policy.</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class ChangePasswordBeanValidatorBenchmark {
+
+	// the passwordRegex passwordManagerContext.xml used to set
+	private static final String LEGACY_REGEX = "^.*(?=.{8,})(?=.*\\d)(?=.*[a-z])(?=.*[A-Z]).*$";
+
+	@Param({"Tr0ub4dor&3x", "password"})
+	private String newPassword;
+
+	private ChangePasswordBean bean;
+	private ChangePasswordBeanValidator policyValidator;
+	private ChangePasswordBeanValidator regexValidator;
+
+	@Setup
+	public void setUp() {
+		bean = new ChangePasswordBean();
+		bean.setUsername("jsmith");
+		bean.setOldPassword("0ldPassw0rd");
+		bean.setNewPassword(newPassword);
+		bean.setConfirmNewPassword(newPassword);
+
+		LowercaseRule lowercase = new LowercaseRule();
+		lowercase.setMinLowercase(1);
+		UppercaseRule uppercase = new UppercaseRule();
+		uppercase.setMinUppercase(1);
+		DigitRule digits = new DigitRule();
+		digits.setMinDigits(1);
+		LengthRule length = new LengthRule();
+		length.setMinLength(8);
+		List<PasswordRule> rules = new ArrayList<PasswordRule>();
+		rules.add(length);
+		rules.add(lowercase);
+		rules.add(uppercase);
+		rules.add(digits);
+		rules.add(new RepetitionRule());
+		rules.add(new SequenceRule());
+		rules.add(new UsernameRule());
+		rules.add(new OldPasswordRule());
+		PasswordPolicy policy = new PasswordPolicy();
+		policy.setRules(rules);
+		policyValidator = new ChangePasswordBeanValidator();
+		policyValidator.setPasswordPolicy(policy);
+
+		regexValidator = new ChangePasswordBeanValidator();
+		regexValidator.setPasswordRegex(LEGACY_REGEX);
+	}
+
+	@Benchmark
+	public MessageContext passwordPolicy() {
+		BenchmarkValidationContext context = new BenchmarkValidationContext();
+		policyValidator.validateChangePasswordView(bean, context);
+		return context.getMessageContext();
+	}
+
+	@Benchmark
+	public MessageContext compiledRegex() {
+		BenchmarkValidationContext context = new BenchmarkValidationContext();
+		regexValidator.validateChangePasswordView(bean, context);
+		return context.getMessageContext();
+	}
+
+	@Benchmark
+	public boolean stringMatches() {
+		return bean.getNewPassword().matches(LEGACY_REGEX);
+	}
+
+	// what the flow passes the validator, less the request
+	private static class BenchmarkValidationContext implements ValidationContext {
+
+		private final MessageContext messageContext = new DefaultMessageContext();
+
+		@Override
+		public MessageContext getMessageContext() {
+			return messageContext;
+		}
+
+		@Override
+		public Principal getUserPrincipal() {
+			return null;
+		}
+
+		@Override
+		public String getUserEvent() {
+			return "submitChangePassword";
+		}
+
+		@Override
+		public Object getUserValue(String field) {
+			return null;
+		}
+	}
+}
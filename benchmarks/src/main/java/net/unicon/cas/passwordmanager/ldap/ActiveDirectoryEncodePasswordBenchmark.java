@@ -0,0 +1,43 @@
+package net.unicon.cas.passwordmanager.ldap;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Encodes a password as the quoted UTF-16LE unicodePwd value Active
+ * Directory expects.</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class ActiveDirectoryEncodePasswordBenchmark {
+
+	@Param({"Tr0ub4dor&3x", "correct horse battery staple, with some punctuation"})
+	private String password;
+
+	private ActiveDirectoryLdapServer server;
+
+	@Setup
+	public void setUp() {
+		server = new ActiveDirectoryLdapServer();
+	}
+
+	@Benchmark
+	public byte[] encodePassword() {
+		return server.encodePassword(password);
+	}
+}
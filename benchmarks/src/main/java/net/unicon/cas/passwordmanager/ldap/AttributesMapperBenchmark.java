@@ -0,0 +1,66 @@
+package net.unicon.cas.passwordmanager.ldap;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttributes;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Maps a user's entry to their custom and default security challenges,
+ * as every forgot password lookup does, using the attribute names from
+ * cas.properties.example. A mapper is created for every lookup, so that's
+ * measured too.</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class AttributesMapperBenchmark {
+
+	private static final String USERNAME = "jsmith";
+
+	private AbstractLdapServer server;
+	private Attributes attrs;
+
+	@Setup
+	public void setUp() {
+		server = new OpenLdapLdapServer();
+		server.setSecurityQuestionAttrs(Arrays.asList("securityQuestion"));
+		server.setSecurityResponseAttrs(Arrays.asList("securityAnswer"));
+		server.setDefaultQuestions(Arrays.asList("What is your student/employee ID number?",
+				"What is your date of birth? (mm/dd/yyyy)"));
+		server.setDefaultResponseAttrs(Arrays.asList("personId", "personDob"));
+
+		// as returned by the snapshot search
+		attrs = new BasicAttributes(true);
+		attrs.put("securityQuestion", "What was the name of your first pet?");
+		attrs.put("securityAnswer", "Mister Whiskers");
+		attrs.put("personId", "1234567");
+		attrs.put("personDob", "05/02/1980");
+	}
+
+	@Benchmark
+	public Object securityChallenge() throws NamingException {
+		return server.new SecurityChallengeAttributesMapper(USERNAME).mapFromAttributes(attrs);
+	}
+
+	@Benchmark
+	public Object defaultSecurityChallenge() throws NamingException {
+		return server.new DefaultSecurityChallengeAttributesMapper(USERNAME).mapFromAttributes(attrs);
+	}
+}
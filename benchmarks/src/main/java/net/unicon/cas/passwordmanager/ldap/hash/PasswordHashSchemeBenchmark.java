@@ -0,0 +1,69 @@
+package net.unicon.cas.passwordmanager.ldap.hash;
+
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Base64;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Hashes a password with each scheme OpenLdapLdapServer can store
+ * passwords with, at the registry's default cost, on the calling thread.
+ * messageDigestPerCall is {SHA} as OpenLdapLdapServer hashed it before the
+ * schemes, with a new MessageDigest for every password.</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class PasswordHashSchemeBenchmark {
+
+	private static final String PASSWORD = "Tr0ub4dor&3x";
+
+	@State(Scope.Benchmark)
+	public static class Schemes {
+
+		@Param({"SHA", "SSHA", "SSHA256", "SSHA512", "PBKDF2-SHA256", "PBKDF2-SHA512", "CRYPT-SHA256",
+				"CRYPT-SHA512"})
+		private String scheme;
+
+		private PasswordHashSchemeRegistry registry;
+		private PasswordHashScheme hashScheme;
+
+		@Setup
+		public void setUp() throws Exception {
+			registry = new PasswordHashSchemeRegistry();
+			registry.afterPropertiesSet();
+			hashScheme = registry.getScheme(scheme);
+		}
+
+		@TearDown
+		public void tearDown() throws Exception {
+			registry.destroy();
+		}
+	}
+
+	@Benchmark
+	public String hash(Schemes schemes) {
+		return schemes.hashScheme.hash(PASSWORD);
+	}
+
+	@Benchmark
+	public String messageDigestPerCall() throws Exception {
+		MessageDigest md = MessageDigest.getInstance("SHA");
+		md.update(PASSWORD.getBytes("UTF-8"));
+		return "{SHA}" + Base64.encodeBase64String(md.digest());
+	}
+}
@@ -0,0 +1,111 @@
+package net.unicon.cas.passwordmanager.service;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import net.unicon.cas.passwordmanager.UserLockedOutException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>MemoryPasswordManagerLockoutService shared by threads that register
+ * incorrect attempts, check whether attempts are allowed and clear them, as
+ * concurrent forgot password requests do. With one user every thread works
+ * on the same status; with more, the threads mostly miss each other. Nobody
+ * is ever locked out, and the store is small enough to evict.</p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class LockoutServiceBenchmark {
+
+	@State(Scope.Group)
+	public static class Service {
+
+		@Param({"1", "64", "100000"})
+		private int users;
+
+		private MemoryPasswordManagerLockoutService lockoutService;
+		private String[] usernames;
+
+		@Setup
+		public void setUp() throws Exception {
+			lockoutService = new MemoryPasswordManagerLockoutService();
+			lockoutService.setMaxEntries(10000);
+			lockoutService.afterPropertiesSet();
+			usernames = new String[users];
+			for(int i=0;i<users;i++) {
+				usernames[i] = "user" + i;
+			}
+		}
+
+		@TearDown
+		public void tearDown() throws Exception {
+			lockoutService.destroy();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Users {
+
+		private int next;
+
+		@Setup
+		public void setUp() {
+			next = ThreadLocalRandom.current().nextInt(1 << 20);
+		}
+
+		String next(Service service) {
+			if(next >= service.usernames.length) {
+				next %= service.usernames.length;
+			}
+			return service.usernames[next++];
+		}
+	}
+
+	@Benchmark
+	@Group("lockout")
+	@GroupThreads(3)
+	public boolean registerIncorrectAttempt(Service service, Users users) {
+		try {
+			service.lockoutService.registerIncorrectAttempt(users.next(service));
+			return true;
+		} catch(UserLockedOutException ex) {
+			return false;
+		}
+	}
+
+	@Benchmark
+	@Group("lockout")
+	@GroupThreads(3)
+	public boolean allowAttempt(Service service, Users users) {
+		try {
+			service.lockoutService.allowAttempt(users.next(service));
+			return true;
+		} catch(UserLockedOutException ex) {
+			return false;
+		}
+	}
+
+	@Benchmark
+	@Group("lockout")
+	@GroupThreads(1)
+	public void clearIncorrectAttempts(Service service, Users users) {
+		service.lockoutService.clearIncorrectAttempts(users.next(service));
+	}
+}
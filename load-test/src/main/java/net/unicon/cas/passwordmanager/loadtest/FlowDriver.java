@@ -0,0 +1,193 @@
+package net.unicon.cas.passwordmanager.loadtest;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import net.unicon.cas.passwordmanager.monitor.FlowTimingListener;
+import net.unicon.cas.passwordmanager.monitor.FlowTimingStats;
+import net.unicon.cas.passwordmanager.monitor.TimingExpressionParser;
+
+import org.jasig.cas.authentication.principal.Credentials;
+import org.springframework.binding.convert.service.DefaultConversionService;
+import org.springframework.core.io.Resource;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.context.WebApplicationContext;
+import org.springframework.web.servlet.View;
+import org.springframework.web.servlet.ViewResolver;
+import org.springframework.webflow.context.servlet.ServletExternalContext;
+import org.springframework.webflow.core.collection.LocalAttributeMap;
+import org.springframework.webflow.definition.registry.FlowDefinitionRegistryImpl;
+import org.springframework.webflow.engine.Flow;
+import org.springframework.webflow.engine.builder.FlowAssembler;
+import org.springframework.webflow.engine.builder.model.FlowModelFlowBuilder;
+import org.springframework.webflow.engine.builder.support.FlowBuilderContextImpl;
+import org.springframework.webflow.engine.builder.support.FlowBuilderServices;
+import org.springframework.webflow.engine.impl.FlowExecutionImplFactory;
+import org.springframework.webflow.engine.model.builder.DefaultFlowModelHolder;
+import org.springframework.webflow.engine.model.builder.xml.XmlFlowModelBuilder;
+import org.springframework.webflow.execution.FlowExecution;
+import org.springframework.webflow.execution.factory.StaticFlowExecutionListenerLoader;
+import org.springframework.webflow.expression.WebFlowOgnlExpressionParser;
+import org.springframework.webflow.mvc.builder.MvcViewFactoryCreator;
+
+/**
+ * <p>Runs the passwordManager flow in process, built from the webapp's
+ * passwordManager-webflow.xml the way cas-servlet.xml builds it: OGNL
+ * expressions (timed by TimingExpressionParser), Spring MVC views and
+ * binding, the model validators, and a FlowTimingListener. Requests are
+ * mock servlet requests, and views render to nothing.</p>
+ *
+ * <p>Flow executions are kept in memory by the caller rather than in a
+ * flow execution repository, so snapshotting them into the HTTP session
+ * isn't part of what's measured.</p>
+ */
+public class FlowDriver {
+
+	public static final String FLOW_ID = "passwordManager";
+
+	private final ServletContext servletContext;
+	private final Flow flow;
+	private final FlowExecutionImplFactory executionFactory;
+
+	/**
+	 * @param applicationContext the password manager's beans, in a web
+	 * application context as the views need
+	 */
+	public FlowDriver(WebApplicationContext applicationContext, Resource flowResource, FlowTimingStats timingStats) {
+		servletContext = applicationContext.getServletContext();
+		TimingExpressionParser expressionParser = new TimingExpressionParser(new WebFlowOgnlExpressionParser());
+		expressionParser.setStats(timingStats);
+
+		MvcViewFactoryCreator viewFactoryCreator = new MvcViewFactoryCreator();
+		viewFactoryCreator.setApplicationContext(applicationContext);
+		viewFactoryCreator.setViewResolvers(Collections.singletonList(new NullViewResolver()));
+
+		FlowBuilderServices services = new FlowBuilderServices();
+		services.setApplicationContext(applicationContext);
+		services.setExpressionParser(expressionParser);
+		services.setViewFactoryCreator(viewFactoryCreator);
+		services.setConversionService(new DefaultConversionService());
+
+		FlowModelFlowBuilder builder = new FlowModelFlowBuilder(
+				new DefaultFlowModelHolder(new XmlFlowModelBuilder(flowResource)));
+		flow = (Flow) new FlowAssembler(builder, new FlowBuilderContextImpl(FLOW_ID, new LocalAttributeMap(),
+				new FlowDefinitionRegistryImpl(), services)).assembleFlow();
+
+		FlowTimingListener timingListener = new FlowTimingListener();
+		timingListener.setStats(timingStats);
+		// same as the flow-execution-attributes in cas-servlet.xml
+		LocalAttributeMap executionAttributes = new LocalAttributeMap();
+		executionAttributes.put("alwaysRedirectOnPause", Boolean.FALSE);
+		executionAttributes.put("redirectInSameState", Boolean.FALSE);
+		executionFactory = new FlowExecutionImplFactory();
+		executionFactory.setExecutionAttributes(executionAttributes);
+		executionFactory.setExecutionListenerLoader(new StaticFlowExecutionListenerLoader(timingListener));
+	}
+
+	/**
+	 * <p>Starts the flow, as the login flow does for a pmTask.</p>
+	 * @param credentials the logged in user's credentials, or null
+	 * @param remoteAddress the client's address
+	 */
+	public Conversation start(String pmTask, Credentials credentials, String remoteAddress) {
+		LocalAttributeMap input = new LocalAttributeMap();
+		input.put("pmTask", pmTask);
+		if(credentials != null) {
+			input.put("credentials", credentials);
+		}
+		Conversation conversation = new Conversation(executionFactory.createFlowExecution(flow), remoteAddress);
+		long start = System.nanoTime();
+		conversation.execution.start(input, conversation.newExternalContext(null, null));
+		conversation.elapsed += System.nanoTime() - start;
+		conversation.requests++;
+		return conversation;
+	}
+
+	/**
+	 * <p>One user's run through the flow.</p>
+	 */
+	public class Conversation {
+
+		private final FlowExecution execution;
+		private final String remoteAddress;
+		private long elapsed;
+		private int requests;
+
+		Conversation(FlowExecution execution, String remoteAddress) {
+			this.execution = execution;
+			this.remoteAddress = remoteAddress;
+		}
+
+		/**
+		 * <p>Submits a form in the current view.</p>
+		 * @param parameters names and values, alternating
+		 */
+		public void resume(String eventId, String... parameters) {
+			long start = System.nanoTime();
+			execution.resume(newExternalContext(eventId, parameters));
+			elapsed += System.nanoTime() - start;
+			requests++;
+		}
+
+		/**
+		 * <p>Gets the id of the state the flow is paused in, or "end:" and
+		 * the end state's id once it has ended.</p>
+		 */
+		public String getState() {
+			if(execution.hasEnded()) {
+				return "end:" + execution.getOutcome().getId();
+			}
+			return execution.getActiveSession().getState().getId();
+		}
+
+		/**
+		 * <p>Gets the time spent handling the requests so far.</p>
+		 */
+		public long getElapsedNanos() {
+			return elapsed;
+		}
+
+		public int getRequests() {
+			return requests;
+		}
+
+		private ServletExternalContext newExternalContext(String eventId, String[] parameters) {
+			MockHttpServletRequest request = new MockHttpServletRequest(servletContext, "POST", "/cas/login");
+			request.setRemoteAddr(remoteAddress);
+			request.addPreferredLocale(Locale.ENGLISH);
+			if(eventId != null) {
+				request.addParameter("_eventId", eventId);
+			}
+			if(parameters != null) {
+				for(int i=0;i+1<parameters.length;i+=2) {
+					request.addParameter(parameters[i], parameters[i + 1]);
+				}
+			}
+			return new ServletExternalContext(servletContext, request, new MockHttpServletResponse());
+		}
+	}
+
+	// the JSPs aren't rendered; only the flow's own work is measured
+	private static class NullViewResolver implements ViewResolver, View {
+
+		@Override
+		public View resolveViewName(String viewName, Locale locale) {
+			return this;
+		}
+
+		@Override
+		public String getContentType() {
+			return "text/html";
+		}
+
+		@Override
+		public void render(Map<String, ?> model, HttpServletRequest request, HttpServletResponse response) {
+		}
+	}
+}
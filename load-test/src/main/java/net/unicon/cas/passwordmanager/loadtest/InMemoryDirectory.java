@@ -0,0 +1,130 @@
+package net.unicon.cas.passwordmanager.loadtest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedExtendedRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedModifyRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSimpleBindRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+
+/**
+ * <p>An LDAP server held in memory, on a free port on localhost, seeded with
+ * a UserPopulation laid out like an OpenLDAP directory the password manager
+ * would use. Schema checking is off so the question and answer attributes
+ * needn't be defined. Counts the operations it serves by kind.</p>
+ */
+public class InMemoryDirectory {
+
+	public static final String BASE_DN = "dc=example,dc=edu";
+	public static final String PEOPLE_DN = "ou=people," + BASE_DN;
+	public static final String MANAGER_DN = "cn=manager," + BASE_DN;
+	public static final String MANAGER_PASSWORD = "manager";
+
+	/**
+	 * <p>Kinds of operation counted.</p>
+	 */
+	public enum Operation {
+		BIND, SEARCH, MODIFY, EXTENDED
+	}
+
+	private final InMemoryDirectoryServer server;
+	private final AtomicLongArray counts = new AtomicLongArray(Operation.values().length);
+
+	public InMemoryDirectory() throws LDAPException {
+		InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+		config.setSchema(null);
+		config.addAdditionalBindCredentials(MANAGER_DN, MANAGER_PASSWORD);
+		config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("default", 0));
+		config.addInMemoryOperationInterceptor(new InMemoryOperationInterceptor() {
+			@Override
+			public void processSimpleBindRequest(InMemoryInterceptedSimpleBindRequest request) {
+				counts.incrementAndGet(Operation.BIND.ordinal());
+			}
+
+			@Override
+			public void processSearchRequest(InMemoryInterceptedSearchRequest request) {
+				counts.incrementAndGet(Operation.SEARCH.ordinal());
+			}
+
+			@Override
+			public void processModifyRequest(InMemoryInterceptedModifyRequest request) {
+				counts.incrementAndGet(Operation.MODIFY.ordinal());
+			}
+
+			@Override
+			public void processExtendedRequest(InMemoryInterceptedExtendedRequest request) {
+				counts.incrementAndGet(Operation.EXTENDED.ordinal());
+			}
+		});
+		server = new InMemoryDirectoryServer(config);
+	}
+
+	/**
+	 * <p>Adds the base entries and one entry per user.</p>
+	 */
+	public void seed(UserPopulation users, String usernameAttr, String passwordAttr, String questionAttr,
+			String answerAttr, String idAttr, String dobAttr) throws LDAPException {
+		Entry base = new Entry(BASE_DN);
+		base.addAttribute("objectClass", "top", "domain");
+		base.addAttribute("dc", "example");
+		server.add(base);
+		Entry people = new Entry(PEOPLE_DN);
+		people.addAttribute("objectClass", "top", "organizationalUnit");
+		people.addAttribute("ou", "people");
+		server.add(people);
+		List<Entry> batch = new ArrayList<Entry>(1000);
+		for(int i=0;i<users.size();i++) {
+			String username = users.getUsername(i);
+			Entry entry = new Entry(usernameAttr + "=" + username + "," + PEOPLE_DN);
+			entry.addAttribute("objectClass", "top", "person", "organizationalPerson", "inetOrgPerson");
+			entry.addAttribute(usernameAttr, username);
+			entry.addAttribute("cn", "Load Test User " + i);
+			entry.addAttribute("sn", "User " + i);
+			entry.addAttribute(passwordAttr, users.getPassword(i));
+			entry.addAttribute(idAttr, users.getPersonId(i));
+			entry.addAttribute(dobAttr, users.getPersonDob(i));
+			if(users.hasCustomQuestion(i)) {
+				entry.addAttribute(questionAttr, UserPopulation.CUSTOM_QUESTION);
+				entry.addAttribute(answerAttr, users.getCustomAnswer(i));
+			}
+			batch.add(entry);
+			if(batch.size() == 1000) {
+				server.addEntries(batch);
+				batch.clear();
+			}
+		}
+		server.addEntries(batch);
+	}
+
+	public void start() throws LDAPException {
+		server.startListening();
+	}
+
+	public void stop() {
+		server.shutDown(true);
+	}
+
+	public String getUrl() {
+		return "ldap://localhost:" + server.getListenPort();
+	}
+
+	/**
+	 * <p>Gets the number of operations served so far, indexed by
+	 * Operation ordinal.</p>
+	 */
+	public long[] getCounts() {
+		long[] snapshot = new long[counts.length()];
+		for(int i=0;i<snapshot.length;i++) {
+			snapshot[i] = counts.get(i);
+		}
+		return snapshot;
+	}
+}
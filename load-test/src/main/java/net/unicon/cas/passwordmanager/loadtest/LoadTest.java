@@ -0,0 +1,314 @@
+package net.unicon.cas.passwordmanager.loadtest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.unicon.cas.passwordmanager.monitor.FlowTiming;
+import net.unicon.cas.passwordmanager.monitor.FlowTimingStats;
+import net.unicon.cas.passwordmanager.monitor.LatencyHistogram;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.config.PropertyPlaceholderConfigurer;
+import org.springframework.beans.factory.xml.XmlBeanDefinitionReader;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.mock.web.MockServletContext;
+import org.springframework.web.context.support.GenericWebApplicationContext;
+
+/**
+ * <p>Load test of the passwordManager flow, run on one machine with no
+ * network: an in-memory directory is seeded with users, the webapp's
+ * passwordManagerContext.xml and passwordManager-webflow.xml are loaded
+ * against it, and worker threads run each scenario back to back, each
+ * thread with its own share of the users.</p>
+ *
+ * <pre>
+ * mvn compile exec:java -Dexec.args="-users 20000 -threads 32 -duration 60"
+ * </pre>
+ *
+ * <p>For each scenario, after a warmup, prints the flows completed and
+ * failed, throughput, percentiles of the time spent handling a whole
+ * flow's requests, and the LDAP operations per flow the directory served.
+ * With -csv, also appends the results to a file, for comparing runs; with
+ * -timings, also prints the FlowTimingStats of each state, transition and
+ * expression.</p>
+ */
+public class LoadTest {
+
+	private static final int MAX_LOGGED_ERRORS = 5;
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+	private int userCount = 10000;
+	private double customFraction = 0.5;
+	private int threads = 16;
+	private int warmupSeconds = 10;
+	private int durationSeconds = 30;
+	private List<Scenario> scenarios = new ArrayList<Scenario>();
+	private File webapp = new File("../src/main/webapp");
+	private File csv;
+	private boolean printTimings;
+
+	public static void main(String[] args) throws Exception {
+		LoadTest test = new LoadTest();
+		for(int i=0;i<args.length;i++) {
+			String value = i + 1 < args.length ? args[i + 1] : null;
+			if(args[i].equals("-timings")) {
+				test.printTimings = true;
+				continue;
+			}
+			if(value == null) {
+				usage();
+				return;
+			}
+			i++;
+			if(args[i - 1].equals("-users")) {
+				test.userCount = Integer.parseInt(value);
+			} else if(args[i - 1].equals("-custom-fraction")) {
+				test.customFraction = Double.parseDouble(value);
+			} else if(args[i - 1].equals("-threads")) {
+				test.threads = Integer.parseInt(value);
+			} else if(args[i - 1].equals("-warmup")) {
+				test.warmupSeconds = Integer.parseInt(value);
+			} else if(args[i - 1].equals("-duration")) {
+				test.durationSeconds = Integer.parseInt(value);
+			} else if(args[i - 1].equals("-scenarios")) {
+				for(String pmTask : value.split(",")) {
+					test.scenarios.add(Scenario.forPmTask(pmTask.trim()));
+				}
+			} else if(args[i - 1].equals("-webapp")) {
+				test.webapp = new File(value);
+			} else if(args[i - 1].equals("-csv")) {
+				test.csv = new File(value);
+			} else {
+				usage();
+				return;
+			}
+		}
+		if(test.scenarios.isEmpty()) {
+			for(Scenario scenario : Scenario.values()) {
+				test.scenarios.add(scenario);
+			}
+		}
+		if(test.userCount < test.threads) {
+			System.err.println("Need at least one user per thread");
+			return;
+		}
+		test.run();
+	}
+
+	private static void usage() {
+		System.err.println("Usage: LoadTest [-users N] [-custom-fraction F] [-threads N] [-warmup S] [-duration S] "
+				+ "[-scenarios changePassword,forgotPassword,setupSecurityQuestion] [-webapp DIR] [-csv FILE] "
+				+ "[-timings]");
+	}
+
+	public void run() throws Exception {
+		Properties properties = new Properties();
+		InputStream in = LoadTest.class.getResourceAsStream("loadtest.properties");
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		properties.putAll(System.getProperties());
+
+		UserPopulation users = new UserPopulation(userCount, customFraction, 1);
+		InMemoryDirectory directory = new InMemoryDirectory();
+		directory.seed(users, properties.getProperty("ldap.pm.username.attr"),
+				properties.getProperty("ldap.pm.password.attr"), properties.getProperty("ldap.pm.question.attr"),
+				properties.getProperty("ldap.pm.answer.attr"), properties.getProperty("ldap.pm.answer.attr.default.1"),
+				properties.getProperty("ldap.pm.answer.attr.default.2"));
+		directory.start();
+		properties.setProperty("ldap.authentication.server.urls", directory.getUrl());
+		logger.info("Seeded " + userCount + " users into " + directory.getUrl());
+
+		GenericWebApplicationContext context = new GenericWebApplicationContext(new MockServletContext());
+		FlowTimingStats timingStats = new FlowTimingStats();
+		try {
+			PropertyPlaceholderConfigurer placeholders = new PropertyPlaceholderConfigurer();
+			placeholders.setProperties(properties);
+			context.addBeanFactoryPostProcessor(placeholders);
+			new XmlBeanDefinitionReader(context).loadBeanDefinitions(new FileSystemResource(new File(webapp,
+					"WEB-INF/spring-configuration/passwordManagerContext.xml")),
+					new ClassPathResource("loadTestContext.xml", LoadTest.class));
+			context.refresh();
+			timingStats.afterPropertiesSet();
+
+			FlowDriver driver = new FlowDriver(context,
+					new FileSystemResource(new File(webapp, "WEB-INF/passwordManager-webflow.xml")), timingStats);
+
+			System.out.println(String.format("%-22s %7s %8s %7s %9s %9s %8s %8s %8s %8s %6s %6s %6s %6s",
+					"scenario", "threads", "flows", "errors", "flows/s", "req/s", "p50 ms", "p99 ms", "p999 ms",
+					"max ms", "binds", "search", "modify", "extop"));
+			for(Scenario scenario : scenarios) {
+				Result result = run(scenario, driver, users, directory, timingStats);
+				result.print();
+				if(csv != null) {
+					result.appendTo(csv);
+				}
+				if(printTimings) {
+					printTimings(timingStats);
+				}
+			}
+		} finally {
+			timingStats.destroy();
+			context.close();
+			directory.stop();
+		}
+	}
+
+	private Result run(final Scenario scenario, final FlowDriver driver, final UserPopulation users,
+			InMemoryDirectory directory, FlowTimingStats timingStats) throws InterruptedException {
+		final LatencyHistogram latency = new LatencyHistogram();
+		final AtomicLong flows = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+		final AtomicLong requests = new AtomicLong();
+		final AtomicInteger loggedErrors = new AtomicInteger();
+		final AtomicBoolean measuring = new AtomicBoolean();
+		final AtomicBoolean running = new AtomicBoolean(true);
+
+		Thread[] workers = new Thread[threads];
+		for(int t=0;t<threads;t++) {
+			final int first = t;
+			workers[t] = new Thread(new Runnable() {
+				public void run() {
+					Random random = new Random(first);
+					int user = first;
+					while(running.get()) {
+						try {
+							FlowDriver.Conversation c = scenario.run(driver, users, user, random, address(user));
+							if(measuring.get()) {
+								latency.record(c.getElapsedNanos());
+								flows.incrementAndGet();
+								requests.addAndGet(c.getRequests());
+							}
+						} catch(RuntimeException ex) {
+							if(measuring.get()) {
+								errors.incrementAndGet();
+							}
+							if(loggedErrors.incrementAndGet() <= MAX_LOGGED_ERRORS) {
+								logger.warn(scenario.getPmTask() + " failed for " + users.getUsername(user), ex);
+							}
+						}
+						user += threads;
+						if(user >= users.size()) {
+							user = first;
+						}
+					}
+				}
+			}, "loadtest-" + scenario.getPmTask() + "-" + t);
+			workers[t].start();
+		}
+
+		Thread.sleep(warmupSeconds * 1000L);
+		long[] countsBefore = directory.getCounts();
+		timingStats.reset();
+		measuring.set(true);
+		long start = System.nanoTime();
+		Thread.sleep(durationSeconds * 1000L);
+		measuring.set(false);
+		long elapsed = System.nanoTime() - start;
+		long[] countsAfter = directory.getCounts();
+		running.set(false);
+		for(Thread worker : workers) {
+			worker.join();
+		}
+
+		long[] operations = new long[countsAfter.length];
+		for(int i=0;i<operations.length;i++) {
+			operations[i] = countsAfter[i] - countsBefore[i];
+		}
+		return new Result(scenario, flows.get(), errors.get(), requests.get(), elapsed, latency, operations);
+	}
+
+	// one address per user, so the throttle sees a crowd of clients
+	private static String address(int user) {
+		return "10." + (user >>> 16 & 255) + "." + (user >>> 8 & 255) + "." + (user & 255);
+	}
+
+	private static void printTimings(FlowTimingStats timingStats) {
+		for(FlowTiming t : timingStats.getTimings()) {
+			String name = t.getName().replaceAll("\\s+", " ");
+			if(name.length() > 72) {
+				name = name.substring(0, 69) + "...";
+			}
+			System.out.println(String.format("    %-10s %-72s %8d %8.2f %8.2f %8.2f", t.getKind(), name, t.getCount(),
+					t.getP50Millis(), t.getP99Millis(), t.getMaxMillis()));
+		}
+	}
+
+	private class Result {
+
+		private final Scenario scenario;
+		private final long flows;
+		private final long errors;
+		private final double flowsPerSecond;
+		private final double requestsPerSecond;
+		private final LatencyHistogram latency;
+		private final double[] operationsPerFlow;
+
+		Result(Scenario scenario, long flows, long errors, long requests, long elapsedNanos,
+				LatencyHistogram latency, long[] operations) {
+			this.scenario = scenario;
+			this.flows = flows;
+			this.errors = errors;
+			this.flowsPerSecond = flows * 1e9 / elapsedNanos;
+			this.requestsPerSecond = requests * 1e9 / elapsedNanos;
+			this.latency = latency;
+			operationsPerFlow = new double[operations.length];
+			for(int i=0;i<operations.length;i++) {
+				operationsPerFlow[i] = flows == 0 ? 0 : (double) operations[i] / flows;
+			}
+		}
+
+		void print() {
+			System.out.println(String.format(
+					"%-22s %7d %8d %7d %9.1f %9.1f %8.2f %8.2f %8.2f %8.2f %6.2f %6.2f %6.2f %6.2f",
+					scenario.getPmTask(), threads, flows, errors, flowsPerSecond, requestsPerSecond,
+					millis(50), millis(99), millis(99.9), latency.getMaxMicros() / 1000.0,
+					operationsPerFlow[InMemoryDirectory.Operation.BIND.ordinal()],
+					operationsPerFlow[InMemoryDirectory.Operation.SEARCH.ordinal()],
+					operationsPerFlow[InMemoryDirectory.Operation.MODIFY.ordinal()],
+					operationsPerFlow[InMemoryDirectory.Operation.EXTENDED.ordinal()]));
+		}
+
+		void appendTo(File file) throws IOException {
+			boolean header = !file.exists() || file.length() == 0;
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+			try {
+				if(header) {
+					out.println("time,scenario,users,threads,durationSeconds,flows,errors,flowsPerSecond,"
+							+ "requestsPerSecond,p50Millis,p99Millis,p999Millis,maxMillis,bindsPerFlow,"
+							+ "searchesPerFlow,modifiesPerFlow,extendedPerFlow");
+				}
+				out.println(String.format(Locale.ROOT, "%d,%s,%d,%d,%d,%d,%d,%.2f,%.2f,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f",
+						System.currentTimeMillis(), scenario.getPmTask(), userCount, threads, durationSeconds,
+						flows, errors, flowsPerSecond, requestsPerSecond, millis(50), millis(99), millis(99.9),
+						latency.getMaxMicros() / 1000.0,
+						operationsPerFlow[InMemoryDirectory.Operation.BIND.ordinal()],
+						operationsPerFlow[InMemoryDirectory.Operation.SEARCH.ordinal()],
+						operationsPerFlow[InMemoryDirectory.Operation.MODIFY.ordinal()],
+						operationsPerFlow[InMemoryDirectory.Operation.EXTENDED.ordinal()]));
+			} finally {
+				out.close();
+			}
+		}
+
+		private double millis(double percentile) {
+			return latency.getPercentileMicros(percentile) / 1000.0;
+		}
+	}
+}
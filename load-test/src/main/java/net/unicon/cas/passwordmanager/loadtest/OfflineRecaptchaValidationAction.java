@@ -0,0 +1,33 @@
+package net.unicon.cas.passwordmanager.loadtest;
+
+import net.unicon.cas.passwordmanager.flow.RecaptchaValidationAction;
+
+import org.springframework.webflow.execution.RequestContext;
+
+/**
+ * <p>Accepts every ReCAPTCHA without calling Google, after an optional
+ * delay standing in for the round trip, so the load test runs offline.</p>
+ */
+public class OfflineRecaptchaValidationAction extends RecaptchaValidationAction {
+
+	private long delayMillis = 0;
+
+	@Override
+	public boolean validateCaptcha(RequestContext context) {
+		if(delayMillis > 0) {
+			try {
+				Thread.sleep(delayMillis);
+			} catch(InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * <p>Sets how long each check takes. Default is 0.</p>
+	 */
+	public void setDelayMillis(long delayMillis) {
+		this.delayMillis = delayMillis;
+	}
+}
@@ -0,0 +1,113 @@
+package net.unicon.cas.passwordmanager.loadtest;
+
+import java.util.Random;
+
+import org.jasig.cas.authentication.principal.UsernamePasswordCredentials;
+
+/**
+ * <p>The password manager tasks the load test drives, each a full run of
+ * the passwordManager flow for one user, submitting each form as the JSPs
+ * would.</p>
+ */
+public enum Scenario {
+
+	/** an unauthenticated change of a known password */
+	CHANGE_PASSWORD("changePassword") {
+		@Override
+		FlowDriver.Conversation run(FlowDriver driver, UserPopulation users, int user, Random random,
+				String remoteAddress) {
+			String newPassword = UserPopulation.newPassword(random);
+			FlowDriver.Conversation c = driver.start(getPmTask(), null, remoteAddress);
+			expect(c, "changePasswordView");
+			c.resume("submitChangePassword", "username", users.getUsername(user),
+					"oldPassword", users.getPassword(user), "newPassword", newPassword,
+					"confirmNewPassword", newPassword);
+			expect(c, "passwordChanged");
+			users.setPassword(user, newPassword);
+			c.resume("continue");
+			expect(c, "end:pmExit");
+			return c;
+		}
+	},
+
+	/** a reset by answering the custom or default security questions */
+	FORGOT_PASSWORD("forgotPassword") {
+		@Override
+		FlowDriver.Conversation run(FlowDriver driver, UserPopulation users, int user, Random random,
+				String remoteAddress) {
+			String newPassword = UserPopulation.newPassword(random);
+			FlowDriver.Conversation c = driver.start(getPmTask(), null, remoteAddress);
+			expect(c, "forgotPassword");
+			c.resume("submitId", "netId", users.getUsername(user));
+			expect(c, "answerSecurityQuestion");
+			if(users.hasCustomQuestion(user)) {
+				c.resume("submitAnswer", "response0", users.getCustomAnswer(user));
+			} else {
+				c.resume("submitAnswer", "response0", users.getPersonId(user),
+						"response1", users.getPersonDob(user));
+			}
+			expect(c, "setPassword");
+			c.resume("submitChangePassword", "newPassword", newPassword, "confirmNewPassword", newPassword);
+			expect(c, "passwordSet");
+			users.setPassword(user, newPassword);
+			c.resume("continue");
+			expect(c, "end:pmExit");
+			return c;
+		}
+	},
+
+	/** a logged in user setting a custom security question */
+	SETUP_SECURITY_QUESTION("setupSecurityQuestion") {
+		@Override
+		FlowDriver.Conversation run(FlowDriver driver, UserPopulation users, int user, Random random,
+				String remoteAddress) {
+			UsernamePasswordCredentials credentials = new UsernamePasswordCredentials();
+			credentials.setUsername(users.getUsername(user));
+			credentials.setPassword(users.getPassword(user));
+			String answer = "pet " + random.nextInt(1000000);
+			FlowDriver.Conversation c = driver.start(getPmTask(), credentials, remoteAddress);
+			expect(c, "setupSecurityQuestion");
+			c.resume("setupSubmit", "questionText", UserPopulation.CUSTOM_QUESTION, "responseText", answer);
+			expect(c, "end:pmExit");
+			users.setCustomAnswer(user, answer);
+			return c;
+		}
+	};
+
+	private final String pmTask;
+
+	private Scenario(String pmTask) {
+		this.pmTask = pmTask;
+	}
+
+	public String getPmTask() {
+		return pmTask;
+	}
+
+	/**
+	 * <p>Runs the scenario for a user.</p>
+	 * @return the finished conversation
+	 * @throws IllegalStateException if the flow doesn't go where it should
+	 */
+	abstract FlowDriver.Conversation run(FlowDriver driver, UserPopulation users, int user, Random random,
+			String remoteAddress);
+
+	/**
+	 * <p>Finds the scenario for a pmTask.</p>
+	 */
+	public static Scenario forPmTask(String pmTask) {
+		for(Scenario scenario : values()) {
+			if(scenario.pmTask.equals(pmTask)) {
+				return scenario;
+			}
+		}
+		throw new IllegalArgumentException("No scenario for pmTask " + pmTask);
+	}
+
+	private static void expect(FlowDriver.Conversation c, String state) {
+		String actual = c.getState();
+		if(!actual.equals(state)) {
+			throw new IllegalStateException("expected " + state + " but was " + actual);
+		}
+	}
+}
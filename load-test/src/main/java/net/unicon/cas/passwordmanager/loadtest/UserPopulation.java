@@ -0,0 +1,90 @@
+package net.unicon.cas.passwordmanager.loadtest;
+
+import java.util.Random;
+
+/**
+ * <p>The users seeded into the directory, and what the load test knows
+ * about each: the current password, and the answer to the custom security
+ * question if the user has one. Everyone has the default questions' answer
+ * attributes. While a scenario runs, each user is only used by one worker
+ * thread.</p>
+ */
+public class UserPopulation {
+
+	public static final String CUSTOM_QUESTION = "What was the name of your first pet?";
+
+	private final String[] passwords;
+	private final String[] customAnswers;
+
+	/**
+	 * @param size the number of users
+	 * @param customFraction the fraction, 0 to 1, who start with a custom
+	 * security question
+	 * @param seed seeds the choice of who has a custom question
+	 */
+	public UserPopulation(int size, double customFraction, long seed) {
+		passwords = new String[size];
+		customAnswers = new String[size];
+		Random random = new Random(seed);
+		for(int i=0;i<size;i++) {
+			passwords[i] = "Initial" + i + "pw";
+			if(random.nextDouble() < customFraction) {
+				customAnswers[i] = "pet " + i;
+			}
+		}
+	}
+
+	public int size() {
+		return passwords.length;
+	}
+
+	public String getUsername(int i) {
+		return "user" + i;
+	}
+
+	public String getPassword(int i) {
+		return passwords[i];
+	}
+
+	public void setPassword(int i, String password) {
+		passwords[i] = password;
+	}
+
+	public boolean hasCustomQuestion(int i) {
+		return customAnswers[i] != null;
+	}
+
+	/**
+	 * <p>Gets the answer to the user's custom question.</p>
+	 * @return the answer, or null if the user has none
+	 */
+	public String getCustomAnswer(int i) {
+		return customAnswers[i];
+	}
+
+	public void setCustomAnswer(int i, String answer) {
+		customAnswers[i] = answer;
+	}
+
+	/**
+	 * <p>Gets the answer to the first default question (the ID number).</p>
+	 */
+	public String getPersonId(int i) {
+		return String.valueOf(1000000 + i);
+	}
+
+	/**
+	 * <p>Gets the answer to the second default question (the date of birth,
+	 * mm/dd/yyyy).</p>
+	 */
+	public String getPersonDob(int i) {
+		return String.format("%02d/%02d/%d", 1 + i % 12, 1 + i % 28, 1950 + i % 50);
+	}
+
+	/**
+	 * <p>Makes up a password the default password policy accepts.</p>
+	 */
+	public static String newPassword(Random random) {
+		return "Lt" + Long.toString(random.nextLong() & Long.MAX_VALUE, 36) + random.nextInt(10) + "q";
+	}
+}
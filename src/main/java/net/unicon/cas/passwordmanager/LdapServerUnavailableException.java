@@ -0,0 +1,23 @@
+package net.unicon.cas.passwordmanager;
+
+/**
+ * <p>Thrown when an LDAP server isn't being used because its circuit
+ * breaker is open, or when the only servers that might have a user are
+ * unavailable.</p>
+ */
+public class LdapServerUnavailableException extends PasswordManagerException {
+
+	private static final long serialVersionUID = 1L;
+
+	public LdapServerUnavailableException() {
+		super();
+	}
+
+	public LdapServerUnavailableException(String s) {
+		super(s);
+	}
+
+	public LdapServerUnavailableException(String s, Throwable t) {
+		super(s, t);
+	}
+}
@@ -0,0 +1,25 @@
+package net.unicon.cas.passwordmanager;
+
+import net.unicon.cas.passwordmanager.service.ChangePasswordResult;
+
+/**
+ * <p>Thrown when the directory refuses a new password, e.g. because its
+ * password policy finds it too weak or already used.</p>
+ */
+public class PasswordChangeRejectedException extends PasswordManagerException {
+
+	private static final long serialVersionUID = 1L;
+	private final ChangePasswordResult result;
+
+	public PasswordChangeRejectedException(ChangePasswordResult result, Throwable t) {
+		super(result.getDefaultMessage(), t);
+		this.result = result;
+	}
+
+	/**
+	 * <p>Gets why the password was rejected, for showing to the user.</p>
+	 */
+	public ChangePasswordResult getResult() {
+		return result;
+	}
+}
@@ -0,0 +1,164 @@
+package net.unicon.cas.passwordmanager.cache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Fixed-size, thread-safe Bloom filter of strings or longs. Sized for an
+ * expected number of insertions and false positive probability; it never
+ * reports a value that was added as absent, but may report a value that
+ * wasn't added as present.</p>
+ */
+public class BloomFilter {
+
+	private final AtomicLongArray bits;
+	private final long bitCount;
+	private final int hashCount;
+	private final AtomicInteger insertions = new AtomicInteger();
+
+	/**
+	 * @param expectedInsertions number of strings the filter is sized for
+	 * @param falsePositiveProbability false positive probability when the
+	 * filter holds the expected number of strings, e.g. 0.001
+	 */
+	public BloomFilter(int expectedInsertions, double falsePositiveProbability) {
+		if(expectedInsertions < 1) {
+			throw new IllegalArgumentException("expectedInsertions must be at least 1");
+		}
+		if(falsePositiveProbability <= 0 || falsePositiveProbability >= 1) {
+			throw new IllegalArgumentException("falsePositiveProbability must be between 0 and 1");
+		}
+
+		double ln2 = Math.log(2);
+		long bits = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveProbability) / (ln2 * ln2));
+		if((bits + 63) / 64 > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("A filter for " + expectedInsertions + " strings at "
+					+ falsePositiveProbability + " would need more than 2^37 bits");
+		}
+		int words = (int) Math.max(1, (bits + 63) / 64);
+		this.bits = new AtomicLongArray(words);
+		this.bitCount = words * 64L;
+		this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedInsertions * ln2));
+	}
+
+	/**
+	 * <p>Adds a string to the filter.</p>
+	 */
+	public void put(String value) {
+		add(hash(value));
+	}
+
+	/**
+	 * <p>Adds a long to the filter.</p>
+	 */
+	public void put(long value) {
+		add(mix(value));
+	}
+
+	private void add(long hash) {
+		long h2 = secondHash(hash);
+		for(int i=1;i<=hashCount;i++) {
+			setBit(index(hash + i * h2));
+		}
+		insertions.incrementAndGet();
+	}
+
+	/**
+	 * <p>Checks whether a string may have been added to the filter.</p>
+	 * @return false if the string definitely wasn't added
+	 */
+	public boolean mightContain(String value) {
+		return test(hash(value));
+	}
+
+	/**
+	 * <p>Checks whether a long may have been added to the filter.</p>
+	 * @return false if the long definitely wasn't added
+	 */
+	public boolean mightContain(long value) {
+		return test(mix(value));
+	}
+
+	private boolean test(long hash) {
+		long h2 = secondHash(hash);
+		for(int i=1;i<=hashCount;i++) {
+			long index = index(hash + i * h2);
+			if((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * <p>Removes all strings from the filter.</p>
+	 */
+	public void clear() {
+		for(int i=0;i<bits.length();i++) {
+			bits.set(i, 0L);
+		}
+		insertions.set(0);
+	}
+
+	/**
+	 * <p>Gets the number of strings added since the filter was created or
+	 * last cleared.</p>
+	 */
+	public int getInsertions() {
+		return insertions.get();
+	}
+
+	public long getBitCount() {
+		return bitCount;
+	}
+
+	public int getHashCount() {
+		return hashCount;
+	}
+
+	// the hashes are combined in 64 bits, so filters of more than 2^31 bits
+	// use all of them
+	private long index(long combinedHash) {
+		// mask off the sign rather than taking the absolute value, which is
+		// still negative for Long.MIN_VALUE
+		return (combinedHash & Long.MAX_VALUE) % bitCount;
+	}
+
+	private void setBit(long index) {
+		int word = (int) (index >>> 6);
+		long mask = 1L << index;
+		long current;
+		do {
+			current = bits.get(word);
+			if((current & mask) != 0) {
+				return;
+			}
+		} while(!bits.compareAndSet(word, current, current | mask));
+	}
+
+	// 64-bit FNV-1a over the characters, finished with the MurmurHash3 mixer
+	// so that both halves are well distributed
+	private static long hash(String value) {
+		long h = 0xcbf29ce484222325L;
+		for(int i=0;i<value.length();i++) {
+			h ^= value.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return mix(h);
+	}
+
+	// a second, independent 64-bit hash for double hashing
+	private static long secondHash(long hash) {
+		return mix(hash ^ 0x9e3779b97f4a7c15L);
+	}
+
+	// MurmurHash3 64-bit finalizer
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,178 @@
+package net.unicon.cas.passwordmanager.cache;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Bounded, thread-safe cache whose entries expire a fixed amount of time
+ * after they were stored. When the cache is full, the least recently used
+ * entry is evicted to make room for the new one.</p>
+ */
+public class ExpiringLruCache<K,V> {
+
+	private static final int DEFAULT_MAX_SIZE = 10000;
+	private static final int DEFAULT_TIME_TO_LIVE_SECONDS = 300;
+
+	private int maxSize = DEFAULT_MAX_SIZE;
+	private long timeToLiveMillis = DEFAULT_TIME_TO_LIVE_SECONDS * 1000L;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	// access-ordered, so the eldest entry is always the least recently used
+	private final LinkedHashMap<K,CacheEntry<V>> entries = new LinkedHashMap<K,CacheEntry<V>>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K,CacheEntry<V>> eldest) {
+			if(size() > maxSize) {
+				evictions.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	/**
+	 * <p>Gets a cached value.</p>
+	 * @param key cache key
+	 * @return the cached value, or null if it isn't cached or has expired
+	 */
+	public synchronized V get(K key) {
+		CacheEntry<V> entry = entries.get(key);
+		if(entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		if(entry.expires <= System.currentTimeMillis()) {
+			entries.remove(key);
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.value;
+	}
+
+	public synchronized void put(K key, V value) {
+		entries.put(key, new CacheEntry<V>(value, System.currentTimeMillis() + timeToLiveMillis));
+	}
+
+	/**
+	 * <p>Stores a value that expires at the given time instead of after the
+	 * cache's time to live, e.g. when restoring saved entries.</p>
+	 * @param key cache key
+	 * @param value value to cache
+	 * @param expires expiration time in milliseconds since the epoch
+	 */
+	public synchronized void put(K key, V value, long expires) {
+		if(expires > System.currentTimeMillis()) {
+			entries.put(key, new CacheEntry<V>(value, expires));
+		}
+	}
+
+	/**
+	 * <p>Copies the entries that haven't expired, least recently used
+	 * first.</p>
+	 * @return list of unexpired entries
+	 */
+	public synchronized List<ExpiringEntry<K,V>> getEntries() {
+		long now = System.currentTimeMillis();
+		List<ExpiringEntry<K,V>> copy = new ArrayList<ExpiringEntry<K,V>>(entries.size());
+		for(Map.Entry<K,CacheEntry<V>> entry : entries.entrySet()) {
+			if(entry.getValue().expires > now) {
+				copy.add(new ExpiringEntry<K,V>(entry.getKey(), entry.getValue().value,
+						entry.getValue().expires));
+			}
+		}
+		return copy;
+	}
+
+	public synchronized void remove(K key) {
+		entries.remove(key);
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public synchronized void setMaxSize(int maxSize) {
+		if(maxSize < 1) {
+			throw new IllegalArgumentException("maxSize must be at least 1");
+		}
+		this.maxSize = maxSize;
+	}
+
+	public long getTimeToLiveSeconds() {
+		return timeToLiveMillis / 1000L;
+	}
+
+	public synchronized void setTimeToLiveSeconds(long timeToLiveSeconds) {
+		this.timeToLiveMillis = timeToLiveSeconds * 1000L;
+	}
+
+	/**
+	 * <p>A cached key and value with its expiration time.</p>
+	 */
+	public static class ExpiringEntry<K,V> {
+
+		private final K key;
+		private final V value;
+		private final long expires;
+
+		public ExpiringEntry(K key, V value, long expires) {
+			this.key = key;
+			this.value = value;
+			this.expires = expires;
+		}
+
+		public K getKey() {
+			return key;
+		}
+
+		public V getValue() {
+			return value;
+		}
+
+		/**
+		 * <p>Gets the expiration time in milliseconds since the epoch.</p>
+		 */
+		public long getExpires() {
+			return expires;
+		}
+	}
+
+	private static class CacheEntry<V> {
+
+		private final V value;
+		private final long expires;
+
+		CacheEntry(V value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package net.unicon.cas.passwordmanager.cache;
+
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * <p>Bloom filter whose entries expire, built from a ring of fixed-size
+ * generations. New strings go into the current generation and lookups check
+ * all of them. Every time slice, or sooner if the current generation has
+ * taken as many strings as it was sized for, the oldest generation is
+ * cleared and becomes the current one. A string is therefore remembered for
+ * at most generations &times; sliceSeconds, and memory use never grows.</p>
+ */
+public class RotatingBloomFilter implements InitializingBean {
+
+	private static final int DEFAULT_GENERATIONS = 3;
+	private static final long DEFAULT_SLICE_SECONDS = 300;
+	private static final int DEFAULT_EXPECTED_INSERTIONS_PER_SLICE = 200000;
+	private static final double DEFAULT_FALSE_POSITIVE_PROBABILITY = 0.001;
+
+	private int generations = DEFAULT_GENERATIONS;
+	private long sliceSeconds = DEFAULT_SLICE_SECONDS;
+	private int expectedInsertionsPerSlice = DEFAULT_EXPECTED_INSERTIONS_PER_SLICE;
+	private double falsePositiveProbability = DEFAULT_FALSE_POSITIVE_PROBABILITY;
+
+	private BloomFilter[] filters;
+	private volatile int current;
+	private volatile long nextRotation;
+
+	public void put(String value) {
+		currentFilter(true).put(value);
+	}
+
+	/**
+	 * <p>Checks whether a string may have been added within the last few
+	 * time slices.</p>
+	 * @return false if the string definitely wasn't added recently
+	 */
+	public boolean mightContain(String value) {
+		currentFilter(false);
+		for(BloomFilter filter : filters) {
+			if(filter.mightContain(value)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public synchronized void clear() {
+		for(BloomFilter filter : filters) {
+			filter.clear();
+		}
+		nextRotation = System.currentTimeMillis() + sliceSeconds * 1000L;
+	}
+
+	// rotates first if the time slice is over or, when adding, if the
+	// current generation is full
+	private BloomFilter currentFilter(boolean adding) {
+		BloomFilter filter = filters[current];
+		long now = System.currentTimeMillis();
+		if(needsRotation(filter, now, adding)) {
+			filter = rotate(now, adding);
+		}
+		return filter;
+	}
+
+	private boolean needsRotation(BloomFilter filter, long now, boolean adding) {
+		return now >= nextRotation || (adding && filter.getInsertions() >= expectedInsertionsPerSlice);
+	}
+
+	private synchronized BloomFilter rotate(long now, boolean adding) {
+		BloomFilter filter = filters[current];
+		// another thread may have rotated while we waited
+		if(needsRotation(filter, now, adding)) {
+			int next = (current + 1) % filters.length;
+			filters[next].clear();
+			current = next;
+			nextRotation = now + sliceSeconds * 1000L;
+			filter = filters[next];
+		}
+		return filter;
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		if(generations < 2) {
+			throw new IllegalArgumentException("generations must be at least 2");
+		}
+		filters = new BloomFilter[generations];
+		for(int i=0;i<generations;i++) {
+			filters[i] = new BloomFilter(expectedInsertionsPerSlice, falsePositiveProbability);
+		}
+		current = 0;
+		nextRotation = System.currentTimeMillis() + sliceSeconds * 1000L;
+	}
+
+	/**
+	 * <p>Sets the number of generations kept. Default is 3.</p>
+	 */
+	public void setGenerations(int generations) {
+		this.generations = generations;
+	}
+
+	/**
+	 * <p>Sets the number of seconds before the current generation is
+	 * retired. Default is 300.</p>
+	 */
+	public void setSliceSeconds(long sliceSeconds) {
+		this.sliceSeconds = sliceSeconds;
+	}
+
+	/**
+	 * <p>Sets the number of strings each generation is sized for. Default is
+	 * 200000.</p>
+	 */
+	public void setExpectedInsertionsPerSlice(int expectedInsertionsPerSlice) {
+		this.expectedInsertionsPerSlice = expectedInsertionsPerSlice;
+	}
+
+	/**
+	 * <p>Sets the false positive probability of each generation when full.
+	 * Default is 0.001.</p>
+	 */
+	public void setFalsePositiveProbability(double falsePositiveProbability) {
+		this.falsePositiveProbability = falsePositiveProbability;
+	}
+}
@@ -0,0 +1,145 @@
+package net.unicon.cas.passwordmanager.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>Hashed timing wheel that tracks when items expire. Items are hashed
+ * into a ring of buckets by their expiry tick, so advancing the wheel only
+ * looks at the buckets for the ticks that have passed. As long as the wheel
+ * spans the longest expiry, those buckets hold nothing but expired items and
+ * the cost of advancing is proportional to the number of items that
+ * expired. Items that expire further out than the wheel spans are kept and
+ * checked again each time round.</p>
+ *
+ * <p>Each item is scheduled at most once; scheduling it again moves it.</p>
+ */
+public class TimingWheel<T> {
+
+	private final long tickMillis;
+	private final Set<T>[] buckets;
+	private final Map<T,Scheduled> scheduled = new HashMap<T,Scheduled>();
+	// the last tick that has been processed
+	private long currentTick;
+
+	/**
+	 * @param bucketCount number of buckets in the ring
+	 * @param tickMillis time each bucket covers, in milliseconds
+	 */
+	@SuppressWarnings("unchecked")
+	public TimingWheel(int bucketCount, long tickMillis) {
+		if(bucketCount < 1 || tickMillis < 1) {
+			throw new IllegalArgumentException("bucketCount and tickMillis must be at least 1");
+		}
+		this.tickMillis = tickMillis;
+		this.buckets = new Set[bucketCount];
+		for(int i=0;i<bucketCount;i++) {
+			buckets[i] = new HashSet<T>();
+		}
+		this.currentTick = System.currentTimeMillis() / tickMillis;
+	}
+
+	/**
+	 * <p>Schedules an item to expire at the given time, replacing any
+	 * earlier schedule for it.</p>
+	 * @param item item to schedule
+	 * @param expires expiry time in milliseconds since the epoch
+	 */
+	public synchronized void schedule(T item, long expires) {
+		// round up so an item is never seen before it has expired, and never
+		// put it in a tick that has already been processed
+		long tick = Math.max((expires + tickMillis - 1) / tickMillis, currentTick + 1);
+		int slot = (int) (tick % buckets.length);
+		Scheduled previous = scheduled.put(item, new Scheduled(expires, slot));
+		if(previous != null && previous.slot != slot) {
+			buckets[previous.slot].remove(item);
+		}
+		buckets[slot].add(item);
+	}
+
+	public synchronized void cancel(T item) {
+		Scheduled previous = scheduled.remove(item);
+		if(previous != null) {
+			buckets[previous.slot].remove(item);
+		}
+	}
+
+	/**
+	 * <p>Advances the wheel to the given time and removes the items that
+	 * have expired.</p>
+	 * @param now current time in milliseconds since the epoch
+	 * @return the expired items
+	 */
+	public synchronized List<T> advance(long now) {
+		List<T> expired = new ArrayList<T>();
+		long nowTick = now / tickMillis;
+		// after a long pause, each bucket only needs to be visited once
+		long firstTick = Math.max(currentTick + 1, nowTick - buckets.length + 1);
+		for(long tick = firstTick; tick <= nowTick; tick++) {
+			Iterator<T> it = buckets[(int) (tick % buckets.length)].iterator();
+			while(it.hasNext()) {
+				T item = it.next();
+				if(scheduled.get(item).expires <= now) {
+					it.remove();
+					scheduled.remove(item);
+					expired.add(item);
+				}
+			}
+		}
+		if(nowTick > currentTick) {
+			currentTick = nowTick;
+		}
+		return expired;
+	}
+
+	/**
+	 * <p>Removes the item that expires soonest, e.g. to find a candidate
+	 * for eviction when a bounded store is full.</p>
+	 * @return the removed item, or null if the wheel is empty
+	 */
+	public synchronized T pollEarliest() {
+		if(scheduled.isEmpty()) {
+			return null;
+		}
+		for(int i=1;i<=buckets.length;i++) {
+			Set<T> bucket = buckets[(int) ((currentTick + i) % buckets.length)];
+			if(bucket.isEmpty()) {
+				continue;
+			}
+			// the bucket may also hold items from later rounds
+			T earliest = null;
+			long earliestExpires = Long.MAX_VALUE;
+			for(T item : bucket) {
+				long expires = scheduled.get(item).expires;
+				if(expires < earliestExpires) {
+					earliest = item;
+					earliestExpires = expires;
+				}
+			}
+			bucket.remove(earliest);
+			scheduled.remove(earliest);
+			return earliest;
+		}
+		return null;
+	}
+
+	public synchronized int size() {
+		return scheduled.size();
+	}
+
+	private static class Scheduled {
+
+		private final long expires;
+		private final int slot;
+
+		Scheduled(long expires, int slot) {
+			this.expires = expires;
+			this.slot = slot;
+		}
+	}
+}
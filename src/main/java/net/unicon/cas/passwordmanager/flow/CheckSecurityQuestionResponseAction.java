@@ -14,6 +14,7 @@ public class CheckSecurityQuestionResponseAction extends AbstractAction {
     
     private static final String RESPONSE_PARAMETER_PREFIX = "response";
     private PasswordManagerLockoutService lockoutService;
+    private SecurityResponseMatcher responseMatcher = new SecurityResponseMatcher();
 
     @Override
     protected Event doExecute(RequestContext req) throws Exception {
@@ -23,12 +24,11 @@ public class CheckSecurityQuestionResponseAction extends AbstractAction {
         SecurityChallenge challenge = (SecurityChallenge) req.getFlowScope().get(LookupSecurityQuestionAction.SECURITY_CHALLENGE_ATTRIBUTE);
         if (challenge != null) {
             List<SecurityQuestion> questions = challenge.getQuestions(); 
+            // check every response, so the time taken doesn't tell which
+            // one was wrong
             for (int i=0; i < questions.size(); i++) {
                 String responseText = req.getRequestParameters().get(RESPONSE_PARAMETER_PREFIX + i);
-                if (!questions.get(i).validateResponse(responseText)) {
-                    rslt = false;
-                    break;
-                }
+                rslt &= questions.get(i).validateResponse(responseText, responseMatcher);
             }
         } else {
             rslt = false;  // Should not get here...
@@ -46,4 +46,11 @@ public class CheckSecurityQuestionResponseAction extends AbstractAction {
 		this.lockoutService = lockoutService;
 	}
 
+	/**
+	 * <p>Sets how responses are compared with the stored answers.</p>
+	 */
+	public void setResponseMatcher(SecurityResponseMatcher responseMatcher) {
+		this.responseMatcher = responseMatcher;
+	}
+
 }
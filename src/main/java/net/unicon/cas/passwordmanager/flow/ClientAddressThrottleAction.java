@@ -0,0 +1,221 @@
+package net.unicon.cas.passwordmanager.flow;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import net.unicon.cas.passwordmanager.UserLockedOutException;
+import net.unicon.cas.passwordmanager.service.SlidingWindowRateLimiter;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.webflow.context.servlet.ServletExternalContext;
+import org.springframework.webflow.execution.RequestContext;
+
+/**
+ * <p>Limits how many password manager requests a client address, and the
+ * subnet it belongs to, can make within a sliding window. Meant to be
+ * evaluated before the ReCAPTCHA check and any LDAP lookups, so a single
+ * client spraying usernames is stopped before it costs anything.</p>
+ *
+ * <p>If CAS is behind a load balancer or proxy, set clientAddressHeader to
+ * the header it puts the client address in (e.g. X-Forwarded-For). The
+ * last address in the header is used, since that is the one added by the
+ * proxy itself.</p>
+ */
+public class ClientAddressThrottleAction implements InitializingBean {
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+	private int addressLimit = 20;
+	private int subnetLimit = 100;
+	private long windowSeconds = 600;
+	private int bucketsPerWindow = 10;
+	private int counters = 4096;
+	private int ipv4SubnetPrefix = 24;
+	private int ipv6SubnetPrefix = 64;
+	private String clientAddressHeader;
+	private SlidingWindowRateLimiter addressLimiter;
+	private SlidingWindowRateLimiter subnetLimiter;
+
+	/**
+	 * <p>Counts a request from the client and checks it against the
+	 * limits.</p>
+	 * @param context current request context
+	 * @return true if the client is within its limits
+	 * @throws UserLockedOutException if the client's address or subnet has
+	 * made too many requests
+	 */
+	public boolean allowRequest(RequestContext context) throws UserLockedOutException {
+
+		ServletExternalContext externalContext = (ServletExternalContext) context.getExternalContext();
+		HttpServletRequest request = (HttpServletRequest) externalContext.getNativeRequest();
+		String address = getClientAddress(request);
+
+		// count against both so a client can't dodge the subnet limit by
+		// staying under the address limit
+		boolean addressAllowed = addressLimiter.tryAcquire(address);
+		String subnet = getSubnet(address);
+		boolean subnetAllowed = subnet == null || subnetLimiter.tryAcquire(subnet);
+
+		if(addressAllowed && subnetAllowed) {
+			return true;
+		}
+
+		logger.info("Throttling password manager requests from " + address
+				+ (addressAllowed ? " (subnet " + subnet + " over its limit)" : ""));
+		throw new UserLockedOutException("Too many requests from " + address);
+	}
+
+	protected String getClientAddress(HttpServletRequest request) {
+		if(clientAddressHeader != null && clientAddressHeader.length() > 0) {
+			String header = request.getHeader(clientAddressHeader);
+			if(header != null && header.trim().length() > 0) {
+				int comma = header.lastIndexOf(',');
+				return header.substring(comma + 1).trim();
+			}
+		}
+		return request.getRemoteAddr();
+	}
+
+	/**
+	 * <p>Gets the subnet of an address, e.g. "192.0.2.0/24".</p>
+	 * @return the subnet, or null if the address can't be parsed
+	 */
+	protected String getSubnet(String address) {
+		if(!isIpLiteral(address)) {
+			return null;
+		}
+		byte[] bytes;
+		try {
+			bytes = InetAddress.getByName(address).getAddress();
+		} catch(UnknownHostException ex) {
+			return null;
+		}
+
+		int prefix = bytes.length == 4 ? ipv4SubnetPrefix : ipv6SubnetPrefix;
+		for(int i=0;i<bytes.length;i++) {
+			int bits = Math.max(0, Math.min(8, prefix - i * 8));
+			bytes[i] &= (byte) (0xff << (8 - bits));
+		}
+		try {
+			return InetAddress.getByAddress(bytes).getHostAddress() + "/" + prefix;
+		} catch(UnknownHostException ex) {
+			return null;
+		}
+	}
+
+	// only IP literals are parsed, so a host name is never looked up: a
+	// dotted quad, or hex digits and colons (with an optional trailing
+	// dotted quad) for IPv6. Names like "cafe" or "dead.beef" don't qualify.
+	private static boolean isIpLiteral(String address) {
+		if(address.indexOf(':') < 0) {
+			return isDottedQuad(address);
+		}
+		int lastColon = address.lastIndexOf(':');
+		for(int i=0;i<lastColon;i++) {
+			char c = address.charAt(i);
+			if(Character.digit(c, 16) < 0 && c != ':') {
+				return false;
+			}
+		}
+		String tail = address.substring(lastColon + 1);
+		if(tail.indexOf('.') >= 0) {
+			return isDottedQuad(tail);
+		}
+		for(int i=0;i<tail.length();i++) {
+			if(Character.digit(tail.charAt(i), 16) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isDottedQuad(String address) {
+		String[] parts = address.split("\\.", -1);
+		if(parts.length != 4) {
+			return false;
+		}
+		for(String part : parts) {
+			if(part.length() == 0 || part.length() > 3) {
+				return false;
+			}
+			for(int i=0;i<part.length();i++) {
+				if(part.charAt(i) < '0' || part.charAt(i) > '9') {
+					return false;
+				}
+			}
+			if(Integer.parseInt(part) > 255) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		addressLimiter = new SlidingWindowRateLimiter(addressLimit, windowSeconds, bucketsPerWindow, counters);
+		subnetLimiter = new SlidingWindowRateLimiter(subnetLimit, windowSeconds, bucketsPerWindow, counters);
+	}
+
+	/**
+	 * <p>Sets the number of requests a single address may make within the
+	 * window. Default is 20.</p>
+	 */
+	public void setAddressLimit(int addressLimit) {
+		this.addressLimit = addressLimit;
+	}
+
+	/**
+	 * <p>Sets the number of requests all addresses in a subnet may make
+	 * within the window. Default is 100.</p>
+	 */
+	public void setSubnetLimit(int subnetLimit) {
+		this.subnetLimit = subnetLimit;
+	}
+
+	/**
+	 * <p>Sets the length of the sliding window in seconds. Default is
+	 * 600.</p>
+	 */
+	public void setWindowSeconds(long windowSeconds) {
+		this.windowSeconds = windowSeconds;
+	}
+
+	/**
+	 * <p>Sets the number of slices the window is divided into. Default is
+	 * 10.</p>
+	 */
+	public void setBucketsPerWindow(int bucketsPerWindow) {
+		this.bucketsPerWindow = bucketsPerWindow;
+	}
+
+	/**
+	 * <p>Sets the number of counters per limiter. Default is 4096.</p>
+	 */
+	public void setCounters(int counters) {
+		this.counters = counters;
+	}
+
+	/**
+	 * <p>Sets the prefix length of IPv4 subnets. Default is 24.</p>
+	 */
+	public void setIpv4SubnetPrefix(int ipv4SubnetPrefix) {
+		this.ipv4SubnetPrefix = ipv4SubnetPrefix;
+	}
+
+	/**
+	 * <p>Sets the prefix length of IPv6 subnets. Default is 64.</p>
+	 */
+	public void setIpv6SubnetPrefix(int ipv6SubnetPrefix) {
+		this.ipv6SubnetPrefix = ipv6SubnetPrefix;
+	}
+
+	/**
+	 * <p>Sets the request header holding the client address when behind a
+	 * proxy. If empty, the address of the connection is used.</p>
+	 */
+	public void setClientAddressHeader(String clientAddressHeader) {
+		this.clientAddressHeader = clientAddressHeader;
+	}
+}
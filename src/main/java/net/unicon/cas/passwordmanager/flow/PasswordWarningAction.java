@@ -0,0 +1,40 @@
+package net.unicon.cas.passwordmanager.flow;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import net.unicon.cas.passwordmanager.service.PasswordManagerService;
+import net.unicon.cas.passwordmanager.service.PasswordWarningInfo;
+
+/**
+ * <p>Works out how many days are left before a user's password expires, for
+ * the password warning page when the login flow didn't pass them in.</p>
+ */
+public class PasswordWarningAction {
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+	private PasswordManagerService passwordManagerService;
+
+	/**
+	 * <p>Gets the number of days before the user's password expires.</p>
+	 * @param username the user
+	 * @return the number of days, or null if it isn't known or the password
+	 * never expires
+	 */
+	public Integer getExpireDays(String username) {
+		if(username == null) {
+			return null;
+		}
+		try {
+			PasswordWarningInfo info = passwordManagerService.getPasswordWarningInfo(username);
+			return info == null ? null : info.getExpireDays();
+		} catch(RuntimeException ex) {
+			// only a warning; don't keep the user from logging in over it
+			logger.warn("Couldn't get password expiry for " + username, ex);
+			return null;
+		}
+	}
+
+	public void setPasswordManagerService(PasswordManagerService passwordManagerService) {
+		this.passwordManagerService = passwordManagerService;
+	}
+}
@@ -3,6 +3,9 @@ package net.unicon.cas.passwordmanager.flow;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import net.unicon.cas.passwordmanager.InvalidPasswordException;
+import net.unicon.cas.passwordmanager.LdapServerUnavailableException;
+import net.unicon.cas.passwordmanager.PasswordChangeRejectedException;
+import net.unicon.cas.passwordmanager.policy.BreachedPasswordIndex;
 import net.unicon.cas.passwordmanager.service.PasswordManagerService;
 import org.springframework.binding.message.MessageBuilder;
 import org.springframework.binding.message.MessageContext;
@@ -15,6 +18,7 @@ public class ProcessChangePasswordAction {
 
 	private final Log logger = LogFactory.getLog(this.getClass());
 	private PasswordManagerService passwordManagerService;
+	private BreachedPasswordIndex breachedPasswordIndex;
 
 	public boolean changePassword(String flowScopeUsername, String beanUsername, String oldPassword, String password,
 			MessageContext messageContext) throws Exception {
@@ -31,6 +35,10 @@ public class ProcessChangePasswordAction {
 			return false;
 		}
 		
+		if(isBreached(password, messageContext)) {
+			return false;
+		}
+		
 		try {
 			passwordManagerService.changeUserPassword(username, oldPassword, password);
 		} catch(InvalidPasswordException ex) {
@@ -47,6 +55,12 @@ public class ProcessChangePasswordAction {
 					.build());
 			logger.debug("NameNotFoundException changing password for user " + username);
 			return false;
+		} catch(PasswordChangeRejectedException ex) {
+			addRejectedMessage(ex, messageContext);
+			return false;
+		} catch(LdapServerUnavailableException ex) {
+			// shown by the flow's global transition
+			throw ex;
 		} catch(Exception ex) {
 			logger.error("Unknown exception changing user's password.",ex);
 			return false;
@@ -58,8 +72,18 @@ public class ProcessChangePasswordAction {
 	public boolean setPassword(String username, String password,
 			MessageContext messageContext) throws Exception {
 		
+		if(isBreached(password, messageContext)) {
+			return false;
+		}
+		
 		try {
 			passwordManagerService.setUserPassword(username, password);
+		} catch(PasswordChangeRejectedException ex) {
+			addRejectedMessage(ex, messageContext);
+			return false;
+		} catch(LdapServerUnavailableException ex) {
+			// shown by the flow's global transition
+			throw ex;
 		} catch(Exception ex) {
 			logger.error("Unknown exception changing user's password.",ex);
 			return false;
@@ -71,8 +95,15 @@ public class ProcessChangePasswordAction {
 	public boolean changePassword(String username, String oldPassword, 
 			String newPassword) throws Exception {
 		
+		if(isBreached(newPassword, null)) {
+			return false;
+		}
+		
 		try {
 			passwordManagerService.changeUserPassword(username, oldPassword, newPassword);
+		} catch(LdapServerUnavailableException ex) {
+			// shown by the flow's global transition
+			throw ex;
 		} catch(Exception ex) {
 			logger.error("Exception changing user's password.");
 			return false;
@@ -80,6 +111,35 @@ public class ProcessChangePasswordAction {
 		return true;
 	}
 
+	private void addRejectedMessage(PasswordChangeRejectedException ex, MessageContext messageContext) {
+		messageContext.addMessage(new MessageBuilder().error().source("newPassword")
+				.code(ex.getResult().getMessageKey())
+				.arg(ex.getResult().getDefaultMessage())
+				.defaultText(ex.getResult().getDefaultMessage())
+				.build());
+		logger.debug("The directory rejected the new password: " + ex.getResult().getDefaultMessage());
+	}
+
+	// the validator checks this too, but not every path to the action goes
+	// through it
+	private boolean isBreached(String password, MessageContext messageContext) {
+		if(breachedPasswordIndex == null || !breachedPasswordIndex.isBreached(password)) {
+			return false;
+		}
+		if(messageContext != null) {
+			messageContext.addMessage(new MessageBuilder().error().source("newPassword")
+					.code("cas.pm.newpassword.breached")
+					.defaultText("This password has appeared in a data breach and can't be used")
+					.build());
+		}
+		logger.debug("Rejected a breached password.");
+		return true;
+	}
+
+	public void setBreachedPasswordIndex(BreachedPasswordIndex breachedPasswordIndex) {
+		this.breachedPasswordIndex = breachedPasswordIndex;
+	}
+
 	public void setPasswordManagerService(
 			PasswordManagerService passwordManagerService) {
 		this.passwordManagerService = passwordManagerService;
@@ -1,19 +1,18 @@
 package net.unicon.cas.passwordmanager.flow;
 
 import java.io.Serializable;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 
 /**
  * <p>Bean for holding a user security question and answer. Includes a
- * method for validating responses.</p>
+ * method for validating responses; see SecurityResponseMatcher for how
+ * responses are compared.</p>
  */
 public class SecurityQuestion implements Serializable {
 
     private static final long serialVersionUID = 1L;
     public static final String DATE_REGEX = "^(0?[1-9]|1[012])/(0?[1-9]|[12][0-9]|3[01])/(19|20)\\d\\d$";
     public static final String DATE_FORMAT = "MM/dd/yyyy";
+    private static final SecurityResponseMatcher DEFAULT_MATCHER = new SecurityResponseMatcher();
 
     // Instance Members.
     private String questionText;
@@ -55,17 +54,10 @@ public class SecurityQuestion implements Serializable {
 	}
     
     public boolean validateResponse(String responseText) {
-    	if(responseText.matches(DATE_REGEX) && this.responseText.matches(DATE_REGEX)) {
-    		// validate them as dates
-    		SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
-    		try {
-				Date d1 = sdf.parse(responseText);
-	    		Date d2 = sdf.parse(this.responseText);
-	    		return d1.equals(d2);
-			} catch (ParseException e) {
-				// fall back to a plain text match below
-			}
-    	}
-        return this.responseText.equalsIgnoreCase(responseText);
+        return validateResponse(responseText, DEFAULT_MATCHER);
+    }
+
+    public boolean validateResponse(String responseText, SecurityResponseMatcher matcher) {
+        return matcher.matches(this.responseText, responseText);
     }
 }
@@ -0,0 +1,212 @@
+package net.unicon.cas.passwordmanager.flow;
+
+import java.io.Serializable;
+import java.text.Normalizer;
+
+/**
+ * <p>Compares a response to a security question with the stored answer.
+ * Responses that are both dates in the form SecurityQuestion.DATE_REGEX
+ * accepts are compared as dates, so "5/2/1980" matches "05/02/1980";
+ * anything else is compared as text.</p>
+ *
+ * <p>Text is compared without creating any objects (unless Unicode
+ * normalization is on) and in time that depends only on the lengths of the
+ * two strings, not on where they first differ. Dates are parsed by hand
+ * with the same lenient rules as SimpleDateFormat, so "2/30/2000" still
+ * matches "3/1/2000" as it always has.</p>
+ */
+public class SecurityResponseMatcher implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+	private static final int END = -1;
+	private static final long NOT_A_DATE = Long.MIN_VALUE;
+
+	private boolean ignoreCase = true;
+	private boolean normalizeWhitespace = false;
+	private boolean normalizeUnicode = false;
+
+	/**
+	 * <p>Checks a response against the stored answer.</p>
+	 * @param expected the stored answer
+	 * @param response the user's response
+	 * @return true if the response matches
+	 */
+	public boolean matches(String expected, String response) {
+		if(expected == null || response == null) {
+			return false;
+		}
+		if(normalizeUnicode) {
+			expected = Normalizer.normalize(expected, Normalizer.Form.NFKC);
+			response = Normalizer.normalize(response, Normalizer.Form.NFKC);
+		}
+
+		long expectedDate = parseDate(expected);
+		long responseDate = expectedDate == NOT_A_DATE ? NOT_A_DATE : parseDate(response);
+		if(expectedDate != NOT_A_DATE && responseDate != NOT_A_DATE) {
+			return expectedDate == responseDate;
+		}
+		return textMatches(expected, response);
+	}
+
+	private boolean textMatches(String expected, String response) {
+		int diff = 0;
+		int i = start(expected);
+		int j = start(response);
+		// walk both to the end, whatever is found on the way
+		for(;;) {
+			int a = charAt(expected, i);
+			int b = charAt(response, j);
+			if(a == END && b == END) {
+				break;
+			}
+			diff |= fold(a) ^ fold(b);
+			i = next(expected, i);
+			j = next(response, j);
+		}
+		return diff == 0;
+	}
+
+	private int start(String s) {
+		int i = 0;
+		if(normalizeWhitespace) {
+			while(i < s.length() && Character.isWhitespace(s.charAt(i))) {
+				i++;
+			}
+		}
+		return i;
+	}
+
+	// whitespace is collapsed by reporting a run of it as a single space,
+	// and dropped entirely at the end
+	private int charAt(String s, int i) {
+		if(i >= s.length()) {
+			return END;
+		}
+		char c = s.charAt(i);
+		if(normalizeWhitespace && Character.isWhitespace(c)) {
+			return next(s, i) >= s.length() ? END : ' ';
+		}
+		return c;
+	}
+
+	private int next(String s, int i) {
+		if(i >= s.length()) {
+			return i;
+		}
+		if(normalizeWhitespace && Character.isWhitespace(s.charAt(i))) {
+			while(i < s.length() && Character.isWhitespace(s.charAt(i))) {
+				i++;
+			}
+			return i;
+		}
+		return i + 1;
+	}
+
+	// same folding as String.equalsIgnoreCase
+	private int fold(int c) {
+		if(c == END || !ignoreCase) {
+			return c;
+		}
+		return Character.toLowerCase(Character.toUpperCase((char) c));
+	}
+
+	/**
+	 * <p>Parses a date matching SecurityQuestion.DATE_REGEX.</p>
+	 * @return the day number of the date, or NOT_A_DATE
+	 */
+	private long parseDate(String s) {
+		int begin = 0;
+		int end = s.length();
+		if(normalizeWhitespace) {
+			while(begin < end && Character.isWhitespace(s.charAt(begin))) {
+				begin++;
+			}
+			while(end > begin && Character.isWhitespace(s.charAt(end - 1))) {
+				end--;
+			}
+		}
+
+		// month: 1-2 digits, 1-12
+		int i = begin;
+		int month = 0;
+		int digits = 0;
+		while(i < end && digits < 2 && isDigit(s.charAt(i))) {
+			month = month * 10 + (s.charAt(i++) - '0');
+			digits++;
+		}
+		if(digits == 0 || month < 1 || month > 12 || i >= end || s.charAt(i++) != '/') {
+			return NOT_A_DATE;
+		}
+
+		// day: 1-2 digits, 1-31
+		int day = 0;
+		digits = 0;
+		while(i < end && digits < 2 && isDigit(s.charAt(i))) {
+			day = day * 10 + (s.charAt(i++) - '0');
+			digits++;
+		}
+		if(digits == 0 || day < 1 || day > 31 || i >= end || s.charAt(i++) != '/') {
+			return NOT_A_DATE;
+		}
+
+		// year: exactly 4 digits, 1900-2099
+		if(end - i != 4) {
+			return NOT_A_DATE;
+		}
+		int year = 0;
+		for(;i<end;i++) {
+			if(!isDigit(s.charAt(i))) {
+				return NOT_A_DATE;
+			}
+			year = year * 10 + (s.charAt(i) - '0');
+		}
+		if(year < 1900 || year > 2099) {
+			return NOT_A_DATE;
+		}
+
+		// the first of the month plus the day, so days past the end of the
+		// month roll over into the next one as SimpleDateFormat does
+		return daysFromCivil(year, month) + day - 1;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	// days since 1970-01-01 of the first of the month
+	private static long daysFromCivil(int year, int month) {
+		if(month <= 2) {
+			year--;
+		}
+		long era = year / 400;
+		long yearOfEra = year - era * 400;
+		long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	/**
+	 * <p>Sets whether case is ignored when comparing text. Default is
+	 * true.</p>
+	 */
+	public void setIgnoreCase(boolean ignoreCase) {
+		this.ignoreCase = ignoreCase;
+	}
+
+	/**
+	 * <p>Sets whether leading and trailing whitespace is ignored and runs of
+	 * whitespace compare equal to a single space. Default is false.</p>
+	 */
+	public void setNormalizeWhitespace(boolean normalizeWhitespace) {
+		this.normalizeWhitespace = normalizeWhitespace;
+	}
+
+	/**
+	 * <p>Sets whether both strings are put in Unicode NFKC form before they
+	 * are compared, so e.g. full-width and ordinary digits compare equal.
+	 * Default is false.</p>
+	 */
+	public void setNormalizeUnicode(boolean normalizeUnicode) {
+		this.normalizeUnicode = normalizeUnicode;
+	}
+}
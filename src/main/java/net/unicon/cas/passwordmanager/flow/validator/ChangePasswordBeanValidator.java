@@ -1,14 +1,31 @@
 package net.unicon.cas.passwordmanager.flow.validator;
 
+import java.util.List;
+import java.util.regex.Pattern;
+
 import net.unicon.cas.passwordmanager.flow.model.ChangePasswordBean;
+import net.unicon.cas.passwordmanager.policy.BreachedPasswordIndex;
+import net.unicon.cas.passwordmanager.policy.PasswordPolicy;
+import net.unicon.cas.passwordmanager.policy.PasswordRuleViolation;
 import org.springframework.binding.message.MessageBuilder;
 import org.springframework.binding.message.MessageContext;
 import org.springframework.binding.validation.ValidationContext;
+import org.springframework.webflow.execution.RequestContext;
+import org.springframework.webflow.execution.RequestContextHolder;
 
+/**
+ * <p>Validates the change and set password forms. New passwords are
+ * checked against the password policy, if one is set, which reports each
+ * rule broken with its own message; and against the password regex, if one
+ * is set, which can only report that the password is too weak. Passwords
+ * in the breached password list, if one is set, are rejected too.</p>
+ */
 public class ChangePasswordBeanValidator {
 
-	// default regex accepts any password
-	private String passwordRegex = ".*";
+	// no regex or policy accepts any password
+	private Pattern passwordPattern;
+	private PasswordPolicy passwordPolicy;
+	private BreachedPasswordIndex breachedPasswordIndex;
 	
 	public void validateChangePasswordView(ChangePasswordBean changePasswordBean,
 			ValidationContext context) {
@@ -39,12 +56,10 @@ public class ChangePasswordBeanValidator {
 						.defaultText("The new password must be different")
 						.build());
 			}
-			if(!newPassword.matches(passwordRegex)) {
-				messageContext.addMessage(new MessageBuilder().error().source("newPassword")
-						.code("cas.pm.newpassword.weak")
-						.defaultText("The password is too weak")
-						.build());
-			} else if(confirmNewPassword == null || !confirmNewPassword.equals(newPassword)) {
+			// an unchanged password was reported above, not as too similar
+			String similarTo = newPassword.equals(oldPassword) ? null : oldPassword;
+			if(checkStrength(newPassword, getUsername(changePasswordBean), similarTo, messageContext)
+					&& (confirmNewPassword == null || !confirmNewPassword.equals(newPassword))) {
 				messageContext.addMessage(new MessageBuilder().error().source("confirmNewPassword")
 						.code("cas.pm.newpassword.mismatch")
 						.defaultText("The passwords do not match")
@@ -66,12 +81,8 @@ public class ChangePasswordBeanValidator {
 					.defaultText("Please enter a new password")
 					.build());
 		} else {
-			if(!newPassword.matches(passwordRegex)) {
-				messageContext.addMessage(new MessageBuilder().error().source("newPassword")
-						.code("cas.pm.newpassword.weak")
-						.defaultText("The password is too weak")
-						.build());
-			} else if(confirmNewPassword == null || !confirmNewPassword.equals(newPassword)) {
+			if(checkStrength(newPassword, getUsername(changePasswordBean), null, messageContext)
+					&& (confirmNewPassword == null || !confirmNewPassword.equals(newPassword))) {
 				messageContext.addMessage(new MessageBuilder().error().source("confirmNewPassword")
 						.code("cas.pm.newpassword.mismatch")
 						.defaultText("The passwords do not match")
@@ -80,7 +91,68 @@ public class ChangePasswordBeanValidator {
 		}
 	}
 	
+	// reports why the password is too weak, if it is
+	private boolean checkStrength(String newPassword, String username, String oldPassword,
+			MessageContext messageContext) {
+
+		boolean strong = true;
+		if(passwordPolicy != null) {
+			List<PasswordRuleViolation> violations = passwordPolicy.check(newPassword, username, oldPassword);
+			for(PasswordRuleViolation violation : violations) {
+				messageContext.addMessage(new MessageBuilder().error().source("newPassword")
+						.code(violation.getCode())
+						.args(violation.getArgs())
+						.defaultText(violation.getDefaultText())
+						.build());
+			}
+			strong = violations.isEmpty();
+		}
+		if(strong && passwordPattern != null && !passwordPattern.matcher(newPassword).matches()) {
+			messageContext.addMessage(new MessageBuilder().error().source("newPassword")
+					.code("cas.pm.newpassword.weak")
+					.defaultText("The password is too weak")
+					.build());
+			strong = false;
+		}
+		if(strong && breachedPasswordIndex != null && breachedPasswordIndex.isBreached(newPassword)) {
+			messageContext.addMessage(new MessageBuilder().error().source("newPassword")
+					.code("cas.pm.newpassword.breached")
+					.defaultText("This password has appeared in a data breach and can't be used")
+					.build());
+			strong = false;
+		}
+		return strong;
+	}
+
+	// as in ProcessChangePasswordAction, prefer the username in the flow
+	// scope to the one in the bean
+	private String getUsername(ChangePasswordBean changePasswordBean) {
+		RequestContext requestContext = RequestContextHolder.getRequestContext();
+		Object username = requestContext == null ? null : requestContext.getFlowScope().get("username");
+		return username instanceof String ? (String) username : changePasswordBean.getUsername();
+	}
+
+	/**
+	 * <p>Sets a regular expression new passwords must match. The pattern is
+	 * compiled once, here.</p>
+	 */
 	public void setPasswordRegex(String passwordRegex) {
-		this.passwordRegex = passwordRegex;
+		this.passwordPattern = passwordRegex == null || passwordRegex.length() == 0
+				? null : Pattern.compile(passwordRegex);
+	}
+
+	/**
+	 * <p>Sets the policy new passwords are checked against.</p>
+	 */
+	public void setPasswordPolicy(PasswordPolicy passwordPolicy) {
+		this.passwordPolicy = passwordPolicy;
+	}
+
+	/**
+	 * <p>Sets the list of breached passwords new passwords are checked
+	 * against.</p>
+	 */
+	public void setBreachedPasswordIndex(BreachedPasswordIndex breachedPasswordIndex) {
+		this.breachedPasswordIndex = breachedPasswordIndex;
 	}
 }
@@ -1,6 +1,7 @@
 package net.unicon.cas.passwordmanager.ldap;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import javax.naming.NameClassPair;
@@ -12,20 +13,29 @@ import javax.naming.directory.BasicAttribute;
 import javax.naming.directory.DirContext;
 import javax.naming.directory.ModificationItem;
 import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
 import javax.validation.constraints.Max;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import net.unicon.cas.passwordmanager.PasswordChangeRejectedException;
+import net.unicon.cas.passwordmanager.cache.ExpiringLruCache;
 import org.jasig.cas.authentication.handler.NoOpPrincipalNameTransformer;
 import org.jasig.cas.authentication.handler.PrincipalNameTransformer;
 import net.unicon.cas.passwordmanager.flow.SecurityChallenge;
 import net.unicon.cas.passwordmanager.flow.SecurityQuestion;
-import org.jasig.cas.util.LdapUtils;
+import net.unicon.cas.passwordmanager.monitor.LdapServerStats;
+import net.unicon.cas.passwordmanager.monitor.LdapServerStats.Operation;
+import net.unicon.cas.passwordmanager.service.ChangePasswordResult;
+import net.unicon.cas.passwordmanager.service.PasswordWarningInfo;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.ldap.NameNotFoundException;
+import org.springframework.ldap.SizeLimitExceededException;
 import org.springframework.ldap.core.AttributesMapper;
+import org.springframework.ldap.core.ContextSource;
 import org.springframework.ldap.core.ContextMapper;
 import org.springframework.ldap.core.DirContextAdapter;
 import org.springframework.ldap.core.DistinguishedName;
@@ -37,11 +47,14 @@ import org.springframework.ldap.core.support.LdapContextSource;
 import org.springframework.ldap.filter.EqualsFilter;
 import org.springframework.ldap.filter.Filter;
 
-public abstract class AbstractLdapServer implements LdapServer, InitializingBean {
+public abstract class AbstractLdapServer implements LdapServer, InitializingBean, DisposableBean {
 
+	private static final String RESULT_CODE_PREFIX = "LDAP: error code ";
 	private final Log logger = LogFactory.getLog(this.getClass());
 	protected LdapTemplate ldapTemplate;
 	protected LdapContextSource ldapContextSource;
+	protected ContextSource ldapTemplateContextSource;
+	protected LdapBindVerifier bindVerifier;
 	protected List<String> securityQuestionAttrs;
 	protected List<String> securityResponseAttrs;
 	protected List<String> defaultQuestions;
@@ -58,6 +71,9 @@ public abstract class AbstractLdapServer implements LdapServer, InitializingBean
 
     /** The default timeout. */
     private static final int DEFAULT_TIMEOUT = 1000;
+    
+    /** Count limit for user lookups. Finding a second entry is already an error. */
+    private static final int USER_LOOKUP_COUNT_LIMIT = 2;
 
     /** The scope. */
     @Min(0)
@@ -76,18 +92,42 @@ public abstract class AbstractLdapServer implements LdapServer, InitializingBean
     
     @NotNull
     private PrincipalNameTransformer principalNameTransformer = new NoOpPrincipalNameTransformer();
+    
+    private LdapFilterTemplate userFilterTemplate;
+    private LdapFilterTemplate usernameAttrFilterTemplate;
+    
+    /** Optional cache of transformed username to DN. Null disables caching. */
+    private ExpiringLruCache<String,String> dnCache;
+    
+    private LdapServerStats stats;
+    private boolean jmxEnabled = true;
 	
 	@Override
 	public void ldapModify(String username, ModificationItem[] modificationItems) {
 		DistinguishedName dn = searchForDn(username);
 		logger.debug("ldapModify for dn " + dn + "," + ldapContextSource.getBaseLdapPathAsString());
-		ldapTemplate.modifyAttributes(dn, modificationItems);
+		long start = stats.begin(Operation.LDAP_MODIFY);
+		Throwable failure = null;
+		try {
+			ldapTemplate.modifyAttributes(dn, modificationItems);
+		} catch(org.springframework.ldap.NamingException ex) {
+			failure = ex;
+			// the cached DN may be stale (e.g. the entry was moved or renamed)
+			evictCachedDn(username);
+			throw ex;
+		} catch(RuntimeException ex) {
+			failure = ex;
+			throw ex;
+		} finally {
+			stats.end(Operation.LDAP_MODIFY, start, failure);
+		}
 	}
 	
 	@Override
 	public SecurityChallenge getUserSecurityChallenge(String username) {
 		logger.debug("Getting user security challenge for user " + username);
-		return (SecurityChallenge) ldapLookup(username, new SecurityChallengeAttributesMapper(username));
+		return (SecurityChallenge) ldapLookup(username, new SecurityChallengeAttributesMapper(username),
+				getSecurityChallengeAttributes());
 	}
 	
 	@Override
@@ -119,16 +159,67 @@ public abstract class AbstractLdapServer implements LdapServer, InitializingBean
 	@Override
 	public SecurityChallenge getDefaultSecurityChallenge(String username) {
 		logger.debug("Getting default security challenge for " + username);
-		return (SecurityChallenge) ldapLookup(username, new DefaultSecurityChallengeAttributesMapper(username));
+		return (SecurityChallenge) ldapLookup(username, new DefaultSecurityChallengeAttributesMapper(username),
+				getDefaultSecurityChallengeAttributes());
 	}
 	
 	@Override
 	public abstract void setPassword(String username, String password);
 	
-	protected Object ldapLookup(String username, AttributesMapper mapper) {
+	/**
+	 * <p>Verifies the old password with a bind, then sets the new one.</p>
+	 */
+	@Override
+	public boolean changePassword(String username, String oldPassword, String newPassword) {
+		if(!verifyPassword(username, oldPassword)) {
+			return false;
+		}
+		setPassword(username, newPassword);
+		return true;
+	}
+	
+	/**
+	 * <p>Looks up the user by usernameAttr and maps the user's entry.</p>
+	 * @param username user to look up
+	 * @param mapper mapper for the user's entry
+	 * @param attributes the attributes the mapper reads; only these are
+	 * fetched
+	 * @return the mapped entry
+	 */
+	protected Object ldapLookup(String username, AttributesMapper mapper, String[] attributes) {
+		long start = stats.begin(Operation.LDAP_LOOKUP);
+		Throwable failure = null;
+		try {
+			return lookupEntry(username, mapper, attributes);
+		} catch(RuntimeException ex) {
+			failure = ex;
+			throw ex;
+		} finally {
+			stats.end(Operation.LDAP_LOOKUP, start, failure);
+		}
+	}
+	
+	private Object lookupEntry(String username, AttributesMapper mapper, String[] attributes) {
+		
+		SearchControls searchControls = getSearchControls();
+		searchControls.setReturningAttributes(attributes);
+		searchControls.setCountLimit(USER_LOOKUP_COUNT_LIMIT);
 		
-		@SuppressWarnings("unchecked")
-		List<Object> results = ldapTemplate.search(searchBase, usernameAttr + "=" + username, mapper);
+		List<Object> results;
+		try {
+			@SuppressWarnings("unchecked")
+			List<Object> found = ldapTemplate.search(searchBase,
+					usernameAttrFilterTemplate.format(username), searchControls, mapper);
+			results = found;
+		} catch(SizeLimitExceededException ex) {
+			// more than USER_LOOKUP_COUNT_LIMIT entries matched
+			logger.warn("Multiple results found for " + username + " under " 
+					+ ldapContextSource.getBaseLdapPathAsString() + " with base "
+					+ searchBase);
+			throw new ObjectRetrievalException("Multiple results found for " 
+					+ username + " in " + ldapContextSource.getBaseLdapPathAsString()
+					+ " with base " + searchBase);
+		}
 		
 		if(results.size() == 0) {
 			throw new NameNotFoundException("Couldn't find " + username + " in " 
@@ -150,40 +241,284 @@ public abstract class AbstractLdapServer implements LdapServer, InitializingBean
 	}
 	
 	protected DistinguishedName searchForDn(String username) {
+        final DistinguishedName cachedDn = getCachedDn(username);
+        if (cachedDn != null) {
+            return cachedDn;
+        }
+        
+        final String transformedUsername = getPrincipalNameTransformer().transform(username);
+        final SearchResult result = resolveUserEntry(username, transformedUsername, getUserEntryAttributes());
+		
+		logger.debug("Found name: " + result.getNameInNamespace());
+		return new DistinguishedName(result.getNameInNamespace());
+	}
+	
+	@Override
+	public String lookupDn(String username) {
+		return searchForDn(username).encode();
+	}
+	
+	@Override
+	public void checkAvailable(String username) {
+		// not resolveUserEntry, so the result isn't cached or counted
+		searchForUserEntry(username, getPrincipalNameTransformer().transform(username), new String[0]);
+	}
+	
+	@Override
+	public UserEntrySnapshot getUserEntrySnapshot(String username) {
+		logger.debug("Getting user entry snapshot for " + username);
+		
+		final String transformedUsername = getPrincipalNameTransformer().transform(username);
+		final SearchResult result = resolveUserEntry(username, transformedUsername, getSnapshotAttributes());
+		final String dn = result.getNameInNamespace();
+		
+		try {
+			Attributes attrs = result.getAttributes();
+			SecurityChallenge userChallenge = (SecurityChallenge)
+				new SecurityChallengeAttributesMapper(username).mapFromAttributes(attrs);
+			SecurityChallenge defaultChallenge = (SecurityChallenge)
+				new DefaultSecurityChallengeAttributesMapper(username).mapFromAttributes(attrs);
+			return new UserEntrySnapshot(username, dn, description, userChallenge, defaultChallenge);
+		} catch(NamingException ex) {
+			throw org.springframework.ldap.support.LdapUtils.convertLdapException(ex);
+		}
+	}
+	
+	/**
+	 * <p>Searches for the user's entry, caches its DN and passes it to
+	 * userEntryFound.</p>
+	 * @param username untransformed username, for logging
+	 * @param transformedUsername username to substitute into the filter
+	 * @param returningAttributes attributes to fetch with the entry
+	 * @return the single matching entry
+	 */
+	protected SearchResult resolveUserEntry(String username, String transformedUsername,
+			String[] returningAttributes) {
+		final SearchResult result;
+		long start = stats.begin(Operation.SEARCH_FOR_DN);
+		Throwable failure = null;
+		try {
+			result = searchForUserEntry(username, transformedUsername, returningAttributes);
+		} catch(RuntimeException ex) {
+			failure = ex;
+			throw ex;
+		} finally {
+			stats.end(Operation.SEARCH_FOR_DN, start, failure);
+		}
+		if(dnCache != null) {
+			dnCache.put(transformedUsername, result.getNameInNamespace());
+		}
+		userEntryFound(transformedUsername, result);
+		return result;
+	}
+	
+	/**
+	 * <p>Searches for the user's entry using the configured filter.</p>
+	 * @param username untransformed username, for logging
+	 * @param transformedUsername username to substitute into the filter
+	 * @param returningAttributes attributes to fetch with the entry
+	 * @return the single matching entry
+	 * @throws NameNotFoundException if there's no matching entry
+	 * @throws ObjectRetrievalException if there's more than one matching entry
+	 */
+	protected SearchResult searchForUserEntry(String username, String transformedUsername,
+			String[] returningAttributes) {
 		logger.debug("Searching for DN for " + usernameAttr + "=" + username);
 		
-		final List<String> cns = new ArrayList<String>();
+		final List<SearchResult> results = new ArrayList<SearchResult>();
         
         final SearchControls searchControls = getSearchControls();
+        searchControls.setReturningAttributes(returningAttributes);
+        searchControls.setCountLimit(USER_LOOKUP_COUNT_LIMIT);
         
         final String base = this.searchBase;
-        final String transformedUsername = getPrincipalNameTransformer().transform(username);
-        final String filter = LdapUtils.getFilterWithValues(getFilter(), transformedUsername);
+        final String filter = userFilterTemplate.format(transformedUsername);
         
-        this.getLdapTemplate().search(
-            new SearchExecutor() {
-                @SuppressWarnings("rawtypes")
-				public NamingEnumeration executeSearch(final DirContext context) throws NamingException {
-                    return context.search(base, filter, searchControls);
-                }
-            },
-            new NameClassPairCallbackHandler(){
-                public void handleNameClassPair(final NameClassPair nameClassPair) {
-                    cns.add(nameClassPair.getNameInNamespace());
-                }
-            });
+        try {
+            this.getLdapTemplate().search(
+                new SearchExecutor() {
+                    @SuppressWarnings("rawtypes")
+                    public NamingEnumeration executeSearch(final DirContext context) throws NamingException {
+                        return context.search(base, filter, searchControls);
+                    }
+                },
+                new NameClassPairCallbackHandler(){
+                    public void handleNameClassPair(final NameClassPair nameClassPair) {
+                        results.add((SearchResult) nameClassPair);
+                    }
+                });
+        } catch (final SizeLimitExceededException ex) {
+            // the entries found before the limit was hit are in results
+            logger.debug("Search for " + filter + " exceeded the count limit.");
+        }
         
-        if (cns.isEmpty()) {
+        if (results.isEmpty()) {
             logger.info("Search for " + filter + " returned 0 results.");
 			throw new NameNotFoundException("Couldn't find " + username + " in " + ldapContextSource.getBaseLdapPathAsString());
         }
-        if (cns.size() > 1) {
+        if (results.size() > 1) {
             logger.warn("Search for " + filter + " returned multiple results, which is not allowed.");
 			throw new ObjectRetrievalException("Multiple results found for " + username + " in " + ldapContextSource.getBaseLdapPathAsString());
         }
-		
-		logger.debug("Found name: " + cns.get(0));
-		return new DistinguishedName(cns.get(0));
+        
+        return results.get(0);
+	}
+	
+	/**
+	 * <p>Gets the names of the attributes read by the
+	 * SecurityChallengeAttributesMapper.</p>
+	 */
+	protected String[] getSecurityChallengeAttributes() {
+		List<String> attrs = new ArrayList<String>();
+		addAttributeNames(attrs, securityQuestionAttrs);
+		addAttributeNames(attrs, securityResponseAttrs);
+		return attrs.toArray(new String[attrs.size()]);
+	}
+	
+	/**
+	 * <p>Gets the names of the attributes read by the
+	 * DefaultSecurityChallengeAttributesMapper.</p>
+	 */
+	protected String[] getDefaultSecurityChallengeAttributes() {
+		List<String> attrs = new ArrayList<String>();
+		addAttributeNames(attrs, defaultResponseAttrs);
+		return attrs.toArray(new String[attrs.size()]);
+	}
+	
+	/**
+	 * <p>Gets the names of all attributes read by the security challenge
+	 * mappers.</p>
+	 */
+	protected String[] getSnapshotAttributes() {
+		List<String> attrs = new ArrayList<String>();
+		addAttributeNames(attrs, securityQuestionAttrs);
+		addAttributeNames(attrs, securityResponseAttrs);
+		addAttributeNames(attrs, defaultResponseAttrs);
+		addAttributeNames(attrs, Arrays.asList(getUserEntryAttributes()));
+		return attrs.toArray(new String[attrs.size()]);
+	}
+	
+	/**
+	 * <p>Gets the names of attributes to fetch whenever the user's entry is
+	 * searched for, e.g. to resolve the DN. Subclasses that need something
+	 * from every entry ask for it here and read it in userEntryFound, rather
+	 * than searching again. Default is none.</p>
+	 */
+	protected String[] getUserEntryAttributes() {
+		return new String[0];
+	}
+	
+	/**
+	 * <p>Called with every user entry found by a search, with the attributes
+	 * from getUserEntryAttributes. Default does nothing.</p>
+	 * @param transformedUsername username as substituted into the filter
+	 * @param result the user's entry
+	 */
+	protected void userEntryFound(String transformedUsername, SearchResult result) {
+	}
+	
+	/**
+	 * <p>Password expiry isn't known in general; see
+	 * ActiveDirectoryLdapServer.</p>
+	 * @return null
+	 */
+	@Override
+	public PasswordWarningInfo getPasswordWarningInfo(String username) {
+		return null;
+	}
+	
+	private static void addAttributeNames(List<String> attrs, List<String> names) {
+		if(names == null) {
+			return;
+		}
+		for(String name : names) {
+			if(name != null && !name.isEmpty() && !attrs.contains(name)) {
+				attrs.add(name);
+			}
+		}
+	}
+	
+	/**
+	 * <p>Gets the given user's DN from the DN cache.</p>
+	 * @param username untransformed username
+	 * @return the cached DN, or null if it isn't cached or caching is off
+	 */
+	protected DistinguishedName getCachedDn(String username) {
+		if(dnCache == null) {
+			return null;
+		}
+		String transformedUsername = getPrincipalNameTransformer().transform(username);
+		String cachedDn = dnCache.get(transformedUsername);
+		if(cachedDn == null) {
+			return null;
+		}
+		logger.debug("Found cached DN for " + transformedUsername + ": " + cachedDn);
+		return new DistinguishedName(cachedDn);
+	}
+	
+	/**
+	 * <p>Removes the given user's DN from the DN cache, if caching is
+	 * enabled. Called whenever an operation against a cached DN fails.</p>
+	 * @param username untransformed username
+	 */
+	protected void evictCachedDn(String username) {
+		if(dnCache != null) {
+			String transformedUsername = getPrincipalNameTransformer().transform(username);
+			logger.debug("Evicting cached DN for " + transformedUsername);
+			dnCache.remove(transformedUsername);
+		}
+	}
+
+	/**
+	 * <p>Gets the LDAP result code of a failed operation. JNDI only reports
+	 * it in the message, e.g. "[LDAP: error code 19 - Password is in
+	 * history]".</p>
+	 * @return the result code, or -1 if there isn't one
+	 */
+	protected static int getResultCode(Throwable ex) {
+		String message = ex.getMessage();
+		int start = message == null ? -1 : message.indexOf(RESULT_CODE_PREFIX);
+		if(start < 0) {
+			return -1;
+		}
+		int code = 0;
+		int digits = 0;
+		for(int i=start+RESULT_CODE_PREFIX.length();i<message.length() && Character.isDigit(message.charAt(i));i++) {
+			code = code * 10 + (message.charAt(i) - '0');
+			digits++;
+		}
+		return digits == 0 ? -1 : code;
+	}
+
+	/**
+	 * <p>Gets the server's explanation of a failed operation, the text after
+	 * the result code.</p>
+	 * @return the explanation, or null if there isn't one
+	 */
+	protected static String getDiagnosticMessage(Throwable ex) {
+		String message = ex.getMessage();
+		int start = message == null ? -1 : message.indexOf(RESULT_CODE_PREFIX);
+		start = start < 0 ? -1 : message.indexOf(" - ", start);
+		if(start < 0) {
+			return null;
+		}
+		start += 3;
+		int end = message.lastIndexOf(']');
+		String text = (end > start ? message.substring(start, end) : message.substring(start)).trim();
+		return text.length() == 0 ? null : text;
+	}
+
+	/**
+	 * <p>Creates the exception thrown when the server refuses a new
+	 * password.</p>
+	 */
+	protected static PasswordChangeRejectedException rejected(String messageKey, String defaultMessage,
+			Throwable cause) {
+		ChangePasswordResult result = new ChangePasswordResult();
+		result.setResult(ChangePasswordResult.Result.FAILURE);
+		result.setMessageKey(messageKey);
+		result.setDefaultMessage(defaultMessage);
+		return new PasswordChangeRejectedException(result, cause);
 	}
 
 	protected Filter createUserFilter(String username) {
@@ -290,15 +625,72 @@ public abstract class AbstractLdapServer implements LdapServer, InitializingBean
 	@Override
 	public boolean verifyPassword(String username, String password) {
 	
-		DistinguishedName dn = searchForDn(username);
+		if(password == null || password.isEmpty()) {
+			// an empty password would be an unauthenticated bind, which succeeds
+			logger.debug("Empty password for " + username);
+			return false;
+		}
+		
+		DistinguishedName dn = getCachedDn(username);
+		boolean cached = dn != null;
+		if(!cached) {
+			dn = searchForDn(username);
+		}
 		
+		long start = stats.begin(Operation.VERIFY_PASSWORD);
+		Throwable failure = null;
 		try {
-			logger.debug("Authenticating as " + dn.encode());
-			ldapContextSource.getContext(dn.encode(), password);
-			return true;
-		} catch(org.springframework.ldap.NamingException ex) {
-			logger.debug("NamingException verifying password",ex);
-			return false;
+			for(;;) {
+				if(bindVerifier != null) {
+					logger.debug("Verifying password for " + dn.encode() + " with the bind verifier");
+					try {
+						if(bindVerifier.verify(dn.encode(), password)) {
+							return true;
+						}
+					} catch(org.springframework.ldap.NameNotFoundException ex) {
+						if(!cached) {
+							throw ex;
+						}
+					}
+				} else {
+					DirContext ctx = null;
+					try {
+						logger.debug("Authenticating as " + dn.encode());
+						ctx = ldapContextSource.getContext(dn.encode(), password);
+						return true;
+					} catch(org.springframework.ldap.NamingException ex) {
+						logger.debug("NamingException verifying password",ex);
+						if(!(ex instanceof org.springframework.ldap.AuthenticationException
+								|| cached && ex instanceof org.springframework.ldap.NameNotFoundException)) {
+							// a wrong password isn't an error, anything else is
+							failure = ex;
+							return false;
+						}
+					} finally {
+						org.springframework.ldap.support.LdapUtils.closeContext(ctx);
+					}
+				}
+				
+				if(!cached) {
+					return false;
+				}
+				// a stale cached DN (e.g. the entry was moved or renamed) looks
+				// just like a wrong password, so look the DN up again and retry
+				// once if it has changed
+				evictCachedDn(username);
+				cached = false;
+				DistinguishedName current = searchForDn(username);
+				if(current.equals(dn)) {
+					return false;
+				}
+				logger.debug("DN for " + username + " changed from " + dn + " to " + current + "; retrying");
+				dn = current;
+			}
+		} catch(RuntimeException ex) {
+			failure = ex;
+			throw ex;
+		} finally {
+			stats.end(Operation.VERIFY_PASSWORD, start, failure);
 		}
 	}
 
@@ -306,6 +698,25 @@ public abstract class AbstractLdapServer implements LdapServer, InitializingBean
 		this.ldapContextSource = ldapContextSource;
 	}
 
+	/**
+	 * <p>Sets the context source used for searches and modifications, e.g. a
+	 * pooling context source. Defaults to the ldapContextSource.</p>
+	 * @param ldapTemplateContextSource context source for the LdapTemplate
+	 */
+	public void setLdapTemplateContextSource(ContextSource ldapTemplateContextSource) {
+		this.ldapTemplateContextSource = ldapTemplateContextSource;
+	}
+
+	/**
+	 * <p>Sets the verifier used to check passwords over pooled bind
+	 * connections. If not set, each check opens (and closes) a new
+	 * connection through the ldapContextSource.</p>
+	 * @param bindVerifier bind verifier
+	 */
+	public void setBindVerifier(LdapBindVerifier bindVerifier) {
+		this.bindVerifier = bindVerifier;
+	}
+
 	public List<String> getSecurityQuestionAttrs() {
 		return securityQuestionAttrs;
 	}
@@ -451,9 +862,50 @@ public abstract class AbstractLdapServer implements LdapServer, InitializingBean
 		this.principalNameTransformer = principalNameTransformer;
 	}
 
+	/**
+	 * <p>Gets the username to DN cache, which exposes hit/miss counters.</p>
+	 * @return the DN cache, or null if DN caching is disabled
+	 */
+	public ExpiringLruCache<String,String> getDnCache() {
+		return dnCache;
+	}
+
+	public void setDnCache(ExpiringLruCache<String,String> dnCache) {
+		this.dnCache = dnCache;
+	}
+
+	/**
+	 * <p>Gets the statistics of this server's operations.</p>
+	 */
+	public LdapServerStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * <p>Sets whether the statistics are registered with JMX. Default is
+	 * true.</p>
+	 */
+	public void setJmxEnabled(boolean jmxEnabled) {
+		this.jmxEnabled = jmxEnabled;
+	}
+
 	@Override
 	public void afterPropertiesSet() throws Exception {
-		ldapTemplate = new LdapTemplate(ldapContextSource);
+		stats = new LdapServerStats(description);
+		if(jmxEnabled) {
+			stats.register();
+		}
+		ldapTemplate = new LdapTemplate(ldapTemplateContextSource != null
+				? ldapTemplateContextSource : ldapContextSource);
 		ldapTemplate.setIgnorePartialResultException(ignorePartialResultException);
+		userFilterTemplate = LdapFilterTemplate.compile(filter);
+		usernameAttrFilterTemplate = LdapFilterTemplate.compile(usernameAttr + "=%u");
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		if(stats != null) {
+			stats.unregister();
+		}
 	}
 }
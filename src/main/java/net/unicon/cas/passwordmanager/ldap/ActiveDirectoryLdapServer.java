@@ -1,25 +1,81 @@
 package net.unicon.cas.passwordmanager.ldap;
 
 import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
 import javax.naming.directory.BasicAttribute;
 import javax.naming.directory.DirContext;
 import javax.naming.directory.ModificationItem;
+import javax.naming.directory.SearchResult;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import net.unicon.cas.passwordmanager.PasswordManagerException;
+import net.unicon.cas.passwordmanager.cache.ExpiringLruCache;
+import net.unicon.cas.passwordmanager.service.PasswordWarningInfo;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.ldap.core.AttributesMapper;
+import org.springframework.ldap.core.DistinguishedName;
 
+/**
+ * <p>Active Directory server. Works out when passwords expire from the
+ * user's pwdLastSet and the domain's maxPwdAge. maxPwdAge is read from the
+ * domain object (by default the RootDSE's defaultNamingContext) in the
+ * background every timeBetweenMaxPwdAgeRefreshSeconds;
+ * pwdLastSet and userAccountControl are fetched with every search for the
+ * user's entry, so getting a user's expiry normally needs no search of its
+ * own.</p>
+ *
+ * <p>Password changes normally bind as the user to check the old password,
+ * then reset the password administratively, which skips the domain's
+ * history and minimum age rules. With userPasswordChange, a change is
+ * instead a single modify that deletes the old unicodePwd and adds the new
+ * one, which AD treats as the user changing their own password and checks
+ * against the whole password policy.</p>
+ */
 public class ActiveDirectoryLdapServer extends AbstractLdapServer implements
-	LdapServer, InitializingBean {
+	LdapServer, InitializingBean, DisposableBean {
 
-	@SuppressWarnings("unused")
 	private final Log logger = LogFactory.getLog(this.getClass());
 	public static final long ONE_HUNDRED_NANOSECOND_DIVISOR = 10000000L;
 	public static final long JAVA_TO_WIN_TIME_CONVERSION = 11644473600000L;
+	/** userAccountControl flag of accounts whose password never expires */
+	private static final int UF_DONT_EXPIRE_PASSWD = 0x10000;
+	/** cached pwdLastSet of accounts whose password never expires */
+	private static final long PASSWORD_NEVER_EXPIRES = Long.MIN_VALUE;
+	/** maxPwdAge before it has been read */
+	private static final long UNKNOWN = -1;
+	private static final String DEFAULT_NAMING_CONTEXT = "defaultNamingContext";
+	// Win32 errors AD reports in the diagnostic message of a failed change
+	private static final int ERROR_ACCESS_DENIED = 0x5;
+	private static final int ERROR_INVALID_PASSWORD = 0x56;
+	private static final int ERROR_PASSWORD_RESTRICTION = 0x52d;
+	private static final int ERROR_LOGON_FAILURE = 0x52e;
+	private static final int ERROR_ACCOUNT_DISABLED = 0x533;
+	private static final int ERROR_ACCOUNT_LOCKED_OUT = 0x775;
+
+	private int passwordWarnAgeDays = 14;
+	private String maxPwdAgeAttribute = "maxPwdAge";
+	private String maxPwdAgeDn = "";
+	private String uacAttribute = "userAccountControl";
+	private String pwdLastSetAttribute = "pwdLastSet";
+	private long timeBetweenMaxPwdAgeRefreshSeconds = 3600;
+	private ExpiringLruCache<String,Long> pwdLastSetCache;
+	private boolean userPasswordChange = false;
+	// in 100-nanosecond intervals; 0 if passwords never expire
+	private volatile long maxPwdAge = UNKNOWN;
+	// maxPwdAgeDn relative to the context source's base, once resolved
+	private volatile DistinguishedName maxPwdAgeName;
+	private ScheduledExecutorService maxPwdAgeRefresher;
 	
 	@Override
 	public void setPassword(String username, String password) {
@@ -31,8 +87,231 @@ public class ActiveDirectoryLdapServer extends AbstractLdapServer implements
 				passwordAttribute);
 
 		ldapModify(username, modificationItems);
+		evictPwdLastSet(username);
+	}
+
+	@Override
+	public boolean changePassword(String username, String oldPassword, String newPassword) {
+		if(!userPasswordChange) {
+			return super.changePassword(username, oldPassword, newPassword);
+		}
+		if(oldPassword == null || oldPassword.isEmpty()) {
+			logger.debug("Empty old password for " + username);
+			return false;
+		}
+
+		byte[] encodedOldPassword = encodePassword(oldPassword);
+		byte[] encodedNewPassword = encodePassword(newPassword);
+		ModificationItem[] modificationItems = new ModificationItem[] {
+			new ModificationItem(DirContext.REMOVE_ATTRIBUTE, new BasicAttribute(passwordAttr, encodedOldPassword)),
+			new ModificationItem(DirContext.ADD_ATTRIBUTE, new BasicAttribute(passwordAttr, encodedNewPassword))
+		};
+		try {
+			ldapModify(username, modificationItems);
+		} catch(org.springframework.ldap.NamingException ex) {
+			int error = getWin32Error(getDiagnosticMessage(ex));
+			switch(error) {
+			case ERROR_INVALID_PASSWORD:
+			case ERROR_LOGON_FAILURE:
+				logger.debug("Old password rejected for " + username);
+				return false;
+			case ERROR_PASSWORD_RESTRICTION:
+				throw rejected("cas.pm.newpassword.ad.restriction", "The new password does not meet the "
+						+ "length, complexity or history requirements, or the password was changed too recently.", ex);
+			case ERROR_ACCOUNT_LOCKED_OUT:
+				throw rejected("cas.pm.newpassword.ad.locked", "Your account is locked.", ex);
+			case ERROR_ACCOUNT_DISABLED:
+				throw rejected("cas.pm.newpassword.ad.disabled", "Your account is disabled.", ex);
+			case ERROR_ACCESS_DENIED:
+				throw rejected("cas.pm.newpassword.ad.denied", "You are not allowed to change your password.", ex);
+			default:
+				throw ex;
+			}
+		} finally {
+			Arrays.fill(encodedOldPassword, (byte) 0);
+			Arrays.fill(encodedNewPassword, (byte) 0);
+		}
+		evictPwdLastSet(username);
+		return true;
+	}
+
+	/**
+	 * <p>Gets the Win32 error of a failed operation from AD's diagnostic
+	 * message, e.g. 0x52d from "0000052D: AtrErr: DSID-03191083, #1: ...
+	 * data 0". A non-zero "data" field, as in bind failures, takes
+	 * precedence over the leading code.</p>
+	 * @return the error, or -1 if there isn't one
+	 */
+	private static int getWin32Error(String diagnostic) {
+		if(diagnostic == null) {
+			return -1;
+		}
+		int data = diagnostic.indexOf("data ");
+		if(data >= 0) {
+			int error = parseHex(diagnostic, data + 5, diagnostic.length());
+			if(error > 0) {
+				return error;
+			}
+		}
+		int colon = diagnostic.indexOf(':');
+		return colon == 8 ? parseHex(diagnostic, 0, 8) : -1;
+	}
+
+	// hex digits from start up to end or the first non-hex character
+	private static int parseHex(String s, int start, int end) {
+		int value = 0;
+		int digits = 0;
+		for(int i=start;i<end && digits<8;i++) {
+			int digit = Character.digit(s.charAt(i), 16);
+			if(digit < 0) {
+				break;
+			}
+			value = value << 4 | digit;
+			digits++;
+		}
+		return digits == 0 ? -1 : value;
+	}
+
+	/**
+	 * <p>Gets when the user's password expires, from the cached pwdLastSet
+	 * if there is one. Returns null until maxPwdAge has been read.</p>
+	 */
+	@Override
+	public PasswordWarningInfo getPasswordWarningInfo(String username) {
+		long maxAge = maxPwdAge;
+		if(maxAge == UNKNOWN) {
+			logger.debug("maxPwdAge not read yet; can't tell when " + username + "'s password expires");
+			return null;
+		}
+
+		String transformedUsername = getPrincipalNameTransformer().transform(username);
+		Long lastSet = pwdLastSetCache == null ? null : pwdLastSetCache.get(transformedUsername);
+		if(lastSet == null) {
+			SearchResult result = resolveUserEntry(username, transformedUsername, getUserEntryAttributes());
+			lastSet = readPwdLastSet(result.getAttributes());
+		}
+
+		if(lastSet == PASSWORD_NEVER_EXPIRES || maxAge == 0) {
+			return new PasswordWarningInfo(0, PasswordWarningInfo.NEVER, false);
+		}
+		if(lastSet == 0) {
+			// must change at next logon
+			return new PasswordWarningInfo(0, 0, true);
+		}
+
+		long now = getCurrentWin32Time();
+		long ageSeconds = Math.max(0, (now - lastSet) / ONE_HUNDRED_NANOSECOND_DIVISOR);
+		long secondsUntilExpiry = Math.max(0, (lastSet + maxAge - now) / ONE_HUNDRED_NANOSECOND_DIVISOR);
+		boolean warn = secondsUntilExpiry < passwordWarnAgeDays * 86400L;
+		return new PasswordWarningInfo(ageSeconds, secondsUntilExpiry, warn);
+	}
+
+	@Override
+	protected String[] getUserEntryAttributes() {
+		return new String[] { pwdLastSetAttribute, uacAttribute };
+	}
+
+	@Override
+	protected void userEntryFound(String transformedUsername, SearchResult result) {
+		if(pwdLastSetCache != null) {
+			pwdLastSetCache.put(transformedUsername, readPwdLastSet(result.getAttributes()));
+		}
+	}
+
+	private Long readPwdLastSet(Attributes attrs) {
+		try {
+			Attribute uac = attrs.get(uacAttribute);
+			if(uac != null && (Long.parseLong(uac.get().toString()) & UF_DONT_EXPIRE_PASSWD) != 0) {
+				return PASSWORD_NEVER_EXPIRES;
+			}
+			Attribute lastSet = attrs.get(pwdLastSetAttribute);
+			if(lastSet == null) {
+				// not readable by the bind user, or not an AD user; don't warn
+				return PASSWORD_NEVER_EXPIRES;
+			}
+			return Long.parseLong(lastSet.get().toString());
+		} catch(NamingException ex) {
+			throw org.springframework.ldap.support.LdapUtils.convertLdapException(ex);
+		} catch(NumberFormatException ex) {
+			logger.warn("Couldn't parse " + pwdLastSetAttribute + " or " + uacAttribute, ex);
+			return PASSWORD_NEVER_EXPIRES;
+		}
+	}
+
+	private void evictPwdLastSet(String username) {
+		if(pwdLastSetCache != null) {
+			pwdLastSetCache.remove(getPrincipalNameTransformer().transform(username));
+		}
+	}
+
+	/**
+	 * <p>Reads the domain's maxPwdAge. On failure the previous value is
+	 * kept until the next refresh.</p>
+	 */
+	protected void refreshMaxPwdAge() {
+		try {
+			DistinguishedName dn = resolveMaxPwdAgeDn();
+			if(dn == null) {
+				return;
+			}
+			Object value = lookupAttribute(dn, maxPwdAgeAttribute);
+			if(value == null) {
+				logger.warn("No " + maxPwdAgeAttribute + " on '" + dn + "' at " + getDescription());
+				return;
+			}
+			// stored as a negative interval; the smallest long means never
+			long raw = Long.parseLong(value.toString());
+			maxPwdAge = raw == Long.MIN_VALUE ? 0 : Math.abs(raw);
+			logger.debug("Read " + maxPwdAgeAttribute + " of " + maxPwdAge / ONE_HUNDRED_NANOSECOND_DIVISOR / 86400
+					+ " days from " + getDescription());
+		} catch(RuntimeException ex) {
+			logger.warn("Couldn't read " + maxPwdAgeAttribute + " from " + getDescription(), ex);
+		}
 	}
 	
+	/**
+	 * <p>Works out the domain object's DN relative to the context source's
+	 * base: the configured maxPwdAgeDn, or else the RootDSE's
+	 * defaultNamingContext. Returns null if the RootDSE doesn't have one.</p>
+	 */
+	private DistinguishedName resolveMaxPwdAgeDn() {
+		DistinguishedName dn = maxPwdAgeName;
+		if(dn != null) {
+			return dn;
+		}
+		if(maxPwdAgeDn.length() > 0) {
+			dn = new DistinguishedName(maxPwdAgeDn);
+		} else {
+			Object value = lookupAttribute(DistinguishedName.EMPTY_PATH, DEFAULT_NAMING_CONTEXT);
+			if(value == null) {
+				logger.warn("No " + DEFAULT_NAMING_CONTEXT + " in the RootDSE of " + getDescription()
+						+ "; set maxPwdAgeDn, or use a context source without a base");
+				return null;
+			}
+			dn = new DistinguishedName(value.toString());
+			logger.debug("Reading " + maxPwdAgeAttribute + " from " + dn + " at " + getDescription());
+		}
+		DistinguishedName base = getBase();
+		if(!base.isEmpty()) {
+			dn.removeFirst(base);
+		}
+		maxPwdAgeName = dn;
+		return dn;
+	}
+
+	private Object lookupAttribute(DistinguishedName dn, final String attribute) {
+		return ldapTemplate.lookup(dn, new String[] { attribute }, new AttributesMapper() {
+			public Object mapFromAttributes(Attributes attrs) throws NamingException {
+				Attribute attr = attrs.get(attribute);
+				return attr == null ? null : attr.get();
+			}
+		});
+	}
+
+	private DistinguishedName getBase() {
+		return ldapContextSource == null ? DistinguishedName.EMPTY_PATH : ldapContextSource.getBaseLdapPath();
+	}
+
 	protected long getCurrentWin32Time() {
 		Date now = new Date();
 		long nowInWin32 = (now.getTime() + JAVA_TO_WIN_TIME_CONVERSION) * 10000L;
@@ -51,5 +330,99 @@ public class ActiveDirectoryLdapServer extends AbstractLdapServer implements
 	@Override
 	public void afterPropertiesSet() throws Exception {
 		super.afterPropertiesSet();
+		DistinguishedName base = getBase();
+		if(maxPwdAgeDn.length() > 0 && !base.isEmpty() && !new DistinguishedName(maxPwdAgeDn).startsWith(base)) {
+			throw new IllegalArgumentException("maxPwdAgeDn " + maxPwdAgeDn
+					+ " isn't under the context source's base " + base);
+		}
+		maxPwdAgeRefresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "pm-ad-max-pwd-age-" + getDescription());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		// the first read happens in the background too, so a domain
+		// controller that's down doesn't hold up startup
+		maxPwdAgeRefresher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				refreshMaxPwdAge();
+			}
+		}, 0, timeBetweenMaxPwdAgeRefreshSeconds, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		if(maxPwdAgeRefresher != null) {
+			maxPwdAgeRefresher.shutdownNow();
+		}
+		super.destroy();
+	}
+
+	/**
+	 * <p>Sets how many days before expiry users are warned. Default is
+	 * 14.</p>
+	 */
+	public void setPasswordWarnAgeDays(int passwordWarnAgeDays) {
+		this.passwordWarnAgeDays = passwordWarnAgeDays;
+	}
+
+	/**
+	 * <p>Sets the domain attribute holding the maximum password age. Default
+	 * is maxPwdAge.</p>
+	 */
+	public void setMaxPwdAgeAttribute(String maxPwdAgeAttribute) {
+		this.maxPwdAgeAttribute = maxPwdAgeAttribute;
+	}
+
+	/**
+	 * <p>Sets the full DN of the domain object, e.g. dc=example,dc=edu. It
+	 * must be under the context source's base, if that has one. Default is
+	 * the RootDSE's defaultNamingContext, which can only be read through a
+	 * context source without a base.</p>
+	 */
+	public void setMaxPwdAgeDn(String maxPwdAgeDn) {
+		this.maxPwdAgeDn = maxPwdAgeDn == null ? "" : maxPwdAgeDn;
+	}
+
+	/**
+	 * <p>Sets the user attribute holding the account flags. Default is
+	 * userAccountControl.</p>
+	 */
+	public void setUacAttribute(String uacAttribute) {
+		this.uacAttribute = uacAttribute;
+	}
+
+	/**
+	 * <p>Sets the user attribute holding when the password was last set.
+	 * Default is pwdLastSet.</p>
+	 */
+	public void setPwdLastSetAttribute(String pwdLastSetAttribute) {
+		this.pwdLastSetAttribute = pwdLastSetAttribute;
+	}
+
+	/**
+	 * <p>Sets how often maxPwdAge is read again. Default is 3600.</p>
+	 */
+	public void setTimeBetweenMaxPwdAgeRefreshSeconds(long timeBetweenMaxPwdAgeRefreshSeconds) {
+		this.timeBetweenMaxPwdAgeRefreshSeconds = timeBetweenMaxPwdAgeRefreshSeconds;
+	}
+
+	/**
+	 * <p>Sets whether password changes are made as the user changing their
+	 * own password, in a single modify, rather than as a bind followed by
+	 * an administrative reset. Default is false.</p>
+	 */
+	public void setUserPasswordChange(boolean userPasswordChange) {
+		this.userPasswordChange = userPasswordChange;
+	}
+
+	/**
+	 * <p>Sets the cache of users' pwdLastSet, filled by every search for a
+	 * user's entry. If not set, each expiry check searches for the
+	 * user.</p>
+	 */
+	public void setPwdLastSetCache(ExpiringLruCache<String,Long> pwdLastSetCache) {
+		this.pwdLastSetCache = pwdLastSetCache;
 	}
 }
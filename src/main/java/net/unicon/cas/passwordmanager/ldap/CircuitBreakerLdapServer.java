@@ -0,0 +1,481 @@
+package net.unicon.cas.passwordmanager.ldap;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.directory.ModificationItem;
+import javax.validation.constraints.NotNull;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import net.unicon.cas.passwordmanager.LdapServerUnavailableException;
+import net.unicon.cas.passwordmanager.flow.SecurityChallenge;
+import net.unicon.cas.passwordmanager.service.PasswordWarningInfo;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.ldap.NameNotFoundException;
+import org.springframework.ldap.core.ObjectRetrievalException;
+
+/**
+ * <p>Wraps an LdapServer in a circuit breaker so that a server that is down
+ * or too slow is skipped straight away instead of making every request wait
+ * for it to time out.</p>
+ *
+ * <p>The outcome of the last windowSize calls is kept. Once at least
+ * minimumCalls have been made, the breaker opens if the share of calls that
+ * failed to reach the server, or the share that took longer than
+ * slowCallMillis, reaches its threshold. Calls that reach the server but
+ * find no user or a bad password count as successes.</p>
+ *
+ * <p>While open, every call throws LdapServerUnavailableException. After
+ * openSeconds the breaker goes half-open and a single background probe
+ * searches the server for probeUsername, bypassing the DN cache; if the
+ * server answers within slowCallMillis the breaker closes, otherwise it
+ * opens again.</p>
+ */
+public class CircuitBreakerLdapServer implements LdapServer, InitializingBean, DisposableBean {
+
+	/**
+	 * <p>Circuit breaker states.</p>
+	 */
+	public enum State {
+		/** calls go through */
+		CLOSED,
+		/** calls are rejected */
+		OPEN,
+		/** calls are rejected while the background probe runs */
+		HALF_OPEN
+	}
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+
+	@NotNull
+	private LdapServer target;
+	private int windowSize = 20;
+	private int minimumCalls = 10;
+	private int failureRateThreshold = 50;
+	private int slowCallRateThreshold = 80;
+	private long slowCallMillis = 2000;
+	private long openSeconds = 30;
+	private String probeUsername = "cas-pm-health-probe";
+
+	private volatile State state = State.CLOSED;
+	private volatile long lastStateChange = System.currentTimeMillis();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private final AtomicLong openCount = new AtomicLong();
+	private ScheduledExecutorService probeExecutor;
+	// runs the probe's search, so the probe can give up on it
+	private ExecutorService probeCallExecutor;
+
+	// ring buffer of the last windowSize outcomes, guarded by this
+	private boolean[] failedCalls;
+	private boolean[] slowCalls;
+	private int next;
+	private int recorded;
+	private int failures;
+	private int slow;
+
+	/**
+	 * <p>A call against the target server.</p>
+	 */
+	private interface Call<T> {
+		T call();
+	}
+
+	private <T> T execute(Call<T> call) {
+		if(state != State.CLOSED) {
+			rejectedCount.incrementAndGet();
+			throw new LdapServerUnavailableException(getDescription()
+					+ " is unavailable (circuit breaker " + state + ")");
+		}
+
+		long start = System.currentTimeMillis();
+		try {
+			T result = call.call();
+			record(false, System.currentTimeMillis() - start);
+			return result;
+		} catch(RuntimeException ex) {
+			record(isFailure(ex), System.currentTimeMillis() - start);
+			throw ex;
+		}
+	}
+
+	private synchronized void record(boolean failed, long millis) {
+		boolean isSlow = millis >= slowCallMillis;
+		if(recorded == windowSize) {
+			// overwrite the oldest outcome
+			if(failedCalls[next]) {
+				failures--;
+			}
+			if(slowCalls[next]) {
+				slow--;
+			}
+		} else {
+			recorded++;
+		}
+		failedCalls[next] = failed;
+		slowCalls[next] = isSlow;
+		if(failed) {
+			failures++;
+		}
+		if(isSlow) {
+			slow++;
+		}
+		next = (next + 1) % windowSize;
+
+		if(state == State.CLOSED && recorded >= minimumCalls
+				&& (failures * 100 >= failureRateThreshold * recorded
+				|| slow * 100 >= slowCallRateThreshold * recorded)) {
+			logger.warn("Opening circuit breaker for " + getDescription() + ": "
+					+ failures + " failed and " + slow + " slow of the last " + recorded + " calls");
+			open();
+		}
+	}
+
+	// caller must hold the lock
+	private void open() {
+		state = State.OPEN;
+		lastStateChange = System.currentTimeMillis();
+		openCount.incrementAndGet();
+		probeExecutor.schedule(new Runnable() {
+			public void run() {
+				probe();
+			}
+		}, openSeconds, TimeUnit.SECONDS);
+	}
+
+	private synchronized void close() {
+		state = State.CLOSED;
+		lastStateChange = System.currentTimeMillis();
+		next = 0;
+		recorded = 0;
+		failures = 0;
+		slow = 0;
+	}
+
+	private void probe() {
+		synchronized(this) {
+			state = State.HALF_OPEN;
+			lastStateChange = System.currentTimeMillis();
+		}
+
+		boolean healthy;
+		long start = System.currentTimeMillis();
+		Future<Object> check = probeCallExecutor.submit(new Callable<Object>() {
+			public Object call() {
+				target.checkAvailable(probeUsername);
+				return null;
+			}
+		});
+		try {
+			check.get(slowCallMillis, TimeUnit.MILLISECONDS);
+			healthy = true;
+		} catch(ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			healthy = cause instanceof NameNotFoundException || cause instanceof ObjectRetrievalException
+					|| !isFailure(cause);
+			if(!healthy) {
+				logger.debug("Health probe for " + getDescription() + " failed", cause);
+			}
+		} catch(TimeoutException ex) {
+			logger.debug("Health probe for " + getDescription() + " timed out after " + slowCallMillis + " ms");
+			check.cancel(true);
+			healthy = false;
+		} catch(InterruptedException ex) {
+			// shutting down
+			Thread.currentThread().interrupt();
+			check.cancel(true);
+			return;
+		}
+		long millis = System.currentTimeMillis() - start;
+
+		if(healthy && millis < slowCallMillis) {
+			logger.info("Closing circuit breaker for " + getDescription()
+					+ ", probe answered in " + millis + " ms");
+			close();
+		} else {
+			synchronized(this) {
+				if(!probeExecutor.isShutdown()) {
+					open();
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>Decides whether an exception means the server couldn't be reached,
+	 * as opposed to an answer such as "no such user" or "bad password".</p>
+	 */
+	protected boolean isFailure(Throwable ex) {
+		for(Throwable t = ex; t != null; t = t.getCause()) {
+			if(t instanceof org.springframework.ldap.CommunicationException
+					|| t instanceof org.springframework.ldap.ServiceUnavailableException
+					|| t instanceof org.springframework.ldap.TimeLimitExceededException
+					|| t instanceof javax.naming.CommunicationException
+					|| t instanceof javax.naming.ServiceUnavailableException
+					|| t instanceof javax.naming.TimeLimitExceededException
+					|| t instanceof IOException) {
+				return true;
+			}
+			if(t.getCause() == t) {
+				break;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void ldapModify(final String username, final ModificationItem[] modificationItems) {
+		execute(new Call<Object>() {
+			public Object call() {
+				target.ldapModify(username, modificationItems);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public void setPassword(final String username, final String password) {
+		execute(new Call<Object>() {
+			public Object call() {
+				target.setPassword(username, password);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public boolean verifyPassword(final String username, final String password) {
+		return execute(new Call<Boolean>() {
+			public Boolean call() {
+				return target.verifyPassword(username, password);
+			}
+		});
+	}
+
+	@Override
+	public boolean changePassword(final String username, final String oldPassword, final String newPassword) {
+		return execute(new Call<Boolean>() {
+			public Boolean call() {
+				return target.changePassword(username, oldPassword, newPassword);
+			}
+		});
+	}
+
+	@Override
+	public SecurityChallenge getUserSecurityChallenge(final String username) {
+		return execute(new Call<SecurityChallenge>() {
+			public SecurityChallenge call() {
+				return target.getUserSecurityChallenge(username);
+			}
+		});
+	}
+
+	@Override
+	public void setUserSecurityChallenge(final String username,
+			final SecurityChallenge securityChallenge) {
+		execute(new Call<Object>() {
+			public Object call() {
+				target.setUserSecurityChallenge(username, securityChallenge);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public SecurityChallenge getDefaultSecurityChallenge(final String username) {
+		return execute(new Call<SecurityChallenge>() {
+			public SecurityChallenge call() {
+				return target.getDefaultSecurityChallenge(username);
+			}
+		});
+	}
+
+	@Override
+	public String lookupDn(final String username) {
+		return execute(new Call<String>() {
+			public String call() {
+				return target.lookupDn(username);
+			}
+		});
+	}
+
+	@Override
+	public UserEntrySnapshot getUserEntrySnapshot(final String username) {
+		return execute(new Call<UserEntrySnapshot>() {
+			public UserEntrySnapshot call() {
+				return target.getUserEntrySnapshot(username);
+			}
+		});
+	}
+
+	@Override
+	public PasswordWarningInfo getPasswordWarningInfo(final String username) {
+		return execute(new Call<PasswordWarningInfo>() {
+			public PasswordWarningInfo call() {
+				return target.getPasswordWarningInfo(username);
+			}
+		});
+	}
+
+	@Override
+	public void checkAvailable(String username) {
+		// not through the breaker, so it can be used to probe an open one
+		target.checkAvailable(username);
+	}
+
+	@Override
+	public String getDescription() {
+		return target.getDescription();
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * <p>Gets the time of the last state change in milliseconds since the
+	 * epoch.</p>
+	 */
+	public long getLastStateChange() {
+		return lastStateChange;
+	}
+
+	/**
+	 * <p>Gets the percentage of calls in the window that failed.</p>
+	 */
+	public synchronized int getFailureRate() {
+		return recorded == 0 ? 0 : failures * 100 / recorded;
+	}
+
+	/**
+	 * <p>Gets the percentage of calls in the window that were slow.</p>
+	 */
+	public synchronized int getSlowCallRate() {
+		return recorded == 0 ? 0 : slow * 100 / recorded;
+	}
+
+	/**
+	 * <p>Gets the number of calls rejected because the breaker wasn't
+	 * closed.</p>
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	/**
+	 * <p>Gets the number of times the breaker has opened.</p>
+	 */
+	public long getOpenCount() {
+		return openCount.get();
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		if(windowSize < 1 || minimumCalls < 1 || minimumCalls > windowSize) {
+			throw new IllegalArgumentException("minimumCalls must be between 1 and windowSize");
+		}
+		failedCalls = new boolean[windowSize];
+		slowCalls = new boolean[windowSize];
+		probeExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "pm-ldap-probe-" + getDescription());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		probeCallExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "pm-ldap-probe-call-" + getDescription());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		if(probeExecutor != null) {
+			probeExecutor.shutdownNow();
+		}
+		if(probeCallExecutor != null) {
+			probeCallExecutor.shutdownNow();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return getDescription() + " [state=" + state + ", failureRate=" + getFailureRate()
+				+ "%, slowCallRate=" + getSlowCallRate() + "%, rejected=" + getRejectedCount()
+				+ ", opened=" + getOpenCount() + "]";
+	}
+
+	public void setTarget(LdapServer target) {
+		this.target = target;
+	}
+
+	/**
+	 * <p>Sets the number of recent calls the failure and slow call rates are
+	 * computed over. Default is 20.</p>
+	 */
+	public void setWindowSize(int windowSize) {
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * <p>Sets the number of calls needed before the breaker can open.
+	 * Default is 10.</p>
+	 */
+	public void setMinimumCalls(int minimumCalls) {
+		this.minimumCalls = minimumCalls;
+	}
+
+	/**
+	 * <p>Sets the percentage of failed calls that opens the breaker. Default
+	 * is 50.</p>
+	 */
+	public void setFailureRateThreshold(int failureRateThreshold) {
+		this.failureRateThreshold = failureRateThreshold;
+	}
+
+	/**
+	 * <p>Sets the percentage of slow calls that opens the breaker. Default
+	 * is 80.</p>
+	 */
+	public void setSlowCallRateThreshold(int slowCallRateThreshold) {
+		this.slowCallRateThreshold = slowCallRateThreshold;
+	}
+
+	/**
+	 * <p>Sets the number of milliseconds after which a call counts as slow.
+	 * Default is 2000.</p>
+	 */
+	public void setSlowCallMillis(long slowCallMillis) {
+		this.slowCallMillis = slowCallMillis;
+	}
+
+	/**
+	 * <p>Sets the number of seconds the breaker stays open before the server
+	 * is probed. Default is 30.</p>
+	 */
+	public void setOpenSeconds(long openSeconds) {
+		this.openSeconds = openSeconds;
+	}
+
+	/**
+	 * <p>Sets the username searched for by the health probe. It doesn't need
+	 * to exist; the probe only checks that the server answers.</p>
+	 */
+	public void setProbeUsername(String probeUsername) {
+		this.probeUsername = probeUsername;
+	}
+}
@@ -0,0 +1,152 @@
+package net.unicon.cas.passwordmanager.ldap;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.directory.DirContext;
+
+import org.springframework.ldap.core.ContextSource;
+import org.springframework.ldap.pool.DirContextType;
+import org.springframework.ldap.pool.factory.PoolingContextSource;
+
+/**
+ * <p>Pooling context source that keeps statistics about the pool: how long
+ * callers wait to borrow a connection, how many borrows fail, and how
+ * often new connections have to be opened to the directory. The pool
+ * itself (sizes, borrow timeout, validation and idle eviction) is
+ * configured exactly as a regular PoolingContextSource.</p>
+ */
+public class InstrumentedPoolingContextSource extends PoolingContextSource {
+
+	private final long startTime = System.currentTimeMillis();
+	private final AtomicLong borrows = new AtomicLong();
+	private final AtomicLong borrowFailures = new AtomicLong();
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	private final AtomicLong connectionsCreated = new AtomicLong();
+
+	@Override
+	protected DirContext getContext(DirContextType dirContextType) {
+		long start = System.nanoTime();
+		try {
+			DirContext ctx = super.getContext(dirContextType);
+			borrows.incrementAndGet();
+			return ctx;
+		} catch(RuntimeException ex) {
+			borrowFailures.incrementAndGet();
+			throw ex;
+		} finally {
+			recordWait(System.nanoTime() - start);
+		}
+	}
+
+	private void recordWait(long waitNanos) {
+		totalWaitNanos.addAndGet(waitNanos);
+		long max = maxWaitNanos.get();
+		while(waitNanos > max && !maxWaitNanos.compareAndSet(max, waitNanos)) {
+			max = maxWaitNanos.get();
+		}
+	}
+
+	@Override
+	public void setContextSource(ContextSource contextSource) {
+		super.setContextSource(new CountingContextSource(contextSource));
+	}
+
+	/**
+	 * <p>Gets the number of connections successfully borrowed from the pool.</p>
+	 */
+	public long getBorrowCount() {
+		return borrows.get();
+	}
+
+	/**
+	 * <p>Gets the number of borrow attempts that failed, either because the
+	 * pool was exhausted for longer than maxWait or because a new connection
+	 * couldn't be opened.</p>
+	 */
+	public long getBorrowFailureCount() {
+		return borrowFailures.get();
+	}
+
+	/**
+	 * <p>Gets the average time in milliseconds callers waited to borrow a
+	 * connection, including the time to open new connections.</p>
+	 */
+	public double getAverageWaitMillis() {
+		long attempts = borrows.get() + borrowFailures.get();
+		if(attempts == 0) {
+			return 0;
+		}
+		return totalWaitNanos.get() / (attempts * 1000000.0);
+	}
+
+	/**
+	 * <p>Gets the longest time in milliseconds a caller waited to borrow a
+	 * connection.</p>
+	 */
+	public double getMaxWaitMillis() {
+		return maxWaitNanos.get() / 1000000.0;
+	}
+
+	/**
+	 * <p>Gets the number of physical connections opened to the directory.</p>
+	 */
+	public long getConnectionsCreated() {
+		return connectionsCreated.get();
+	}
+
+	/**
+	 * <p>Gets the average number of physical connections opened per minute
+	 * since this pool was started. A steadily climbing rate usually means
+	 * maxIdle is too low or the evictor is too aggressive.</p>
+	 */
+	public double getConnectionCreationRatePerMinute() {
+		long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+		return connectionsCreated.get() * 60000.0 / elapsed;
+	}
+
+	@Override
+	public String toString() {
+		return "InstrumentedPoolingContextSource[active=" + getNumActive()
+			+ ", idle=" + getNumIdle()
+			+ ", borrows=" + getBorrowCount()
+			+ ", borrowFailures=" + getBorrowFailureCount()
+			+ ", avgWaitMillis=" + getAverageWaitMillis()
+			+ ", maxWaitMillis=" + getMaxWaitMillis()
+			+ ", connectionsCreated=" + getConnectionsCreated() + "]";
+	}
+
+	/**
+	 * <p>Wraps the target context source so that every physical connection
+	 * the pool opens is counted.</p>
+	 */
+	private class CountingContextSource implements ContextSource {
+
+		private final ContextSource target;
+
+		CountingContextSource(ContextSource target) {
+			this.target = target;
+		}
+
+		@Override
+		public DirContext getReadOnlyContext() {
+			DirContext ctx = target.getReadOnlyContext();
+			connectionsCreated.incrementAndGet();
+			return ctx;
+		}
+
+		@Override
+		public DirContext getReadWriteContext() {
+			DirContext ctx = target.getReadWriteContext();
+			connectionsCreated.incrementAndGet();
+			return ctx;
+		}
+
+		@Override
+		public DirContext getContext(String principal, String credentials) {
+			DirContext ctx = target.getContext(principal, credentials);
+			connectionsCreated.incrementAndGet();
+			return ctx;
+		}
+	}
+}
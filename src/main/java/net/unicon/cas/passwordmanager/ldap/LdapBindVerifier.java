@@ -0,0 +1,373 @@
+package net.unicon.cas.passwordmanager.ldap;
+
+import java.lang.reflect.Method;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.CommunicationException;
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.ldap.ExtendedRequest;
+import javax.naming.ldap.ExtendedResponse;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.ldap.core.support.AbstractContextSource;
+import org.springframework.ldap.support.LdapUtils;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * <p>Verifies user passwords by binding as the user over a small pool of
+ * dedicated connections. Each connection is opened once and then re-bound
+ * for every check, which saves a connection (and TLS handshake) per
+ * verification. These connections are only used for binds, and for
+ * extended operations sent as the user straight after one.</p>
+ *
+ * <p>If fastBind is enabled, new connections are put into Active Directory
+ * "fast bind" mode (LDAP_SERVER_FAST_BIND_OID), in which AD only checks
+ * the password and skips building a security token for the user. If the
+ * server doesn't support it, regular simple binds are used instead.</p>
+ *
+ * <p>Connections are opened with the context source's environment (SSL,
+ * referral, binary attribute and timeout settings). At most maxActive
+ * checks use a connection at once; a check beyond that waits up to maxWait
+ * milliseconds for another to hand its connection back.</p>
+ */
+public class LdapBindVerifier implements InitializingBean, DisposableBean {
+
+	/** Active Directory extended operation enabling fast concurrent binds. */
+	public static final String FAST_BIND_OID = "1.2.840.113556.1.4.1781";
+
+	private static final int DEFAULT_MAX_IDLE = 5;
+	private static final int DEFAULT_MAX_ACTIVE = 10;
+	private static final long DEFAULT_MAX_WAIT = 10000L;
+	private static final long DEFAULT_MAX_IDLE_MILLIS = 60000L;
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+	private AbstractContextSource contextSource;
+	private Map<String,String> baseEnvironmentProperties;
+	private int maxIdle = DEFAULT_MAX_IDLE;
+	private int maxActive = DEFAULT_MAX_ACTIVE;
+	private long maxWait = DEFAULT_MAX_WAIT;
+	private long maxIdleMillis = DEFAULT_MAX_IDLE_MILLIS;
+	private boolean fastBind = false;
+	private volatile boolean fastBindSupported = true;
+	private Hashtable<String,Object> environment;
+	private BlockingQueue<PooledConnection> idleConnections;
+	// one permit per connection in use
+	private Semaphore activePermits;
+
+	/**
+	 * <p>Checks a password by binding as the given DN.</p>
+	 * @param dn DN of the user
+	 * @param password password to check
+	 * @return true if the bind succeeded, false if the credentials were
+	 * rejected
+	 * @throws org.springframework.ldap.NamingException if the directory
+	 * couldn't be reached
+	 */
+	public boolean verify(String dn, String password) {
+		return execute(dn, password, null);
+	}
+
+	/**
+	 * <p>Binds as the given DN and, if the password is right, sends an
+	 * extended operation as that user over the same connection, e.g. for the
+	 * user to change their own password. Saves opening a connection of its
+	 * own for the operation. Only the bind is retried if the connection has
+	 * been dropped, never the operation.</p>
+	 * @param dn DN of the user
+	 * @param password the user's password
+	 * @param request the operation, or null just to check the password
+	 * @return true if the bind and operation succeeded, false if the
+	 * credentials were rejected
+	 * @throws org.springframework.ldap.NamingException if the directory
+	 * couldn't be reached or the operation failed
+	 */
+	public boolean execute(String dn, String password, ExtendedRequest request) {
+
+		if(password == null || password.isEmpty()) {
+			// an empty password would be an unauthenticated bind, which succeeds
+			return false;
+		}
+		if(request != null && fastBind) {
+			throw new IllegalStateException("Fast bind connections can't send extended operations");
+		}
+
+		try {
+			PooledConnection connection;
+			try {
+				connection = bind(checkOut(false), dn, password);
+			} catch(CommunicationException ex) {
+				// the server may have dropped an idle connection; retry once on a new one
+				logger.debug("Communication error binding over a pooled connection, retrying", ex);
+				connection = bind(checkOut(true), dn, password);
+			}
+			if(connection == null) {
+				return false;
+			}
+			boolean reusable = false;
+			try {
+				if(request != null) {
+					connection.ctx.extendedOperation(request);
+				}
+				reusable = true;
+				return true;
+			} finally {
+				checkIn(connection, reusable);
+			}
+		} catch(NamingException ex) {
+			throw LdapUtils.convertLdapException(ex);
+		}
+	}
+
+	// binds a checked out connection as the user; null, with the connection
+	// checked back in, if the credentials were rejected
+	private PooledConnection bind(PooledConnection connection, String dn, String password)
+			throws NamingException {
+		boolean bound = false;
+		try {
+			LdapContext ctx = connection.ctx;
+			ctx.addToEnvironment(Context.SECURITY_AUTHENTICATION, "simple");
+			ctx.addToEnvironment(Context.SECURITY_PRINCIPAL, dn);
+			ctx.addToEnvironment(Context.SECURITY_CREDENTIALS, password);
+			// re-authenticates on the existing connection
+			ctx.reconnect(null);
+			bound = true;
+			return connection;
+		} catch(javax.naming.AuthenticationException ex) {
+			logger.debug("Bind failed for " + dn);
+			return null;
+		} finally {
+			if(!bound) {
+				checkIn(connection, false);
+			}
+		}
+	}
+
+	// waits for a permit, then reuses an idle connection (unless a new one
+	// is wanted) or opens one
+	private PooledConnection checkOut(boolean fresh) {
+		acquirePermit();
+		try {
+			return fresh ? newConnection() : borrow();
+		} catch(RuntimeException ex) {
+			activePermits.release();
+			throw ex;
+		}
+	}
+
+	private void checkIn(PooledConnection connection, boolean reusable) {
+		// a connection whose bind or operation failed is in an undefined
+		// state, so it's closed rather than handed to the next caller
+		if(reusable) {
+			release(connection);
+		} else {
+			close(connection);
+		}
+		activePermits.release();
+	}
+
+	private PooledConnection borrow() {
+		long now = System.currentTimeMillis();
+		PooledConnection connection;
+		while((connection = idleConnections.poll()) != null) {
+			if(now - connection.lastUsed < maxIdleMillis) {
+				return connection;
+			}
+			close(connection);
+		}
+		return newConnection();
+	}
+
+	private void release(PooledConnection connection) {
+		connection.lastUsed = System.currentTimeMillis();
+		if(!idleConnections.offer(connection)) {
+			close(connection);
+		}
+	}
+
+	private void close(PooledConnection connection) {
+		try {
+			connection.ctx.close();
+		} catch(NamingException ex) {
+			logger.debug("Error closing bind connection", ex);
+		}
+	}
+
+	private PooledConnection newConnection() {
+		LdapContext ctx;
+		try {
+			ctx = new InitialLdapContext(new Hashtable<String,Object>(environment), null);
+		} catch(NamingException ex) {
+			throw LdapUtils.convertLdapException(ex);
+		}
+
+		if(fastBind && fastBindSupported) {
+			try {
+				ctx.extendedOperation(new FastBindRequest());
+			} catch(NamingException ex) {
+				logger.warn("Server doesn't support fast bind, using regular binds: " + ex.getMessage());
+				fastBindSupported = false;
+			}
+		}
+		return new PooledConnection(ctx);
+	}
+
+	private void acquirePermit() {
+		boolean acquired;
+		try {
+			acquired = activePermits.tryAcquire(maxWait, TimeUnit.MILLISECONDS);
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			acquired = false;
+		}
+		if(!acquired) {
+			throw LdapUtils.convertLdapException(new ServiceUnavailableException(
+					"No bind connection available after " + maxWait + "ms (maxActive " + maxActive + ")"));
+		}
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		if(contextSource == null) {
+			throw new IllegalStateException("contextSource is required");
+		}
+		environment = anonymousEnvironment(contextSource);
+		// these connections are kept open by this class, not by JNDI's pool
+		environment.remove(AbstractContextSource.SUN_LDAP_POOLING_FLAG);
+		if(baseEnvironmentProperties != null) {
+			environment.putAll(baseEnvironmentProperties);
+		}
+		// open anonymously; fast bind mode can only be enabled before the first bind
+		environment.put(Context.SECURITY_AUTHENTICATION, "none");
+		environment.remove(Context.SECURITY_PRINCIPAL);
+		environment.remove(Context.SECURITY_CREDENTIALS);
+
+		int active = Math.max(1, maxActive);
+		activePermits = new Semaphore(active, true);
+		idleConnections = new ArrayBlockingQueue<PooledConnection>(Math.max(1, Math.min(maxIdle, active)));
+	}
+
+	// the environment the context source opens its own connections with, less credentials
+	@SuppressWarnings("unchecked")
+	private static Hashtable<String,Object> anonymousEnvironment(AbstractContextSource contextSource) {
+		Method getAnonymousEnv = ReflectionUtils.findMethod(AbstractContextSource.class, "getAnonymousEnv");
+		ReflectionUtils.makeAccessible(getAnonymousEnv);
+		Hashtable<String,Object> env = (Hashtable<String,Object>) ReflectionUtils.invokeMethod(getAnonymousEnv,
+				contextSource);
+		// a copy, as the context source may return its cached environment
+		return new Hashtable<String,Object>(env);
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		PooledConnection connection;
+		while((connection = idleConnections.poll()) != null) {
+			close(connection);
+		}
+	}
+
+	/**
+	 * <p>Sets the context source whose URLs the bind connections are opened
+	 * to.</p>
+	 */
+	public void setContextSource(AbstractContextSource contextSource) {
+		this.contextSource = contextSource;
+	}
+
+	/**
+	 * <p>Sets JNDI environment properties for the bind connections that
+	 * override or add to the context source's.</p>
+	 */
+	public void setBaseEnvironmentProperties(Map<String,String> baseEnvironmentProperties) {
+		this.baseEnvironmentProperties = baseEnvironmentProperties;
+	}
+
+	/**
+	 * <p>Sets the maximum number of idle bind connections kept open.</p>
+	 */
+	public void setMaxIdle(int maxIdle) {
+		this.maxIdle = maxIdle;
+	}
+
+	/**
+	 * <p>Sets the maximum number of bind connections in use at once.</p>
+	 */
+	public void setMaxActive(int maxActive) {
+		this.maxActive = maxActive;
+	}
+
+	/**
+	 * <p>Sets how long in milliseconds a check waits for a bind connection
+	 * when maxActive are already in use.</p>
+	 */
+	public void setMaxWait(long maxWait) {
+		this.maxWait = maxWait;
+	}
+
+	/**
+	 * <p>Sets how long in milliseconds an idle bind connection is kept before
+	 * it's closed instead of reused.</p>
+	 */
+	public void setMaxIdleMillis(long maxIdleMillis) {
+		this.maxIdleMillis = maxIdleMillis;
+	}
+
+	/**
+	 * <p>Enables Active Directory fast bind mode on bind connections. Fast
+	 * bind connections can't send extended operations.</p>
+	 */
+	public void setFastBind(boolean fastBind) {
+		this.fastBind = fastBind;
+	}
+
+	public boolean isFastBindSupported() {
+		return fastBind && fastBindSupported;
+	}
+
+	public int getNumIdle() {
+		return idleConnections.size();
+	}
+
+	private static class PooledConnection {
+
+		private final LdapContext ctx;
+		private long lastUsed;
+
+		PooledConnection(LdapContext ctx) {
+			this.ctx = ctx;
+			this.lastUsed = System.currentTimeMillis();
+		}
+	}
+
+	private static class FastBindRequest implements ExtendedRequest {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public String getID() {
+			return FAST_BIND_OID;
+		}
+
+		@Override
+		public byte[] getEncodedValue() {
+			return null;
+		}
+
+		@Override
+		public ExtendedResponse createExtendedResponse(String id, byte[] berValue,
+				int offset, int length) throws NamingException {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package net.unicon.cas.passwordmanager.ldap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.ldap.core.LdapEncoder;
+
+/**
+ * <p>Search filter with username placeholders, parsed once so that building
+ * a filter for a user is a single pass with no regular expressions. Uses
+ * the same placeholders as the CAS LDAP authentication handlers:</p>
+ * <ul>
+ *   <li>%u - the full username</li>
+ *   <li>%U - the part of the username before the '@'</li>
+ *   <li>%d - the part of the username after the '@'</li>
+ *   <li>%1 to %9 - the components of the domain, starting from the last
+ *     (e.g. for user@example.edu, %1 is "edu" and %2 is "example")</li>
+ * </ul>
+ * <p>Substituted values are always escaped for use in a filter. A
+ * placeholder the username has no value for is left as is.</p>
+ */
+public final class LdapFilterTemplate {
+
+	private final String filter;
+	// literals[i] comes before placeholders[i]; literals has one extra
+	// trailing element
+	private final String[] literals;
+	private final char[] placeholders;
+
+	private LdapFilterTemplate(String filter, String[] literals, char[] placeholders) {
+		this.filter = filter;
+		this.literals = literals;
+		this.placeholders = placeholders;
+	}
+
+	/**
+	 * <p>Parses a filter template.</p>
+	 * @param filter filter with placeholders, e.g. "sAMAccountName=%u"
+	 * @return compiled template
+	 */
+	public static LdapFilterTemplate compile(String filter) {
+		if(filter == null) {
+			throw new IllegalArgumentException("Argument 'filter' cannot be null");
+		}
+
+		List<String> literals = new ArrayList<String>();
+		StringBuilder placeholders = new StringBuilder();
+		StringBuilder literal = new StringBuilder();
+
+		for(int i=0;i<filter.length();i++) {
+			char c = filter.charAt(i);
+			if(c == '%' && i + 1 < filter.length() && isPlaceholder(filter.charAt(i + 1))) {
+				literals.add(literal.toString());
+				literal.setLength(0);
+				placeholders.append(filter.charAt(++i));
+			} else {
+				literal.append(c);
+			}
+		}
+		literals.add(literal.toString());
+
+		return new LdapFilterTemplate(filter, literals.toArray(new String[literals.size()]),
+				placeholders.toString().toCharArray());
+	}
+
+	private static boolean isPlaceholder(char c) {
+		return c == 'u' || c == 'U' || c == 'd' || (c >= '1' && c <= '9');
+	}
+
+	/**
+	 * <p>Builds the filter for the given username.</p>
+	 * @param username username to substitute
+	 * @return filter with escaped values substituted
+	 */
+	public String format(String username) {
+		StringBuilder sb = new StringBuilder(filter.length() + 2 * username.length());
+		int at = username.indexOf('@');
+		String user = at < 0 ? username : username.substring(0, at);
+		String domain = at < 0 ? null : username.substring(at + 1);
+
+		for(int i=0;i<placeholders.length;i++) {
+			sb.append(literals[i]);
+			String value = valueOf(placeholders[i], username, user, domain);
+			if(value == null) {
+				sb.append('%').append(placeholders[i]);
+			} else {
+				sb.append(LdapEncoder.filterEncode(value));
+			}
+		}
+		sb.append(literals[placeholders.length]);
+		return sb.toString();
+	}
+
+	private static String valueOf(char placeholder, String username, String user, String domain) {
+		switch(placeholder) {
+			case 'u':
+				return username;
+			case 'U':
+				return user;
+			case 'd':
+				return domain;
+			default:
+				return domainComponent(domain, placeholder - '0');
+		}
+	}
+
+	// gets the n-th dot-separated component of the domain, counting from the end
+	private static String domainComponent(String domain, int n) {
+		if(domain == null) {
+			return null;
+		}
+		int end = domain.length();
+		for(int i=1;i<n;i++) {
+			end = domain.lastIndexOf('.', end - 1);
+			if(end < 0) {
+				return null;
+			}
+		}
+		int start = domain.lastIndexOf('.', end - 1) + 1;
+		return domain.substring(start, end);
+	}
+
+	@Override
+	public String toString() {
+		return filter;
+	}
+}
@@ -3,6 +3,7 @@ package net.unicon.cas.passwordmanager.ldap;
 import javax.naming.directory.ModificationItem;
 
 import net.unicon.cas.passwordmanager.flow.SecurityChallenge;
+import net.unicon.cas.passwordmanager.service.PasswordWarningInfo;
 
 public interface LdapServer {
 	
@@ -12,12 +13,59 @@ public interface LdapServer {
 	
 	public boolean verifyPassword(String username, String password);
 	
+	/**
+	 * <p>Changes the user's password if the old password is right.</p>
+	 * @param username user whose password to change
+	 * @param oldPassword the user's current password
+	 * @param newPassword the new password
+	 * @return false if the old password is wrong
+	 * @throws net.unicon.cas.passwordmanager.PasswordChangeRejectedException
+	 * if the server refuses the new password
+	 */
+	public boolean changePassword(String username, String oldPassword, String newPassword);
+	
 	public SecurityChallenge getUserSecurityChallenge(String username);
 	
 	public void setUserSecurityChallenge(String username, SecurityChallenge securityChallenge);
 	
 	public SecurityChallenge getDefaultSecurityChallenge(String username);
 	
+	/**
+	 * <p>Looks up the DN of the user's entry.</p>
+	 * @param username user to look up
+	 * @return the user's DN
+	 * @throws org.springframework.ldap.NameNotFoundException if the user
+	 * isn't in this server
+	 * @throws org.springframework.ldap.core.ObjectRetrievalException if
+	 * more than one entry matches the user
+	 */
+	public String lookupDn(String username);
+	
+	/**
+	 * <p>Fetches the user's DN, custom security challenge and default
+	 * security challenge with a single search.</p>
+	 * @param username user to look up
+	 * @return snapshot of the user's entry
+	 */
+	public UserEntrySnapshot getUserEntrySnapshot(String username);
+	
+	/**
+	 * <p>Gets when the user's password expires and whether the user should
+	 * be warned about it.</p>
+	 * @param username user to look up
+	 * @return expiry information, or null if the server doesn't know
+	 */
+	public PasswordWarningInfo getPasswordWarningInfo(String username);
+	
+	/**
+	 * <p>Searches the server for the user's entry without using any cache,
+	 * to check that the server answers.</p>
+	 * @param username user to search for; it doesn't need to exist
+	 * @throws org.springframework.ldap.NameNotFoundException if the user
+	 * isn't in this server, which still means the server answered
+	 */
+	public void checkAvailable(String username);
+	
 	/**
 	 * <p>Gets a user-specified description for logging purposes</p>
 	 * @return server description
@@ -1,35 +1,62 @@
 package net.unicon.cas.passwordmanager.ldap;
 
-import java.io.UnsupportedEncodingException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-
+import javax.naming.NamingException;
+import javax.naming.OperationNotSupportedException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.BasicAttribute;
 import javax.naming.directory.DirContext;
 import javax.naming.directory.ModificationItem;
+import javax.naming.ldap.ExtendedRequest;
+import javax.naming.ldap.LdapContext;
 
-import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import net.unicon.cas.passwordmanager.ldap.hash.DigestPasswordHashScheme;
+import net.unicon.cas.passwordmanager.ldap.hash.PasswordHashScheme;
+import net.unicon.cas.passwordmanager.ldap.hash.PasswordHashSchemeRegistry;
+import net.unicon.cas.passwordmanager.monitor.LdapServerStats.Operation;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.ldap.core.ContextExecutor;
+import org.springframework.ldap.core.DistinguishedName;
+import org.springframework.ldap.support.LdapUtils;
 
+/**
+ * <p>OpenLDAP server. Passwords are either hashed here with
+ * encryptionAlgorithm and written with a modify, or, with
+ * passwordModifyExtendedOperation, sent to the server with the Password
+ * Modify extended operation (RFC 3062) for it to hash under its own policy.
+ * A password change is sent over a connection bound as the user, so
+ * ppolicy treats it as the user changing their own password rather than an
+ * administrative reset, and its verdict on the new password is passed on to
+ * the user. Setting a password is sent as the manager.</p>
+ */
 public class OpenLdapLdapServer extends AbstractLdapServer implements
 		LdapServer, InitializingBean {
 
+	private static final int NO_SUCH_ATTRIBUTE = 16;
+	private static final int CONSTRAINT_VIOLATION = 19;
+	private static final int INVALID_CREDENTIALS = 49;
+
 	private final Log logger = LogFactory.getLog(this.getClass());
 	private String encryptionAlgorithm;
+	private PasswordHashSchemeRegistry hashSchemeRegistry;
+	private PasswordHashScheme hashScheme;
+	private boolean passwordModifyExtendedOperation = false;
 	
 	@Override
 	public void setPassword(String username, String password) {
 		
 		logger.debug("Setting password for " + username);
 		
+		if(passwordModifyExtendedOperation) {
+			passwordModify(username, null, password);
+			return;
+		}
+		
 		String passwordText = null;
 		
-		if(encryptionAlgorithm != null && !encryptionAlgorithm.isEmpty()) {
-			String encryptedPassword = encrypt(password);
-			passwordText = "{" + encryptionAlgorithm + "}" + encryptedPassword;
+		if(hashScheme != null) {
+			passwordText = hashSchemeRegistry.hash(hashScheme, password);
 		} else {
 			logger.debug("Setting unencrypted password for " + username +"! Consider setting the "
 					+ "encryptionAlgorithm property of this bean in passwordManagerContext.xml!");
@@ -42,30 +69,142 @@ public class OpenLdapLdapServer extends AbstractLdapServer implements
 		
 		ldapModify(username, modificationItems);
 	}
-	
-	private String encrypt(String plainText) {
-		
-		MessageDigest md = null;
+
+	@Override
+	public boolean changePassword(String username, String oldPassword, String newPassword) {
+		if(!passwordModifyExtendedOperation) {
+			return super.changePassword(username, oldPassword, newPassword);
+		}
+		if(oldPassword == null || oldPassword.isEmpty()) {
+			logger.debug("Empty old password for " + username);
+			return false;
+		}
+		return passwordModify(username, oldPassword, newPassword);
+	}
+
+	/**
+	 * <p>Sets the password with the Password Modify extended operation, as
+	 * the user if the old password is given, otherwise as the manager.</p>
+	 * @return false if the old password is wrong
+	 */
+	private boolean passwordModify(String username, String oldPassword, String newPassword) {
+		DistinguishedName dn = searchForDn(username);
+		String base = ldapContextSource.getBaseLdapPathAsString();
+		String userDn = base == null || base.isEmpty() ? dn.encode() : dn.encode() + "," + base;
+		logger.debug("Password modify extended operation for " + userDn);
+
+		final PasswordModifyExtendedRequest request = new PasswordModifyExtendedRequest(userDn, oldPassword, newPassword);
+		long start = getStats().begin(Operation.PASSWORD_MODIFY);
+		Throwable failure = null;
 		try {
-			md = MessageDigest.getInstance(encryptionAlgorithm);
-			md.update(plainText.getBytes("UTF-8"));
-		} catch(NoSuchAlgorithmException ex) {
-			logger.error("No such algorithm: " + encryptionAlgorithm);
-			throw new RuntimeException("No such algorithm: " + encryptionAlgorithm,ex);
-		} catch(UnsupportedEncodingException ex) {
-			logger.error("Unsupported encoding: UTF-8");
-			throw new RuntimeException("Unsupported encoding: UTF-8",ex);
+			if(oldPassword == null) {
+				ldapTemplate.executeReadWrite(new ContextExecutor() {
+					public Object executeWithContext(DirContext ctx) throws NamingException {
+						return extendedOperation(ctx, request);
+					}
+				});
+			} else if(!passwordModifyAsUser(userDn, oldPassword, request)) {
+				logger.debug("Old password rejected for " + userDn);
+				return false;
+			}
+			return true;
+		} catch(org.springframework.ldap.NamingException ex) {
+			int resultCode = getResultCode(ex);
+			if(oldPassword != null && (resultCode == INVALID_CREDENTIALS || resultCode == NO_SUCH_ATTRIBUTE)) {
+				// slapd checks the old password by deleting it as a value
+				logger.debug("Old password rejected for " + userDn);
+				return false;
+			}
+			failure = ex;
+			if(resultCode == CONSTRAINT_VIOLATION) {
+				String reason = getDiagnosticMessage(ex);
+				logger.debug("New password rejected for " + userDn + ": " + reason);
+				throw rejected("cas.pm.newpassword.rejected",
+						reason != null ? reason : "The new password does not meet the password policy", ex);
+			}
+			// the cached DN may be stale (e.g. the entry was moved or renamed)
+			evictCachedDn(username);
+			throw ex;
+		} catch(RuntimeException ex) {
+			failure = ex;
+			throw ex;
+		} finally {
+			getStats().end(Operation.PASSWORD_MODIFY, start, failure);
+			request.clear();
 		}
-		byte bytes[] = md.digest();
-		return Base64.encodeBase64String(bytes);
 	}
 
+	// binds as the user and sends the request over that connection; false if
+	// the old password is wrong
+	private boolean passwordModifyAsUser(String userDn, String oldPassword, ExtendedRequest request) {
+		if(bindVerifier != null) {
+			// its connections are already open, so this is just a bind and the operation
+			return bindVerifier.execute(userDn, oldPassword, request);
+		}
+		DirContext ctx;
+		try {
+			ctx = ldapContextSource.getContext(userDn, oldPassword);
+		} catch(org.springframework.ldap.AuthenticationException ex) {
+			return false;
+		}
+		try {
+			extendedOperation(ctx, request);
+			return true;
+		} catch(NamingException ex) {
+			throw LdapUtils.convertLdapException(ex);
+		} finally {
+			LdapUtils.closeContext(ctx);
+		}
+	}
+
+	private static Object extendedOperation(DirContext ctx, ExtendedRequest request) throws NamingException {
+		if(!(ctx instanceof LdapContext)) {
+			throw new OperationNotSupportedException("Extended operations need an LdapContext, not "
+					+ ctx.getClass().getName());
+		}
+		return ((LdapContext) ctx).extendedOperation(request);
+	}
+	
+	/**
+	 * <p>Sets the hash scheme passwords are stored with, by its name in the
+	 * hash scheme registry, e.g. SSHA256 or PBKDF2-SHA256. Any other
+	 * MessageDigest algorithm is used unsalted with its name as the prefix,
+	 * as before there were schemes. If not set, passwords are stored in the
+	 * clear.</p>
+	 */
 	public void setEncryptionAlgorithm(String encryptionAlgorithm) {
 		this.encryptionAlgorithm = encryptionAlgorithm;
 	}
+
+	/**
+	 * <p>Sets whether passwords are sent to the server with the Password
+	 * Modify extended operation for it to hash, instead of being hashed
+	 * here. encryptionAlgorithm is then ignored, and password changes are
+	 * sent as the user. Default is false.</p>
+	 */
+	public void setPasswordModifyExtendedOperation(boolean passwordModifyExtendedOperation) {
+		this.passwordModifyExtendedOperation = passwordModifyExtendedOperation;
+	}
+
+	/**
+	 * <p>Sets the registry hash schemes are looked up in and run through. If
+	 * not set, the built-in schemes are run on the calling thread.</p>
+	 */
+	public void setHashSchemeRegistry(PasswordHashSchemeRegistry hashSchemeRegistry) {
+		this.hashSchemeRegistry = hashSchemeRegistry;
+	}
 	
 	@Override
 	public void afterPropertiesSet() throws Exception {
 		super.afterPropertiesSet();
+		if(hashSchemeRegistry == null) {
+			hashSchemeRegistry = new PasswordHashSchemeRegistry();
+		}
+		if(encryptionAlgorithm != null && !encryptionAlgorithm.isEmpty()) {
+			hashScheme = hashSchemeRegistry.getScheme(encryptionAlgorithm);
+			if(hashScheme == null) {
+				hashScheme = new DigestPasswordHashScheme(encryptionAlgorithm, encryptionAlgorithm, 0);
+			}
+		}
 	}
 }
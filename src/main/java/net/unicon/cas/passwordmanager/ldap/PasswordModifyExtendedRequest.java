@@ -0,0 +1,133 @@
+package net.unicon.cas.passwordmanager.ldap;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+import javax.naming.NamingException;
+import javax.naming.ldap.ExtendedRequest;
+import javax.naming.ldap.ExtendedResponse;
+
+import net.unicon.cas.passwordmanager.PasswordManagerException;
+
+/**
+ * <p>The Password Modify extended operation (RFC 3062). The server checks
+ * the old password, if given, and hashes the new one according to its own
+ * policy. The encoded request holds both passwords, so call clear() once
+ * the operation is done.</p>
+ */
+class PasswordModifyExtendedRequest implements ExtendedRequest {
+
+	private static final long serialVersionUID = 1L;
+	public static final String OID = "1.3.6.1.4.1.4203.1.11.1";
+	private static final int SEQUENCE = 0x30;
+	private static final int USER_IDENTITY = 0x80;
+	private static final int OLD_PASSWORD = 0x81;
+	private static final int NEW_PASSWORD = 0x82;
+
+	private final byte[] encoded;
+
+	/**
+	 * @param userDn the user's full DN
+	 * @param oldPassword the old password, or null for an administrative
+	 * reset
+	 * @param newPassword the new password
+	 */
+	PasswordModifyExtendedRequest(String userDn, String oldPassword, String newPassword) {
+		byte[] user = utf8(userDn);
+		byte[] oldBytes = oldPassword == null ? null : utf8(oldPassword);
+		byte[] newBytes = utf8(newPassword);
+
+		// a SEQUENCE of the optional userIdentity [0], oldPasswd [1] and
+		// newPasswd [2], each an OCTET STRING
+		int content = elementLength(user.length) + elementLength(newBytes.length)
+				+ (oldBytes == null ? 0 : elementLength(oldBytes.length));
+		encoded = new byte[elementLength(content)];
+		int pos = header(SEQUENCE, content, 0);
+		pos = element(USER_IDENTITY, user, pos);
+		if(oldBytes != null) {
+			pos = element(OLD_PASSWORD, oldBytes, pos);
+			Arrays.fill(oldBytes, (byte) 0);
+		}
+		element(NEW_PASSWORD, newBytes, pos);
+		Arrays.fill(newBytes, (byte) 0);
+	}
+
+	private static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch(UnsupportedEncodingException ex) {
+			throw new PasswordManagerException("UTF-8 not supported", ex);
+		}
+	}
+
+	// tag, length and contents
+	private static int elementLength(int length) {
+		return 1 + lengthOfLength(length) + length;
+	}
+
+	private static int lengthOfLength(int length) {
+		if(length < 0x80) {
+			return 1;
+		}
+		int bytes = 1;
+		for(int n=length;n!=0;n>>>=8) {
+			bytes++;
+		}
+		return bytes;
+	}
+
+	private int header(int tag, int length, int pos) {
+		encoded[pos++] = (byte) tag;
+		if(length < 0x80) {
+			encoded[pos++] = (byte) length;
+			return pos;
+		}
+		int lengthBytes = lengthOfLength(length) - 1;
+		encoded[pos++] = (byte) (0x80 | lengthBytes);
+		for(int i=lengthBytes-1;i>=0;i--) {
+			encoded[pos++] = (byte) (length >>> (8 * i));
+		}
+		return pos;
+	}
+
+	private int element(int tag, byte[] value, int pos) {
+		pos = header(tag, value.length, pos);
+		System.arraycopy(value, 0, encoded, pos, value.length);
+		return pos + value.length;
+	}
+
+	/**
+	 * <p>Zeroes the encoded request, which contains the passwords.</p>
+	 */
+	void clear() {
+		Arrays.fill(encoded, (byte) 0);
+	}
+
+	@Override
+	public String getID() {
+		return OID;
+	}
+
+	@Override
+	public byte[] getEncodedValue() {
+		return encoded;
+	}
+
+	@Override
+	public ExtendedResponse createExtendedResponse(final String id, byte[] berValue, int offset, int length)
+			throws NamingException {
+		// the response only has a value when the server generated the
+		// password, which it doesn't when one is sent
+		return new ExtendedResponse() {
+			private static final long serialVersionUID = 1L;
+
+			public String getID() {
+				return id;
+			}
+
+			public byte[] getEncodedValue() {
+				return null;
+			}
+		};
+	}
+}
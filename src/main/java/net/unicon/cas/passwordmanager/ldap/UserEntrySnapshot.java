@@ -0,0 +1,62 @@
+package net.unicon.cas.passwordmanager.ldap;
+
+import java.io.Serializable;
+
+import net.unicon.cas.passwordmanager.flow.SecurityChallenge;
+
+/**
+ * <p>Everything the password manager needs to know about a user's directory
+ * entry, fetched with a single search: the entry's DN, the user's custom
+ * security challenge and the default security challenge built from the
+ * user's default response attributes.</p>
+ */
+public class UserEntrySnapshot implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+	private final String username;
+	private final String dn;
+	private final String serverDescription;
+	private final SecurityChallenge userSecurityChallenge;
+	private final SecurityChallenge defaultSecurityChallenge;
+
+	public UserEntrySnapshot(String username, String dn, String serverDescription,
+			SecurityChallenge userSecurityChallenge,
+			SecurityChallenge defaultSecurityChallenge) {
+		this.username = username;
+		this.dn = dn;
+		this.serverDescription = serverDescription;
+		this.userSecurityChallenge = userSecurityChallenge;
+		this.defaultSecurityChallenge = defaultSecurityChallenge;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public String getDn() {
+		return dn;
+	}
+
+	/**
+	 * <p>Gets the description of the server the entry was found on.</p>
+	 */
+	public String getServerDescription() {
+		return serverDescription;
+	}
+
+	/**
+	 * <p>Gets the user's custom security challenge.</p>
+	 * @return the custom challenge, or null if the user hasn't set one up
+	 */
+	public SecurityChallenge getUserSecurityChallenge() {
+		return userSecurityChallenge;
+	}
+
+	/**
+	 * <p>Gets the default security challenge with the user's responses.</p>
+	 * @return the default challenge, or null if any response is missing
+	 */
+	public SecurityChallenge getDefaultSecurityChallenge() {
+		return defaultSecurityChallenge;
+	}
+}
@@ -0,0 +1,130 @@
+package net.unicon.cas.passwordmanager.ldap.hash;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * <p>Base for hash schemes. Each thread keeps its own buffers for the
+ * password's UTF-8 bytes, the salt and the output, so hashing a password
+ * creates little besides the returned string. The password bytes are
+ * zeroed after each hash.</p>
+ */
+public abstract class AbstractPasswordHashScheme implements PasswordHashScheme {
+
+	private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>() {
+		@Override
+		protected Buffers initialValue() {
+			return new Buffers();
+		}
+	};
+
+	private final String name;
+	private final String prefix;
+
+	/**
+	 * @param name the name the scheme is configured by
+	 * @param prefix what the stored value starts with, e.g. {SSHA}
+	 */
+	protected AbstractPasswordHashScheme(String name, String prefix) {
+		this.name = name;
+		this.prefix = prefix;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public boolean isExpensive() {
+		return false;
+	}
+
+	public final String hash(String password) {
+		Buffers buffers = BUFFERS.get();
+		int length = buffers.encode(password);
+		try {
+			StringBuilder out = buffers.out;
+			out.setLength(0);
+			out.append(prefix);
+			hash(buffers.password, length, buffers, out);
+			return out.toString();
+		} finally {
+			Arrays.fill(buffers.password, 0, length, (byte) 0);
+		}
+	}
+
+	/**
+	 * <p>Hashes a password, appending the result after the prefix.</p>
+	 * @param password the password's UTF-8 bytes
+	 * @param length how many of them there are
+	 */
+	protected abstract void hash(byte[] password, int length, Buffers buffers, StringBuilder out);
+
+	/**
+	 * <p>Per-thread scratch space.</p>
+	 */
+	protected static final class Buffers {
+
+		private final SecureRandom random = new SecureRandom();
+		private final StringBuilder out = new StringBuilder(128);
+		private byte[] password = new byte[64];
+		private byte[] salt = new byte[16];
+		private byte[] work = new byte[128];
+
+		/**
+		 * <p>Gets length random bytes. The array is reused, so it's only
+		 * good until the next call.</p>
+		 */
+		public byte[] salt(int length) {
+			if(salt.length != length) {
+				salt = new byte[length];
+			}
+			random.nextBytes(salt);
+			return salt;
+		}
+
+		/**
+		 * <p>Gets a buffer of at least length bytes, for digests and the
+		 * like. Its contents are undefined.</p>
+		 */
+		public byte[] work(int length) {
+			if(work.length < length) {
+				work = new byte[length];
+			}
+			return work;
+		}
+
+		private int encode(String s) {
+			if(password.length < s.length() * 3) {
+				Arrays.fill(password, (byte) 0);
+				password = new byte[s.length() * 3];
+			}
+			byte[] b = password;
+			int n = 0;
+			for(int i=0;i<s.length();i++) {
+				int c = s.charAt(i);
+				if(Character.isHighSurrogate((char) c) && i + 1 < s.length()
+						&& Character.isLowSurrogate(s.charAt(i + 1))) {
+					c = Character.toCodePoint((char) c, s.charAt(++i));
+				} else if(c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+					c = '?'; // unpaired, as String.getBytes does
+				}
+				if(c < 0x80) {
+					b[n++] = (byte) c;
+				} else if(c < 0x800) {
+					b[n++] = (byte) (0xc0 | c >> 6);
+					b[n++] = (byte) (0x80 | c & 0x3f);
+				} else if(c < 0x10000) {
+					b[n++] = (byte) (0xe0 | c >> 12);
+					b[n++] = (byte) (0x80 | c >> 6 & 0x3f);
+					b[n++] = (byte) (0x80 | c & 0x3f);
+				} else {
+					b[n++] = (byte) (0xf0 | c >> 18);
+					b[n++] = (byte) (0x80 | c >> 12 & 0x3f);
+					b[n++] = (byte) (0x80 | c >> 6 & 0x3f);
+					b[n++] = (byte) (0x80 | c & 0x3f);
+				}
+			}
+			return n;
+		}
+	}
+}
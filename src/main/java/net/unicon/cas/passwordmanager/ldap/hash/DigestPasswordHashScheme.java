@@ -0,0 +1,62 @@
+package net.unicon.cas.passwordmanager.ldap.hash;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import net.unicon.cas.passwordmanager.PasswordManagerException;
+
+/**
+ * <p>A single message digest of the password, as in OpenLDAP's {SHA} and
+ * {MD5}, or with a random salt appended to the password and to the digest,
+ * as in {SSHA}, {SSHA256} and {SSHA512}. The value is the base64 of the
+ * digest followed by the salt.</p>
+ */
+public class DigestPasswordHashScheme extends AbstractPasswordHashScheme {
+
+	private final String algorithm;
+	private final int saltLength;
+	private final ThreadLocal<MessageDigest> digest = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance(algorithm);
+			} catch(NoSuchAlgorithmException ex) {
+				throw new PasswordManagerException("No such algorithm: " + algorithm, ex);
+			}
+		}
+	};
+
+	/**
+	 * @param name the name the scheme is configured by, also used as the
+	 * prefix
+	 * @param algorithm the MessageDigest algorithm
+	 * @param saltLength bytes of salt, or 0 for none
+	 */
+	public DigestPasswordHashScheme(String name, String algorithm, int saltLength) {
+		super(name, "{" + name + "}");
+		this.algorithm = algorithm;
+		this.saltLength = saltLength;
+		// fail now rather than on the first password change
+		digest.get();
+	}
+
+	@Override
+	protected void hash(byte[] password, int length, Buffers buffers, StringBuilder out) {
+		MessageDigest md = digest.get();
+		int size = md.getDigestLength();
+		byte[] result = buffers.work(size + saltLength);
+		md.update(password, 0, length);
+		if(saltLength > 0) {
+			byte[] salt = buffers.salt(saltLength);
+			md.update(salt, 0, saltLength);
+			System.arraycopy(salt, 0, result, size, saltLength);
+		}
+		try {
+			md.digest(result, 0, size);
+		} catch(DigestException ex) {
+			throw new PasswordManagerException("Couldn't compute " + algorithm, ex);
+		}
+		HashEncoding.base64(result, 0, size + saltLength, false, out);
+	}
+}
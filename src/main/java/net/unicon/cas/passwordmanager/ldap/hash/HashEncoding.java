@@ -0,0 +1,62 @@
+package net.unicon.cas.passwordmanager.ldap.hash;
+
+/**
+ * <p>Encodings used by the hash schemes, appending to a StringBuilder
+ * instead of creating intermediate strings.</p>
+ */
+final class HashEncoding {
+
+	private static final char[] BASE64 =
+		"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+	/** alphabet of crypt(3), in its order */
+	static final char[] CRYPT64 =
+		"./0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz".toCharArray();
+
+	private HashEncoding() { }
+
+	/**
+	 * <p>Appends base64. The adapted form, used by the PBKDF2 schemes, has
+	 * '.' in place of '+' and no padding.</p>
+	 */
+	static void base64(byte[] bytes, int offset, int length, boolean adapted, StringBuilder out) {
+		int end = offset + length;
+		int i = offset;
+		for(;i+2<end;i+=3) {
+			int w = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff);
+			append(w >>> 18, adapted, out);
+			append(w >>> 12, adapted, out);
+			append(w >>> 6, adapted, out);
+			append(w, adapted, out);
+		}
+		if(i < end) {
+			int w = (bytes[i] & 0xff) << 16 | (i + 1 < end ? (bytes[i + 1] & 0xff) << 8 : 0);
+			append(w >>> 18, adapted, out);
+			append(w >>> 12, adapted, out);
+			if(i + 1 < end) {
+				append(w >>> 6, adapted, out);
+			} else if(!adapted) {
+				out.append('=');
+			}
+			if(!adapted) {
+				out.append('=');
+			}
+		}
+	}
+
+	private static void append(int sixBits, boolean adapted, StringBuilder out) {
+		char c = BASE64[sixBits & 0x3f];
+		out.append(adapted && c == '+' ? '.' : c);
+	}
+
+	/**
+	 * <p>Appends n characters of three bytes in crypt(3)'s encoding, least
+	 * significant six bits first.</p>
+	 */
+	static void crypt64(byte b2, byte b1, byte b0, int n, StringBuilder out) {
+		int w = (b2 & 0xff) << 16 | (b1 & 0xff) << 8 | (b0 & 0xff);
+		for(int i=0;i<n;i++) {
+			out.append(CRYPT64[w & 0x3f]);
+			w >>>= 6;
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package net.unicon.cas.passwordmanager.ldap.hash;
+
+/**
+ * <p>A way of hashing passwords for storage in the directory, such as
+ * OpenLDAP's {SSHA}. Implementations must be thread-safe.</p>
+ */
+public interface PasswordHashScheme {
+
+	/**
+	 * <p>Gets the name the scheme is configured by, e.g. SSHA256.</p>
+	 */
+	public String getName();
+
+	/**
+	 * <p>Gets whether hashing is deliberately slow, such as a KDF with many
+	 * iterations, so it should run on PasswordHashSchemeRegistry's bounded
+	 * executor rather than the request thread.</p>
+	 */
+	public boolean isExpensive();
+
+	/**
+	 * <p>Hashes a password.</p>
+	 * @param password the password
+	 * @return the value to store, including the scheme prefix, e.g.
+	 * {SSHA}...
+	 */
+	public String hash(String password);
+}
@@ -0,0 +1,209 @@
+package net.unicon.cas.passwordmanager.ldap.hash;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import net.unicon.cas.passwordmanager.PasswordManagerException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * <p>Hash schemes by name, and the executor expensive ones run on. Comes
+ * with MD5, SMD5, SHA, SSHA, SHA256, SSHA256, SHA512, SSHA512, PBKDF2
+ * (the same as PBKDF2-SHA1), PBKDF2-SHA256, PBKDF2-SHA512, CRYPT-SHA256 and
+ * CRYPT-SHA512; more can be added, or these replaced, with
+ * setSchemes.</p>
+ *
+ * <p>Once initialized, schemes that are expensive (the PBKDF2 and crypt
+ * ones) run on a small pool of kdfThreads with a bounded queue, so a burst
+ * of password changes can't tie up every CPU and request thread. Callers
+ * wait up to kdfTimeoutSeconds; when the queue is full they're turned away
+ * straight away. Without initialization, everything is hashed on the
+ * calling thread.</p>
+ */
+public class PasswordHashSchemeRegistry implements InitializingBean, DisposableBean {
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+	private final Map<String, PasswordHashScheme> schemes = new HashMap<String, PasswordHashScheme>();
+	private final List<Pbkdf2PasswordHashScheme> builtInPbkdf2 = new ArrayList<Pbkdf2PasswordHashScheme>();
+	private final List<ShaCryptPasswordHashScheme> builtInShaCrypt = new ArrayList<ShaCryptPasswordHashScheme>();
+	private int pbkdf2Iterations = 10000;
+	private int shaCryptRounds = 5000;
+	private int kdfThreads = Runtime.getRuntime().availableProcessors();
+	private int kdfQueueSize = 32;
+	private long kdfTimeoutSeconds = 30;
+	private ThreadPoolExecutor kdfExecutor;
+
+	public PasswordHashSchemeRegistry() {
+		register(new DigestPasswordHashScheme("MD5", "MD5", 0));
+		register(new DigestPasswordHashScheme("SMD5", "MD5", 8));
+		register(new DigestPasswordHashScheme("SHA", "SHA-1", 0));
+		register(new DigestPasswordHashScheme("SSHA", "SHA-1", 8));
+		register(new DigestPasswordHashScheme("SHA256", "SHA-256", 0));
+		register(new DigestPasswordHashScheme("SSHA256", "SHA-256", 8));
+		register(new DigestPasswordHashScheme("SHA512", "SHA-512", 0));
+		register(new DigestPasswordHashScheme("SSHA512", "SHA-512", 8));
+		builtInPbkdf2.add(new Pbkdf2PasswordHashScheme("PBKDF2", "HmacSHA1"));
+		builtInPbkdf2.add(new Pbkdf2PasswordHashScheme("PBKDF2-SHA1", "HmacSHA1"));
+		builtInPbkdf2.add(new Pbkdf2PasswordHashScheme("PBKDF2-SHA256", "HmacSHA256"));
+		builtInPbkdf2.add(new Pbkdf2PasswordHashScheme("PBKDF2-SHA512", "HmacSHA512"));
+		for(PasswordHashScheme scheme : builtInPbkdf2) {
+			register(scheme);
+		}
+		builtInShaCrypt.add(new ShaCryptPasswordHashScheme("CRYPT-SHA256", "SHA-256"));
+		builtInShaCrypt.add(new ShaCryptPasswordHashScheme("CRYPT-SHA512", "SHA-512"));
+		for(PasswordHashScheme scheme : builtInShaCrypt) {
+			register(scheme);
+		}
+	}
+
+	private void register(PasswordHashScheme scheme) {
+		schemes.put(scheme.getName().toUpperCase(Locale.ENGLISH), scheme);
+	}
+
+	/**
+	 * <p>Gets a scheme by name, ignoring case.</p>
+	 * @return the scheme, or null if there's none by that name
+	 */
+	public PasswordHashScheme getScheme(String name) {
+		return schemes.get(name.toUpperCase(Locale.ENGLISH));
+	}
+
+	/**
+	 * <p>Hashes a password, on the KDF executor if the scheme is
+	 * expensive.</p>
+	 * @throws PasswordManagerException if the executor is too busy, or the
+	 * hash takes longer than kdfTimeoutSeconds
+	 */
+	public String hash(final PasswordHashScheme scheme, final String password) {
+		if(kdfExecutor == null || !scheme.isExpensive()) {
+			return scheme.hash(password);
+		}
+
+		Future<String> future;
+		try {
+			future = kdfExecutor.submit(new Callable<String>() {
+				public String call() {
+					return scheme.hash(password);
+				}
+			});
+		} catch(RejectedExecutionException ex) {
+			throw new PasswordManagerException("Too many passwords are being hashed; try again later", ex);
+		}
+		try {
+			return future.get(kdfTimeoutSeconds, TimeUnit.SECONDS);
+		} catch(TimeoutException ex) {
+			future.cancel(true);
+			throw new PasswordManagerException("Timed out hashing password with " + scheme.getName(), ex);
+		} catch(InterruptedException ex) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new PasswordManagerException("Interrupted hashing password with " + scheme.getName(), ex);
+		} catch(ExecutionException ex) {
+			if(ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ex.getCause();
+			}
+			throw new PasswordManagerException("Couldn't hash password with " + scheme.getName(), ex.getCause());
+		}
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		for(Pbkdf2PasswordHashScheme scheme : builtInPbkdf2) {
+			scheme.setIterations(pbkdf2Iterations);
+		}
+		for(ShaCryptPasswordHashScheme scheme : builtInShaCrypt) {
+			scheme.setRounds(shaCryptRounds);
+		}
+		if(kdfThreads > 0) {
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(kdfThreads, kdfThreads,
+					60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, kdfQueueSize)),
+					new KdfThreadFactory(), new ThreadPoolExecutor.AbortPolicy());
+			executor.allowCoreThreadTimeOut(true);
+			kdfExecutor = executor;
+			logger.info("Hashing passwords with expensive schemes on " + kdfThreads + " threads.");
+		}
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		if(kdfExecutor != null) {
+			kdfExecutor.shutdownNow();
+		}
+	}
+
+	/**
+	 * <p>Adds schemes, replacing any built-in ones of the same name.</p>
+	 */
+	public void setSchemes(List<PasswordHashScheme> schemes) {
+		for(PasswordHashScheme scheme : schemes) {
+			register(scheme);
+		}
+	}
+
+	/**
+	 * <p>Sets the iterations of the built-in PBKDF2 schemes. Default is
+	 * 10000.</p>
+	 */
+	public void setPbkdf2Iterations(int pbkdf2Iterations) {
+		this.pbkdf2Iterations = pbkdf2Iterations;
+	}
+
+	/**
+	 * <p>Sets the rounds of the built-in crypt schemes. Default is
+	 * 5000.</p>
+	 */
+	public void setShaCryptRounds(int shaCryptRounds) {
+		this.shaCryptRounds = shaCryptRounds;
+	}
+
+	/**
+	 * <p>Sets the number of threads expensive schemes run on, or 0 to run
+	 * them on the calling thread. Default is the number of
+	 * processors.</p>
+	 */
+	public void setKdfThreads(int kdfThreads) {
+		this.kdfThreads = kdfThreads;
+	}
+
+	/**
+	 * <p>Sets how many hashes can wait for a KDF thread before more are
+	 * turned away. Default is 32.</p>
+	 */
+	public void setKdfQueueSize(int kdfQueueSize) {
+		this.kdfQueueSize = kdfQueueSize;
+	}
+
+	/**
+	 * <p>Sets how long a caller waits for its hash. Default is 30.</p>
+	 */
+	public void setKdfTimeoutSeconds(long kdfTimeoutSeconds) {
+		this.kdfTimeoutSeconds = kdfTimeoutSeconds;
+	}
+
+	private static class KdfThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger threadNumber = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "pm-password-hash-" + threadNumber.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package net.unicon.cas.passwordmanager.ldap.hash;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+import net.unicon.cas.passwordmanager.PasswordManagerException;
+
+/**
+ * <p>PBKDF2 (RFC 2898) in the format of OpenLDAP's pbkdf2 module:
+ * {PBKDF2-SHA256}iterations$salt$key, with the salt and a key as long as
+ * the HMAC's output in adapted base64. PBKDF2 is computed here rather than
+ * through SecretKeyFactory, which offers only HMAC-SHA1 on older JREs and
+ * creates a new array per iteration.</p>
+ */
+public class Pbkdf2PasswordHashScheme extends AbstractPasswordHashScheme {
+
+	private final String macAlgorithm;
+	private int iterations = 10000;
+	private int saltLength = 16;
+	private final ThreadLocal<Mac> mac = new ThreadLocal<Mac>() {
+		@Override
+		protected Mac initialValue() {
+			try {
+				return Mac.getInstance(macAlgorithm);
+			} catch(NoSuchAlgorithmException ex) {
+				throw new PasswordManagerException("No such algorithm: " + macAlgorithm, ex);
+			}
+		}
+	};
+
+	/**
+	 * @param name the name the scheme is configured by, also used as the
+	 * prefix
+	 * @param macAlgorithm the HMAC, e.g. HmacSHA256
+	 */
+	public Pbkdf2PasswordHashScheme(String name, String macAlgorithm) {
+		super(name, "{" + name + "}");
+		this.macAlgorithm = macAlgorithm;
+		mac.get();
+	}
+
+	@Override
+	public boolean isExpensive() {
+		return true;
+	}
+
+	@Override
+	protected void hash(byte[] password, int length, Buffers buffers, StringBuilder out) {
+		if(length == 0) {
+			// SecretKeySpec refuses empty keys
+			throw new PasswordManagerException("Can't hash an empty password with " + getName());
+		}
+		Mac hmac = mac.get();
+		int size = hmac.getMacLength();
+		byte[] salt = buffers.salt(saltLength);
+		// U is kept in the first half of the work buffer, the key in the second
+		byte[] work = buffers.work(size * 2);
+		try {
+			hmac.init(new SecretKeySpec(password, 0, length, macAlgorithm));
+			// the key is as long as one block, so only block 1 is needed
+			hmac.update(salt, 0, saltLength);
+			hmac.update((byte) 0);
+			hmac.update((byte) 0);
+			hmac.update((byte) 0);
+			hmac.update((byte) 1);
+			hmac.doFinal(work, 0);
+			System.arraycopy(work, 0, work, size, size);
+			for(int i=1;i<iterations;i++) {
+				hmac.update(work, 0, size);
+				hmac.doFinal(work, 0);
+				for(int j=0;j<size;j++) {
+					work[size + j] ^= work[j];
+				}
+			}
+		} catch(InvalidKeyException ex) {
+			throw new PasswordManagerException("Couldn't compute " + getName(), ex);
+		} catch(ShortBufferException ex) {
+			throw new PasswordManagerException("Couldn't compute " + getName(), ex);
+		}
+		out.append(iterations).append('$');
+		HashEncoding.base64(salt, 0, saltLength, true, out);
+		out.append('$');
+		HashEncoding.base64(work, size, size, true, out);
+	}
+
+	/**
+	 * <p>Sets the number of iterations. Default is 10000.</p>
+	 */
+	public void setIterations(int iterations) {
+		this.iterations = iterations;
+	}
+
+	/**
+	 * <p>Sets the bytes of salt. Default is 16.</p>
+	 */
+	public void setSaltLength(int saltLength) {
+		this.saltLength = saltLength;
+	}
+}
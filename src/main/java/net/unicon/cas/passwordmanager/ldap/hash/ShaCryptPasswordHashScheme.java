@@ -0,0 +1,207 @@
+package net.unicon.cas.passwordmanager.ldap.hash;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import net.unicon.cas.passwordmanager.PasswordManagerException;
+
+/**
+ * <p>SHA-256 and SHA-512 crypt ($5$ and $6$, from Ulrich Drepper's
+ * specification), stored as {CRYPT} so OpenLDAP checks them with the
+ * system's crypt(3).</p>
+ */
+public class ShaCryptPasswordHashScheme extends AbstractPasswordHashScheme {
+
+	/** rounds used when the hash doesn't say */
+	private static final int DEFAULT_ROUNDS = 5000;
+	private static final int MAX_SALT_LENGTH = 16;
+	// byte order of the final encoding, three bytes at a time
+	private static final int[] SHA256_ORDER = {
+		0, 10, 20, 21, 1, 11, 12, 22, 2, 3, 13, 23, 24, 4, 14,
+		15, 25, 5, 6, 16, 26, 27, 7, 17, 18, 28, 8, 9, 19, 29 };
+	private static final int[] SHA512_ORDER = {
+		0, 21, 42, 22, 43, 1, 44, 2, 23, 3, 24, 45, 25, 46, 4, 47, 5, 26, 6, 27, 48,
+		28, 49, 7, 50, 8, 29, 9, 30, 51, 31, 52, 10, 53, 11, 32, 12, 33, 54, 34, 55, 13,
+		56, 14, 35, 15, 36, 57, 37, 58, 16, 59, 17, 38, 18, 39, 60, 40, 61, 19, 62, 20, 41 };
+
+	private final String algorithm;
+	private final String magic;
+	private int rounds = DEFAULT_ROUNDS;
+	private int saltLength = MAX_SALT_LENGTH;
+	private final ThreadLocal<State> state = new ThreadLocal<State>() {
+		@Override
+		protected State initialValue() {
+			try {
+				return new State(MessageDigest.getInstance(algorithm));
+			} catch(NoSuchAlgorithmException ex) {
+				throw new PasswordManagerException("No such algorithm: " + algorithm, ex);
+			}
+		}
+	};
+
+	/**
+	 * @param name the name the scheme is configured by
+	 * @param algorithm SHA-256 or SHA-512
+	 */
+	public ShaCryptPasswordHashScheme(String name, String algorithm) {
+		super(name, "{CRYPT}");
+		if(algorithm.equals("SHA-256")) {
+			magic = "$5$";
+		} else if(algorithm.equals("SHA-512")) {
+			magic = "$6$";
+		} else {
+			throw new IllegalArgumentException("SHA-crypt needs SHA-256 or SHA-512, not " + algorithm);
+		}
+		this.algorithm = algorithm;
+		state.get();
+	}
+
+	@Override
+	public boolean isExpensive() {
+		return true;
+	}
+
+	@Override
+	protected void hash(byte[] key, int keyLength, Buffers buffers, StringBuilder out) {
+		State s = state.get();
+		MessageDigest md = s.md;
+		int size = s.a.length;
+
+		// salt characters from crypt's alphabet
+		byte[] salt = buffers.salt(saltLength);
+		for(int i=0;i<saltLength;i++) {
+			salt[i] = (byte) HashEncoding.CRYPT64[salt[i] & 0x3f];
+		}
+
+		try {
+			// B = H(key salt key)
+			md.update(key, 0, keyLength);
+			md.update(salt, 0, saltLength);
+			md.update(key, 0, keyLength);
+			md.digest(s.b, 0, size);
+
+			// A = H(key salt B-repeated-to-key-length, then B or key per bit of key length)
+			md.update(key, 0, keyLength);
+			md.update(salt, 0, saltLength);
+			int n;
+			for(n=keyLength;n>size;n-=size) {
+				md.update(s.b, 0, size);
+			}
+			md.update(s.b, 0, n);
+			for(n=keyLength;n>0;n>>=1) {
+				if((n & 1) != 0) {
+					md.update(s.b, 0, size);
+				} else {
+					md.update(key, 0, keyLength);
+				}
+			}
+			md.digest(s.a, 0, size);
+
+			// P = H(key repeated key-length times), repeated to key length
+			for(int i=0;i<keyLength;i++) {
+				md.update(key, 0, keyLength);
+			}
+			md.digest(s.b, 0, size);
+			byte[] p = s.p(keyLength);
+			for(int i=0;i<keyLength;i+=size) {
+				System.arraycopy(s.b, 0, p, i, Math.min(size, keyLength - i));
+			}
+
+			// S = H(salt repeated 16 + A[0] times), cut to salt length
+			int repeat = 16 + (s.a[0] & 0xff);
+			for(int i=0;i<repeat;i++) {
+				md.update(salt, 0, saltLength);
+			}
+			md.digest(s.b, 0, size);
+			System.arraycopy(s.b, 0, s.s, 0, saltLength);
+
+			for(int r=0;r<rounds;r++) {
+				if((r & 1) != 0) {
+					md.update(p, 0, keyLength);
+				} else {
+					md.update(s.a, 0, size);
+				}
+				if(r % 3 != 0) {
+					md.update(s.s, 0, saltLength);
+				}
+				if(r % 7 != 0) {
+					md.update(p, 0, keyLength);
+				}
+				if((r & 1) != 0) {
+					md.update(s.a, 0, size);
+				} else {
+					md.update(p, 0, keyLength);
+				}
+				md.digest(s.a, 0, size);
+			}
+			Arrays.fill(p, 0, keyLength, (byte) 0);
+			Arrays.fill(s.b, (byte) 0);
+		} catch(DigestException ex) {
+			throw new PasswordManagerException("Couldn't compute " + getName(), ex);
+		}
+
+		out.append(magic);
+		if(rounds != DEFAULT_ROUNDS) {
+			out.append("rounds=").append(rounds).append('$');
+		}
+		for(int i=0;i<saltLength;i++) {
+			out.append((char) salt[i]);
+		}
+		out.append('$');
+		byte[] a = s.a;
+		int[] order = size == 32 ? SHA256_ORDER : SHA512_ORDER;
+		for(int i=0;i<order.length;i+=3) {
+			HashEncoding.crypt64(a[order[i]], a[order[i + 1]], a[order[i + 2]], 4, out);
+		}
+		if(size == 32) {
+			HashEncoding.crypt64((byte) 0, a[31], a[30], 3, out);
+		} else {
+			HashEncoding.crypt64((byte) 0, (byte) 0, a[63], 2, out);
+		}
+	}
+
+	/**
+	 * <p>Sets the number of rounds, 1000 to 999999999. Default is 5000.</p>
+	 */
+	public void setRounds(int rounds) {
+		if(rounds < 1000 || rounds > 999999999) {
+			throw new IllegalArgumentException("rounds must be from 1000 to 999999999");
+		}
+		this.rounds = rounds;
+	}
+
+	/**
+	 * <p>Sets the number of salt characters, at most 16. Default is
+	 * 16.</p>
+	 */
+	public void setSaltLength(int saltLength) {
+		if(saltLength < 1 || saltLength > MAX_SALT_LENGTH) {
+			throw new IllegalArgumentException("saltLength must be from 1 to " + MAX_SALT_LENGTH);
+		}
+		this.saltLength = saltLength;
+	}
+
+	private static class State {
+
+		private final MessageDigest md;
+		private final byte[] a;
+		private final byte[] b;
+		private final byte[] s = new byte[MAX_SALT_LENGTH];
+		private byte[] p = new byte[64];
+
+		State(MessageDigest md) {
+			this.md = md;
+			this.a = new byte[md.getDigestLength()];
+			this.b = new byte[md.getDigestLength()];
+		}
+
+		byte[] p(int length) {
+			if(p.length < length) {
+				p = new byte[length];
+			}
+			return p;
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package net.unicon.cas.passwordmanager.monitor;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * <p>Snapshot of the time spent in one state, transition, view or
+ * expression of a web flow, as shown over JMX. Latencies are in
+ * milliseconds.</p>
+ */
+public class FlowTiming {
+
+	private final String flow;
+	private final String pmTask;
+	private final String kind;
+	private final String name;
+	private final long count;
+	private final double meanMillis;
+	private final double p50Millis;
+	private final double p90Millis;
+	private final double p99Millis;
+	private final double maxMillis;
+
+	@ConstructorProperties({ "flow", "pmTask", "kind", "name", "count", "meanMillis", "p50Millis", "p90Millis",
+		"p99Millis", "maxMillis" })
+	public FlowTiming(String flow, String pmTask, String kind, String name, long count, double meanMillis,
+			double p50Millis, double p90Millis, double p99Millis, double maxMillis) {
+		this.flow = flow;
+		this.pmTask = pmTask;
+		this.kind = kind;
+		this.name = name;
+		this.count = count;
+		this.meanMillis = meanMillis;
+		this.p50Millis = p50Millis;
+		this.p90Millis = p90Millis;
+		this.p99Millis = p99Millis;
+		this.maxMillis = maxMillis;
+	}
+
+	public String getFlow() {
+		return flow;
+	}
+
+	/**
+	 * <p>Gets the password manager task the flow was running, or "none"
+	 * outside the password manager.</p>
+	 */
+	public String getPmTask() {
+		return pmTask;
+	}
+
+	/**
+	 * <p>Gets what was timed: state, transition, view or evaluate.</p>
+	 */
+	public String getKind() {
+		return kind;
+	}
+
+	/**
+	 * <p>Gets the state id, the transition as source:event-&gt;target, or
+	 * the expression.</p>
+	 */
+	public String getName() {
+		return name;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public double getMeanMillis() {
+		return meanMillis;
+	}
+
+	public double getP50Millis() {
+		return p50Millis;
+	}
+
+	public double getP90Millis() {
+		return p90Millis;
+	}
+
+	public double getP99Millis() {
+		return p99Millis;
+	}
+
+	public double getMaxMillis() {
+		return maxMillis;
+	}
+}
@@ -0,0 +1,174 @@
+package net.unicon.cas.passwordmanager.monitor;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.springframework.webflow.core.collection.AttributeMap;
+import org.springframework.webflow.core.collection.MutableAttributeMap;
+import org.springframework.webflow.definition.StateDefinition;
+import org.springframework.webflow.definition.TransitionDefinition;
+import org.springframework.webflow.execution.FlowExecutionListenerAdapter;
+import org.springframework.webflow.execution.FlowSession;
+import org.springframework.webflow.execution.RequestContext;
+import org.springframework.webflow.execution.View;
+
+/**
+ * <p>Times the states, transitions and view renders of the flows it's
+ * registered for, into FlowTimingStats, by the pmTask in the flow's scope
+ * (or a parent flow's).</p>
+ *
+ * <p>A state's time runs from entering it until a transition out of it
+ * starts, the flow ends or the request pauses at a view; resuming a view
+ * state counts the time until it transitions again, but not the time the
+ * user spent on the page, so a view state is counted once on entry and
+ * once per resume. A transition's time covers the source state's
+ * exit actions and its own actions. A subflow-state's time includes the
+ * subflow, up to the end of the request. View renders are also recorded on
+ * their own.</p>
+ */
+public class FlowTimingListener extends FlowExecutionListenerAdapter {
+
+	private static final String MARKS = FlowTimingListener.class.getName() + ".marks";
+	private static final String RENDER_START = FlowTimingListener.class.getName() + ".renderStart";
+	private static final String PM_TASK = "pmTask";
+
+	private FlowTimingStats stats;
+
+	@Override
+	public void stateEntered(RequestContext context, StateDefinition previousState, StateDefinition newState) {
+		FlowSession session = context.getFlowExecutionContext().getActiveSession();
+		stop(context, session);
+		start(context, session, FlowTimingStats.STATE, newState.getId());
+	}
+
+	@Override
+	public void transitionExecuting(RequestContext context, TransitionDefinition transition) {
+		FlowSession session = context.getFlowExecutionContext().getActiveSession();
+		StateDefinition source = context.getCurrentState();
+		String sourceId = source == null ? "*" : source.getId();
+		String targetId = transition.getTargetStateId();
+		stop(context, session);
+		start(context, session, FlowTimingStats.TRANSITION,
+				sourceId + ":" + transition.getId() + "->" + (targetId == null ? sourceId : targetId));
+	}
+
+	@Override
+	public void viewRendering(RequestContext context, View view, StateDefinition viewState) {
+		if(stats.isEnabled()) {
+			context.getExternalContext().getRequestMap().put(RENDER_START, Long.valueOf(System.nanoTime()));
+		}
+	}
+
+	@Override
+	public void viewRendered(RequestContext context, View view, StateDefinition viewState) {
+		Object start = context.getExternalContext().getRequestMap().remove(RENDER_START);
+		if(start != null) {
+			FlowSession session = context.getFlowExecutionContext().getActiveSession();
+			stats.record(session.getDefinition().getId(), getPmTask(session), FlowTimingStats.VIEW,
+					viewState.getId(), System.nanoTime() - ((Long) start).longValue());
+		}
+	}
+
+	@Override
+	public void paused(RequestContext context) {
+		stopAll(context);
+	}
+
+	@Override
+	public void resuming(RequestContext context) {
+		FlowSession session = context.getFlowExecutionContext().getActiveSession();
+		if(session != null && session.getState() != null) {
+			start(context, session, FlowTimingStats.STATE, session.getState().getId());
+		}
+	}
+
+	@Override
+	public void sessionEnding(RequestContext context, FlowSession session, String outcome, MutableAttributeMap output) {
+		stop(context, session);
+	}
+
+	@Override
+	public void requestProcessed(RequestContext context) {
+		stopAll(context);
+	}
+
+	private void start(RequestContext context, FlowSession session, String kind, String name) {
+		if(!stats.isEnabled()) {
+			return;
+		}
+		Map<FlowSession, Mark> marks = getMarks(context, true);
+		marks.put(session, new Mark(session.getDefinition().getId(), getPmTask(session), kind, name));
+	}
+
+	private void stop(RequestContext context, FlowSession session) {
+		Map<FlowSession, Mark> marks = getMarks(context, false);
+		if(marks != null) {
+			Mark mark = marks.remove(session);
+			if(mark != null) {
+				mark.record(stats);
+			}
+		}
+	}
+
+	private void stopAll(RequestContext context) {
+		Map<FlowSession, Mark> marks = getMarks(context, false);
+		if(marks != null) {
+			for(Mark mark : marks.values()) {
+				mark.record(stats);
+			}
+			marks.clear();
+		}
+	}
+
+	// open marks live in the request, one per flow session, so nothing is
+	// kept between requests or serialized with the flow
+	@SuppressWarnings("unchecked")
+	private Map<FlowSession, Mark> getMarks(RequestContext context, boolean create) {
+		MutableAttributeMap requestMap = context.getExternalContext().getRequestMap();
+		Map<FlowSession, Mark> marks = (Map<FlowSession, Mark>) requestMap.get(MARKS);
+		if(marks == null && create) {
+			marks = new IdentityHashMap<FlowSession, Mark>();
+			requestMap.put(MARKS, marks);
+		}
+		return marks;
+	}
+
+	/**
+	 * <p>Gets the pmTask in the flow session's scope, or its nearest
+	 * parent's that has one.</p>
+	 * @return the task, or null if none
+	 */
+	static String getPmTask(FlowSession session) {
+		for(FlowSession s=session;s!=null;s=s.getParent()) {
+			AttributeMap scope = s.getScope();
+			Object pmTask = scope == null ? null : scope.get(PM_TASK);
+			if(pmTask != null) {
+				return pmTask.toString();
+			}
+		}
+		return null;
+	}
+
+	public void setStats(FlowTimingStats stats) {
+		this.stats = stats;
+	}
+
+	private static class Mark {
+		private final String flow;
+		private final String pmTask;
+		private final String kind;
+		private final String name;
+		private final long start = System.nanoTime();
+
+		Mark(String flow, String pmTask, String kind, String name) {
+			this.flow = flow;
+			this.pmTask = pmTask;
+			this.kind = kind;
+			this.name = name;
+		}
+
+		void record(FlowTimingStats stats) {
+			stats.record(flow, pmTask, kind, name, System.nanoTime() - start);
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package net.unicon.cas.passwordmanager.monitor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * <p>Latency histograms of web flow states, transitions, view renders and
+ * expressions, kept per flow and password manager task (pmTask). Filled in
+ * by FlowTimingListener and TimingExpressionParser, and shown over JMX as
+ * net.unicon.cas.passwordmanager:type=WebFlow,name=timings.</p>
+ *
+ * <p>A histogram is created the first time each flow, task, kind and name
+ * is seen, up to maxEntries; after that, timings for new names are dropped
+ * and counted.</p>
+ */
+public class FlowTimingStats implements FlowTimingStatsMXBean, InitializingBean, DisposableBean {
+
+	public static final String STATE = "state";
+	public static final String TRANSITION = "transition";
+	public static final String VIEW = "view";
+	public static final String EVALUATE = "evaluate";
+
+	/**
+	 * <p>Task recorded outside the password manager flow.</p>
+	 */
+	public static final String NO_TASK = "none";
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+	private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile boolean enabled = true;
+	private boolean jmxEnabled = true;
+	private int maxEntries = 2000;
+	private ObjectName objectName;
+
+	/**
+	 * <p>Records the time spent in something.</p>
+	 * @param flow the flow id
+	 * @param pmTask the password manager task, or null
+	 * @param kind STATE, TRANSITION, VIEW or EVALUATE
+	 * @param name the state id, transition or expression
+	 * @param nanos the time taken
+	 */
+	public void record(String flow, String pmTask, String kind, String name, long nanos) {
+		if(!enabled) {
+			return;
+		}
+		if(pmTask == null) {
+			pmTask = NO_TASK;
+		}
+		String key = flow + '\n' + pmTask + '\n' + kind + '\n' + name;
+		Timer timer = timers.get(key);
+		if(timer == null) {
+			if(timers.size() >= maxEntries) {
+				dropped.incrementAndGet();
+				return;
+			}
+			Timer created = new Timer(flow, pmTask, kind, name);
+			timer = timers.putIfAbsent(key, created);
+			if(timer == null) {
+				timer = created;
+			}
+		}
+		timer.latency.record(nanos);
+	}
+
+	@Override
+	public List<FlowTiming> getTimings() {
+		Map<String, Timer> sorted = new TreeMap<String, Timer>(timers);
+		List<FlowTiming> timings = new ArrayList<FlowTiming>(sorted.size());
+		for(Timer t : sorted.values()) {
+			LatencyHistogram h = t.latency;
+			timings.add(new FlowTiming(t.flow, t.pmTask, t.kind, t.name, h.getCount(), h.getMeanMicros() / 1000,
+					h.getPercentileMicros(50) / 1000.0, h.getPercentileMicros(90) / 1000.0,
+					h.getPercentileMicros(99) / 1000.0, h.getMaxMicros() / 1000.0));
+		}
+		return timings;
+	}
+
+	@Override
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * <p>Sets whether timings are recorded. Default is true. Can be changed
+	 * over JMX.</p>
+	 */
+	@Override
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	@Override
+	public void reset() {
+		timers.clear();
+		dropped.set(0);
+	}
+
+	@Override
+	public synchronized void afterPropertiesSet() throws Exception {
+		if(jmxEnabled && objectName == null) {
+			objectName = JmxRegistration.register(this, "WebFlow", "timings", logger);
+			if(objectName != null) {
+				logger.info("Registered web flow timings as " + objectName);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void destroy() throws Exception {
+		JmxRegistration.unregister(objectName, logger);
+		objectName = null;
+	}
+
+	/**
+	 * <p>Sets whether the timings are registered with JMX. Default is
+	 * true.</p>
+	 */
+	public void setJmxEnabled(boolean jmxEnabled) {
+		this.jmxEnabled = jmxEnabled;
+	}
+
+	/**
+	 * <p>Sets the most histograms kept, each about 2.5KB. Default is
+	 * 2000.</p>
+	 */
+	public void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	private static class Timer {
+		private final String flow;
+		private final String pmTask;
+		private final String kind;
+		private final String name;
+		private final LatencyHistogram latency = new LatencyHistogram();
+
+		Timer(String flow, String pmTask, String kind, String name) {
+			this.flow = flow;
+			this.pmTask = pmTask;
+			this.kind = kind;
+			this.name = name;
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package net.unicon.cas.passwordmanager.monitor;
+
+import java.util.List;
+
+/**
+ * <p>JMX view of the web flow timings.</p>
+ */
+public interface FlowTimingStatsMXBean {
+
+	/**
+	 * <p>Gets a snapshot of every state, transition, view and expression
+	 * timed so far, ordered by flow, task, kind and name.</p>
+	 */
+	public List<FlowTiming> getTimings();
+
+	/**
+	 * <p>Gets the number of timings dropped because the maximum number of
+	 * distinct names was reached.</p>
+	 */
+	public long getDroppedCount();
+
+	public boolean isEnabled();
+
+	public void setEnabled(boolean enabled);
+
+	/**
+	 * <p>Clears the timings.</p>
+	 */
+	public void reset();
+}
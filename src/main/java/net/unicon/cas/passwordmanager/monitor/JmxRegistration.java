@@ -0,0 +1,57 @@
+package net.unicon.cas.passwordmanager.monitor;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+
+/**
+ * <p>Registers the monitoring beans with the platform MBean server under
+ * net.unicon.cas.passwordmanager:type=&lt;type&gt;,name=&lt;name&gt;.
+ * Failures are logged, not thrown.</p>
+ */
+final class JmxRegistration {
+
+	static final String DOMAIN = "net.unicon.cas.passwordmanager";
+
+	private JmxRegistration() {
+	}
+
+	/**
+	 * <p>Registers a bean. If the name is taken, a number is appended.</p>
+	 * @return the name it was registered as, or null if it couldn't be
+	 */
+	static ObjectName register(Object mbean, String type, String name, Log logger) {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			for(int i=1;;i++) {
+				ObjectName candidate = new ObjectName(DOMAIN + ":type=" + type + ",name="
+						+ ObjectName.quote(i == 1 ? name : name + " (" + i + ")"));
+				try {
+					server.registerMBean(mbean, candidate);
+					return candidate;
+				} catch(InstanceAlreadyExistsException ex) {
+					// try the next number
+				}
+			}
+		} catch(JMException ex) {
+			logger.warn("Couldn't register " + type + " statistics for " + name + " with JMX", ex);
+			return null;
+		}
+	}
+
+	static void unregister(ObjectName objectName, Log logger) {
+		if(objectName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch(JMException ex) {
+			logger.warn("Couldn't unregister " + objectName, ex);
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package net.unicon.cas.passwordmanager.monitor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Histogram of latencies in microseconds, in a fixed 312 buckets: one per
+ * microsecond below 8, then 8 per power of two, so every bucket is within
+ * 12.5% of the latencies in it. Latencies above 2^41 microseconds (25 days)
+ * land in the last bucket. Recording is a few atomic increments, with no
+ * locks and no allocation, so it can stay on in production.</p>
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_EXPONENT = 40;
+	static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalMicros = new AtomicLong();
+	private final AtomicLong maxMicros = new AtomicLong();
+
+	/**
+	 * <p>Records a latency.</p>
+	 * @param nanos the latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		long micros = nanos < 0 ? 0 : nanos / 1000;
+		counts.incrementAndGet(bucket(micros));
+		count.incrementAndGet();
+		totalMicros.addAndGet(micros);
+		long max = maxMicros.get();
+		while(micros > max && !maxMicros.compareAndSet(max, micros)) {
+			max = maxMicros.get();
+		}
+	}
+
+	static int bucket(long micros) {
+		if(micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		if(exponent > MAX_EXPONENT) {
+			return BUCKETS - 1;
+		}
+		int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	// the largest latency that goes in the bucket
+	static long upperBound(int bucket) {
+		if(bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		long lower = (1L << exponent) + (bucket % SUB_BUCKETS) * width;
+		return lower + width - 1;
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * <p>Gets the mean latency in microseconds, or 0 if nothing has been
+	 * recorded.</p>
+	 */
+	public double getMeanMicros() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) totalMicros.get() / n;
+	}
+
+	public long getMaxMicros() {
+		return maxMicros.get();
+	}
+
+	/**
+	 * <p>Gets a percentile of the latencies in microseconds, to within the
+	 * bucket's 12.5%.</p>
+	 * @param percentile from 0 to 100
+	 * @return the percentile, or 0 if nothing has been recorded
+	 */
+	public long getPercentileMicros(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for(int i=0;i<BUCKETS;i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if(total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for(int i=0;i<BUCKETS;i++) {
+			seen += snapshot[i];
+			if(seen >= rank) {
+				return Math.min(upperBound(i), maxMicros.get());
+			}
+		}
+		return maxMicros.get();
+	}
+
+	/**
+	 * <p>Clears the histogram. Latencies recorded at the same time may be
+	 * partly kept.</p>
+	 */
+	public void reset() {
+		for(int i=0;i<BUCKETS;i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		totalMicros.set(0);
+		maxMicros.set(0);
+	}
+}
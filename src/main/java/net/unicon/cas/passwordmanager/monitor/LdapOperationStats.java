@@ -0,0 +1,96 @@
+package net.unicon.cas.passwordmanager.monitor;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * <p>Snapshot of one kind of operation against an LDAP server, as shown
+ * over JMX. Latencies are in milliseconds.</p>
+ */
+public class LdapOperationStats {
+
+	private final String operation;
+	private final long successCount;
+	private final long notFoundCount;
+	private final long multipleResultsCount;
+	private final long errorCount;
+	private final int inFlight;
+	private final double meanMillis;
+	private final double p50Millis;
+	private final double p90Millis;
+	private final double p99Millis;
+	private final double maxMillis;
+
+	@ConstructorProperties({ "operation", "successCount", "notFoundCount", "multipleResultsCount", "errorCount",
+		"inFlight", "meanMillis", "p50Millis", "p90Millis", "p99Millis", "maxMillis" })
+	public LdapOperationStats(String operation, long successCount, long notFoundCount, long multipleResultsCount,
+			long errorCount, int inFlight, double meanMillis, double p50Millis, double p90Millis, double p99Millis,
+			double maxMillis) {
+		this.operation = operation;
+		this.successCount = successCount;
+		this.notFoundCount = notFoundCount;
+		this.multipleResultsCount = multipleResultsCount;
+		this.errorCount = errorCount;
+		this.inFlight = inFlight;
+		this.meanMillis = meanMillis;
+		this.p50Millis = p50Millis;
+		this.p90Millis = p90Millis;
+		this.p99Millis = p99Millis;
+		this.maxMillis = maxMillis;
+	}
+
+	public String getOperation() {
+		return operation;
+	}
+
+	public long getSuccessCount() {
+		return successCount;
+	}
+
+	/**
+	 * <p>Gets the number of operations that failed because the user or
+	 * entry didn't exist.</p>
+	 */
+	public long getNotFoundCount() {
+		return notFoundCount;
+	}
+
+	/**
+	 * <p>Gets the number of searches that failed because more than one
+	 * entry matched.</p>
+	 */
+	public long getMultipleResultsCount() {
+		return multipleResultsCount;
+	}
+
+	public long getErrorCount() {
+		return errorCount;
+	}
+
+	/**
+	 * <p>Gets the number of operations running when the snapshot was
+	 * taken.</p>
+	 */
+	public int getInFlight() {
+		return inFlight;
+	}
+
+	public double getMeanMillis() {
+		return meanMillis;
+	}
+
+	public double getP50Millis() {
+		return p50Millis;
+	}
+
+	public double getP90Millis() {
+		return p90Millis;
+	}
+
+	public double getP99Millis() {
+		return p99Millis;
+	}
+
+	public double getMaxMillis() {
+		return maxMillis;
+	}
+}
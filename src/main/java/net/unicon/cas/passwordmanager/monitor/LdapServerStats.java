@@ -0,0 +1,177 @@
+package net.unicon.cas.passwordmanager.monitor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.ldap.NameNotFoundException;
+import org.springframework.ldap.core.ObjectRetrievalException;
+
+/**
+ * <p>Counters, in-flight gauges and latency histograms for the operations
+ * an LDAP server makes against its directory. Recording is lock-free.
+ * Callers bracket each operation with begin and end:</p>
+ *
+ * <pre>
+ * long start = stats.begin(Operation.LDAP_MODIFY);
+ * Throwable failure = null;
+ * try {
+ *     ...
+ * } catch(RuntimeException ex) {
+ *     failure = ex;
+ *     throw ex;
+ * } finally {
+ *     stats.end(Operation.LDAP_MODIFY, start, failure);
+ * }
+ * </pre>
+ *
+ * <p>Once registered, the statistics are shown over JMX as
+ * net.unicon.cas.passwordmanager:type=LdapServer,name=&lt;description&gt;.</p>
+ */
+public class LdapServerStats implements LdapServerStatsMXBean {
+
+	public static final String DOMAIN = JmxRegistration.DOMAIN;
+
+	/**
+	 * <p>Kinds of operation against the directory.</p>
+	 */
+	public enum Operation {
+		/** search for the user's entry */
+		SEARCH_FOR_DN("searchForDn"),
+		/** search for attributes of the user's entry */
+		LDAP_LOOKUP("ldapLookup"),
+		/** bind as the user */
+		VERIFY_PASSWORD("verifyPassword"),
+		/** modify of the user's entry */
+		LDAP_MODIFY("ldapModify"),
+		/** Password Modify extended operation */
+		PASSWORD_MODIFY("passwordModify");
+
+		private final String displayName;
+
+		private Operation(String displayName) {
+			this.displayName = displayName;
+		}
+
+		public String getDisplayName() {
+			return displayName;
+		}
+	}
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+	private final String description;
+	private final OperationCounters[] counters;
+	private ObjectName objectName;
+
+	public LdapServerStats(String description) {
+		this.description = description;
+		Operation[] operations = Operation.values();
+		counters = new OperationCounters[operations.length];
+		for(int i=0;i<operations.length;i++) {
+			counters[i] = new OperationCounters();
+		}
+	}
+
+	/**
+	 * <p>Marks the start of an operation.</p>
+	 * @return the start time, to pass to end
+	 */
+	public long begin(Operation operation) {
+		counters[operation.ordinal()].inFlight.incrementAndGet();
+		return System.nanoTime();
+	}
+
+	/**
+	 * <p>Marks the end of an operation.</p>
+	 * @param start what begin returned
+	 * @param failure what the operation threw, or null if it succeeded
+	 */
+	public void end(Operation operation, long start, Throwable failure) {
+		OperationCounters c = counters[operation.ordinal()];
+		c.latency.record(System.nanoTime() - start);
+		c.inFlight.decrementAndGet();
+		if(failure == null) {
+			c.success.incrementAndGet();
+		} else if(failure instanceof NameNotFoundException) {
+			c.notFound.incrementAndGet();
+		} else if(failure instanceof ObjectRetrievalException) {
+			c.multipleResults.incrementAndGet();
+		} else {
+			c.errors.incrementAndGet();
+		}
+	}
+
+	/**
+	 * <p>Gets the latency histogram of an operation.</p>
+	 */
+	public LatencyHistogram getLatency(Operation operation) {
+		return counters[operation.ordinal()].latency;
+	}
+
+	@Override
+	public String getDescription() {
+		return description;
+	}
+
+	@Override
+	public List<LdapOperationStats> getOperations() {
+		List<LdapOperationStats> operations = new ArrayList<LdapOperationStats>(counters.length);
+		for(Operation operation : Operation.values()) {
+			OperationCounters c = counters[operation.ordinal()];
+			LatencyHistogram h = c.latency;
+			operations.add(new LdapOperationStats(operation.getDisplayName(), c.success.get(), c.notFound.get(),
+					c.multipleResults.get(), c.errors.get(), c.inFlight.get(), h.getMeanMicros() / 1000,
+					h.getPercentileMicros(50) / 1000.0, h.getPercentileMicros(90) / 1000.0,
+					h.getPercentileMicros(99) / 1000.0, h.getMaxMicros() / 1000.0));
+		}
+		return operations;
+	}
+
+	@Override
+	public void reset() {
+		for(OperationCounters c : counters) {
+			c.latency.reset();
+			c.success.set(0);
+			c.notFound.set(0);
+			c.multipleResults.set(0);
+			c.errors.set(0);
+		}
+	}
+
+	/**
+	 * <p>Registers the statistics with the platform MBean server. If
+	 * another server already has the same description, a number is
+	 * appended to the name. Failures are logged, not thrown.</p>
+	 */
+	public synchronized void register() {
+		if(objectName == null) {
+			objectName = JmxRegistration.register(this, "LdapServer",
+					description == null || description.length() == 0 ? "ldap" : description, logger);
+			if(objectName != null) {
+				logger.info("Registered LDAP server statistics as " + objectName);
+			}
+		}
+	}
+
+	/**
+	 * <p>Removes the statistics from the platform MBean server.</p>
+	 */
+	public synchronized void unregister() {
+		JmxRegistration.unregister(objectName, logger);
+		objectName = null;
+	}
+
+	private static class OperationCounters {
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private final AtomicLong success = new AtomicLong();
+		private final AtomicLong notFound = new AtomicLong();
+		private final AtomicLong multipleResults = new AtomicLong();
+		private final AtomicLong errors = new AtomicLong();
+	}
+}
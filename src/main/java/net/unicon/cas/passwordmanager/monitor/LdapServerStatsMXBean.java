@@ -0,0 +1,22 @@
+package net.unicon.cas.passwordmanager.monitor;
+
+import java.util.List;
+
+/**
+ * <p>JMX view of an LDAP server's operation statistics.</p>
+ */
+public interface LdapServerStatsMXBean {
+
+	public String getDescription();
+
+	/**
+	 * <p>Gets a snapshot of each kind of operation.</p>
+	 */
+	public List<LdapOperationStats> getOperations();
+
+	/**
+	 * <p>Clears the counters and histograms, except the in-flight
+	 * counts.</p>
+	 */
+	public void reset();
+}
@@ -0,0 +1,92 @@
+package net.unicon.cas.passwordmanager.monitor;
+
+import org.springframework.binding.expression.EvaluationException;
+import org.springframework.binding.expression.Expression;
+import org.springframework.binding.expression.ExpressionParser;
+import org.springframework.binding.expression.ParserContext;
+import org.springframework.binding.expression.ParserException;
+import org.springframework.webflow.execution.FlowSession;
+import org.springframework.webflow.execution.RequestContext;
+import org.springframework.webflow.execution.RequestContextHolder;
+
+/**
+ * <p>Wraps the flows' expression parser so the time taken by each
+ * expression that calls a method, such as an evaluate of an action or
+ * service, is recorded into FlowTimingStats by the flow and pmTask it ran
+ * in. Property reads and writes are left unwrapped; they're too cheap to be
+ * worth timing.</p>
+ */
+public class TimingExpressionParser implements ExpressionParser {
+
+	private final ExpressionParser delegate;
+	private FlowTimingStats stats;
+
+	public TimingExpressionParser(ExpressionParser delegate) {
+		this.delegate = delegate;
+	}
+
+	@Override
+	public Expression parseExpression(String expressionString, ParserContext context) throws ParserException {
+		Expression expression = delegate.parseExpression(expressionString, context);
+		if(stats == null || expressionString == null || expressionString.indexOf('(') < 0) {
+			return expression;
+		}
+		return new TimedExpression(expression, stats);
+	}
+
+	public void setStats(FlowTimingStats stats) {
+		this.stats = stats;
+	}
+
+	private static class TimedExpression implements Expression {
+
+		private final Expression expression;
+		private final FlowTimingStats stats;
+
+		TimedExpression(Expression expression, FlowTimingStats stats) {
+			this.expression = expression;
+			this.stats = stats;
+		}
+
+		@Override
+		public Object getValue(Object context) throws EvaluationException {
+			if(!stats.isEnabled()) {
+				return expression.getValue(context);
+			}
+			long start = System.nanoTime();
+			try {
+				return expression.getValue(context);
+			} finally {
+				long elapsed = System.nanoTime() - start;
+				RequestContext requestContext = context instanceof RequestContext ? (RequestContext) context
+						: RequestContextHolder.getRequestContext();
+				if(requestContext != null && requestContext.getFlowExecutionContext().isActive()) {
+					FlowSession session = requestContext.getFlowExecutionContext().getActiveSession();
+					stats.record(session.getDefinition().getId(), FlowTimingListener.getPmTask(session),
+							FlowTimingStats.EVALUATE, expression.getExpressionString(), elapsed);
+				}
+			}
+		}
+
+		@Override
+		public void setValue(Object context, Object value) throws EvaluationException {
+			expression.setValue(context, value);
+		}
+
+		@Override
+		@SuppressWarnings("rawtypes")
+		public Class getValueType(Object context) throws EvaluationException {
+			return expression.getValueType(context);
+		}
+
+		@Override
+		public String getExpressionString() {
+			return expression.getExpressionString();
+		}
+
+		@Override
+		public String toString() {
+			return expression.toString();
+		}
+	}
+}
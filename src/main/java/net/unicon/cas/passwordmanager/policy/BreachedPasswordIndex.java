@@ -0,0 +1,278 @@
+package net.unicon.cas.passwordmanager.policy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import net.unicon.cas.passwordmanager.PasswordManagerException;
+import net.unicon.cas.passwordmanager.cache.BloomFilter;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * <p>Checks passwords against a local list of breached password hashes,
+ * built with BreachedPasswordIndexBuilder from a dump such as Have I Been
+ * Pwned's. Only the first 8 bytes of each SHA-1 or NTLM hash are kept, in
+ * a sorted file that is memory-mapped rather than read, so a list of
+ * hundreds of millions of hashes costs about 512KB of heap: the offset of
+ * each 16-bit prefix's entries, loaded from the file header. A lookup is a
+ * binary search among the few thousand entries sharing the prefix.</p>
+ *
+ * <p>Optionally, a Bloom filter of the entries is built in the background
+ * when the file is opened, so most passwords that aren't listed are
+ * answered without touching the file. It takes about 10 bits of heap per
+ * entry at a 1% false positive rate, so it's only worth it for smaller
+ * lists, or where the file won't stay in the page cache.</p>
+ *
+ * <p>File layout: magic "PMBRCH01" (8), hash type (4), unused (4), entry
+ * count (8), 65537 entry offsets, one per 16-bit prefix plus the end (8
+ * each), then the entries (8 each, big-endian, sorted as unsigned). With no
+ * file configured, no password is reported as breached.</p>
+ */
+public class BreachedPasswordIndex implements InitializingBean, DisposableBean {
+
+	static final long MAGIC = 0x504d425243483031L; // "PMBRCH01"
+	static final int BUCKETS = 65536;
+	static final int HEADER_SIZE = 24 + (BUCKETS + 1) * 8;
+	private static final int CHUNK_BITS = 27; // entries per mapped chunk (1GB)
+	private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+	/**
+	 * <p>Hash the list was built from.</p>
+	 */
+	public enum HashType {
+		SHA1(1) {
+			@Override
+			byte[] digest(String password) {
+				return SHA1_DIGEST.get().digest(bytes(password, "UTF-8"));
+			}
+		},
+		NTLM(2) {
+			@Override
+			byte[] digest(String password) {
+				return Md4.digest(bytes(password, "UTF-16LE"));
+			}
+		};
+
+		private final int code;
+
+		private HashType(int code) {
+			this.code = code;
+		}
+
+		int getCode() {
+			return code;
+		}
+
+		abstract byte[] digest(String password);
+
+		/**
+		 * <p>Gets the first 8 bytes of the password's hash, as stored in
+		 * the index.</p>
+		 */
+		long prefix(String password) {
+			return ByteBuffer.wrap(digest(password)).getLong();
+		}
+
+		static HashType forCode(int code) {
+			for(HashType type : values()) {
+				if(type.code == code) {
+					return type;
+				}
+			}
+			return null;
+		}
+
+		private static byte[] bytes(String password, String charset) {
+			try {
+				return password.getBytes(charset);
+			} catch(UnsupportedEncodingException ex) {
+				throw new PasswordManagerException(charset + " not supported", ex);
+			}
+		}
+	}
+
+	private static final ThreadLocal<MessageDigest> SHA1_DIGEST = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-1");
+			} catch(NoSuchAlgorithmException ex) {
+				throw new PasswordManagerException("SHA-1 not supported", ex);
+			}
+		}
+	};
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+	private File file;
+	private boolean bloomFilterEnabled = false;
+	private double bloomFilterFalsePositiveProbability = 0.01;
+	private RandomAccessFile randomAccessFile;
+	private HashType hashType;
+	private long count;
+	private long[] bucketStarts;
+	private MappedByteBuffer[] chunks;
+	private volatile BloomFilter bloomFilter;
+
+	/**
+	 * <p>Checks whether a password is in the list.</p>
+	 * @return true if the password's hash prefix is listed; false if not, or
+	 * if no list is configured
+	 */
+	public boolean isBreached(String password) {
+		if(chunks == null || password == null) {
+			return false;
+		}
+		long prefix = hashType.prefix(password);
+		BloomFilter filter = bloomFilter;
+		if(filter != null && !filter.mightContain(prefix)) {
+			return false;
+		}
+		return contains(prefix);
+	}
+
+	private boolean contains(long prefix) {
+		int bucket = (int) (prefix >>> 48);
+		long low = bucketStarts[bucket];
+		long high = bucketStarts[bucket + 1] - 1;
+		// entries in a bucket share their top 16 bits, so a signed compare
+		// orders them the same as an unsigned one
+		while(low <= high) {
+			long middle = (low + high) >>> 1;
+			long entry = entry(middle);
+			if(entry < prefix) {
+				low = middle + 1;
+			} else if(entry > prefix) {
+				high = middle - 1;
+			} else {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private long entry(long index) {
+		return chunks[(int) (index >>> CHUNK_BITS)].getLong((int) ((index & CHUNK_MASK) << 3));
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		if(file == null) {
+			logger.info("No breached password list configured");
+			return;
+		}
+
+		randomAccessFile = new RandomAccessFile(file, "r");
+		FileChannel channel = randomAccessFile.getChannel();
+		MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+		if(header.getLong() != MAGIC) {
+			throw new IOException(file + " is not a breached password index");
+		}
+		hashType = HashType.forCode(header.getInt());
+		header.getInt();
+		count = header.getLong();
+		if(hashType == null || count < 0 || randomAccessFile.length() != HEADER_SIZE + count * 8) {
+			throw new IOException(file + " is truncated or has an unsupported layout");
+		}
+		bucketStarts = new long[BUCKETS + 1];
+		for(int i=0;i<=BUCKETS;i++) {
+			bucketStarts[i] = header.getLong();
+			if(bucketStarts[i] < (i == 0 ? 0 : bucketStarts[i - 1])) {
+				throw new IOException(file + " has a corrupt header");
+			}
+		}
+		if(bucketStarts[BUCKETS] != count) {
+			throw new IOException(file + " has a corrupt header");
+		}
+
+		MappedByteBuffer[] mapped = new MappedByteBuffer[(int) ((count + CHUNK_MASK) >>> CHUNK_BITS)];
+		for(int i=0;i<mapped.length;i++) {
+			long first = (long) i << CHUNK_BITS;
+			long entries = Math.min(count - first, 1L << CHUNK_BITS);
+			mapped[i] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + first * 8, entries * 8);
+		}
+		chunks = mapped;
+		logger.info("Opened breached password list " + file + " with " + count + " " + hashType + " hashes");
+
+		if(bloomFilterEnabled && count > 0) {
+			Thread loader = new Thread(new Runnable() {
+				public void run() {
+					loadBloomFilter();
+				}
+			}, "pm-breached-password-bloom");
+			loader.setDaemon(true);
+			loader.start();
+		}
+	}
+
+	private void loadBloomFilter() {
+		try {
+			long start = System.currentTimeMillis();
+			BloomFilter filter = new BloomFilter((int) Math.min(count, Integer.MAX_VALUE),
+					bloomFilterFalsePositiveProbability);
+			for(long i=0;i<count && chunks != null;i++) {
+				filter.put(entry(i));
+			}
+			bloomFilter = filter;
+			logger.info("Loaded " + count + " breached password hashes into a Bloom filter of "
+					+ filter.getBitCount() / 8 / 1024 + "KB in " + (System.currentTimeMillis() - start) + "ms");
+		} catch(RuntimeException ex) {
+			logger.error("Couldn't load the breached password Bloom filter", ex);
+		} catch(OutOfMemoryError ex) {
+			logger.error("Not enough memory for the breached password Bloom filter; "
+					+ "disable it or give CAS more heap", ex);
+		}
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		bloomFilter = null;
+		chunks = null;
+		if(randomAccessFile != null) {
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * <p>Gets the number of hashes in the list.</p>
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	public HashType getHashType() {
+		return hashType;
+	}
+
+	/**
+	 * <p>Sets the index file built by BreachedPasswordIndexBuilder. If
+	 * empty, no password is reported as breached.</p>
+	 */
+	public void setFile(String file) {
+		this.file = file == null || file.length() == 0 ? null : new File(file);
+	}
+
+	/**
+	 * <p>Sets whether a Bloom filter of the list is kept in memory in front
+	 * of the file. Default is false.</p>
+	 */
+	public void setBloomFilterEnabled(boolean bloomFilterEnabled) {
+		this.bloomFilterEnabled = bloomFilterEnabled;
+	}
+
+	/**
+	 * <p>Sets the Bloom filter's false positive probability. Default is
+	 * 0.01.</p>
+	 */
+	public void setBloomFilterFalsePositiveProbability(double bloomFilterFalsePositiveProbability) {
+		this.bloomFilterFalsePositiveProbability = bloomFilterFalsePositiveProbability;
+	}
+}
@@ -0,0 +1,289 @@
+package net.unicon.cas.passwordmanager.policy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * <p>Builds the file read by BreachedPasswordIndex from text dumps of
+ * breached password hashes, run offline:</p>
+ *
+ * <pre>
+ * java -cp cas.war/WEB-INF/classes net.unicon.cas.passwordmanager.policy.BreachedPasswordIndexBuilder \
+ *     [-ntlm] [-plain] [-sort-entries N] breached.idx pwned-passwords-sha1.txt ...
+ * </pre>
+ *
+ * <p>Each input line is a hex SHA-1 hash (or NTLM with -ntlm), optionally
+ * followed by ":count" as in Have I Been Pwned's downloads; with -plain,
+ * each line is a password to hash. Files ending in .gz are decompressed.
+ * Input needn't be sorted or unique: hashes are sorted in runs of
+ * -sort-entries (default 32 million, 256MB of heap) written to temporary
+ * files, which are then merged into the index.</p>
+ */
+public class BreachedPasswordIndexBuilder {
+
+	private final BreachedPasswordIndex.HashType hashType;
+	private final boolean plain;
+	private final long[] buffer;
+	private final List<File> runs = new ArrayList<File>();
+	private int buffered;
+	private long lines;
+	private long skipped;
+
+	public BreachedPasswordIndexBuilder(BreachedPasswordIndex.HashType hashType, boolean plain, int sortEntries) {
+		this.hashType = hashType;
+		this.plain = plain;
+		this.buffer = new long[sortEntries];
+	}
+
+	public static void main(String[] args) throws IOException {
+		BreachedPasswordIndex.HashType hashType = BreachedPasswordIndex.HashType.SHA1;
+		boolean plain = false;
+		int sortEntries = 32 * 1024 * 1024;
+		int i = 0;
+		for(;i<args.length && args[i].startsWith("-");i++) {
+			if(args[i].equals("-ntlm")) {
+				hashType = BreachedPasswordIndex.HashType.NTLM;
+			} else if(args[i].equals("-sha1")) {
+				hashType = BreachedPasswordIndex.HashType.SHA1;
+			} else if(args[i].equals("-plain")) {
+				plain = true;
+			} else if(args[i].equals("-sort-entries") && i + 1 < args.length) {
+				sortEntries = Integer.parseInt(args[++i]);
+			} else {
+				usage();
+				return;
+			}
+		}
+		if(args.length - i < 2) {
+			usage();
+			return;
+		}
+
+		BreachedPasswordIndexBuilder builder = new BreachedPasswordIndexBuilder(hashType, plain, sortEntries);
+		File output = new File(args[i++]);
+		for(;i<args.length;i++) {
+			builder.add(new File(args[i]));
+		}
+		long count = builder.write(output);
+		System.out.println("Wrote " + count + " " + hashType + " hashes to " + output + " ("
+				+ builder.lines + " lines read, " + builder.skipped + " skipped)");
+	}
+
+	private static void usage() {
+		System.err.println("Usage: BreachedPasswordIndexBuilder [-sha1|-ntlm] [-plain] [-sort-entries N] "
+				+ "output input...");
+	}
+
+	/**
+	 * <p>Reads the hashes in a text file.</p>
+	 */
+	public void add(File input) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(input), 1 << 16);
+		if(input.getName().endsWith(".gz")) {
+			in = new GZIPInputStream(in, 1 << 16);
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"), 1 << 16);
+		try {
+			String line;
+			while((line = reader.readLine()) != null) {
+				lines++;
+				if(plain) {
+					if(line.length() > 0) {
+						add(hashType.prefix(line));
+					}
+					continue;
+				}
+				String hash = line.trim();
+				if(isHex(hash)) {
+					add(parseHex(hash));
+				} else {
+					skipped++;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private void add(long prefix) throws IOException {
+		if(buffered == buffer.length) {
+			flushRun();
+		}
+		buffer[buffered++] = prefix;
+	}
+
+	// whether the line starts with at least 16 hex digits
+	private static boolean isHex(String line) {
+		if(line.length() < 16) {
+			return false;
+		}
+		for(int i=0;i<16;i++) {
+			if(Character.digit(line.charAt(i), 16) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// first 16 hex digits as a long
+	private static long parseHex(String line) {
+		long value = 0;
+		for(int i=0;i<16;i++) {
+			value = value << 4 | Character.digit(line.charAt(i), 16);
+		}
+		return value;
+	}
+
+	// sorts the buffer and writes it to a temporary file, without duplicates
+	private void flushRun() throws IOException {
+		if(buffered == 0) {
+			return;
+		}
+		int unique = sortUnique(buffer, buffered);
+		File run = File.createTempFile("pm-breached-", ".run");
+		run.deleteOnExit();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16));
+		try {
+			for(int i=0;i<unique;i++) {
+				out.writeLong(buffer[i]);
+			}
+		} finally {
+			out.close();
+		}
+		runs.add(run);
+		buffered = 0;
+	}
+
+	// sorts as unsigned by flipping the sign bit around a signed sort
+	private static int sortUnique(long[] values, int length) {
+		for(int i=0;i<length;i++) {
+			values[i] ^= Long.MIN_VALUE;
+		}
+		Arrays.sort(values, 0, length);
+		int unique = 0;
+		for(int i=0;i<length;i++) {
+			if(unique == 0 || values[i] != values[unique - 1]) {
+				values[unique++] = values[i];
+			}
+		}
+		for(int i=0;i<unique;i++) {
+			values[i] ^= Long.MIN_VALUE;
+		}
+		return unique;
+	}
+
+	/**
+	 * <p>Merges everything read into the index file.</p>
+	 * @return the number of unique hashes written
+	 */
+	public long write(File output) throws IOException {
+		flushRun();
+
+		PriorityQueue<Run> queue = new PriorityQueue<Run>();
+		for(File run : runs) {
+			Run reader = new Run(run);
+			if(reader.next()) {
+				queue.add(reader);
+			} else {
+				reader.close();
+			}
+		}
+
+		long[] bucketCounts = new long[BreachedPasswordIndex.BUCKETS];
+		long count = 0;
+		RandomAccessFile file = new RandomAccessFile(output, "rw");
+		try {
+			file.setLength(0);
+			file.seek(BreachedPasswordIndex.HEADER_SIZE);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(file.getFD()), 1 << 16));
+			boolean first = true;
+			long last = 0;
+			while(!queue.isEmpty()) {
+				Run run = queue.poll();
+				long value = run.current;
+				if(first || value != last) {
+					out.writeLong(value);
+					bucketCounts[(int) (value >>> 48)]++;
+					count++;
+					last = value;
+					first = false;
+				}
+				if(run.next()) {
+					queue.add(run);
+				} else {
+					run.close();
+				}
+			}
+			out.flush();
+
+			ByteBuffer header = ByteBuffer.allocate(BreachedPasswordIndex.HEADER_SIZE);
+			header.putLong(BreachedPasswordIndex.MAGIC);
+			header.putInt(hashType.getCode());
+			header.putInt(0);
+			header.putLong(count);
+			long start = 0;
+			for(int i=0;i<BreachedPasswordIndex.BUCKETS;i++) {
+				header.putLong(start);
+				start += bucketCounts[i];
+			}
+			header.putLong(start);
+			file.seek(0);
+			file.write(header.array());
+		} finally {
+			file.close();
+			for(File run : runs) {
+				run.delete();
+			}
+			runs.clear();
+		}
+		return count;
+	}
+
+	private static class Run implements Comparable<Run> {
+
+		private final DataInputStream in;
+		private long current;
+
+		Run(File file) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		}
+
+		boolean next() throws IOException {
+			try {
+				current = in.readLong();
+				return true;
+			} catch(EOFException ex) {
+				return false;
+			}
+		}
+
+		void close() throws IOException {
+			in.close();
+		}
+
+		@Override
+		public int compareTo(Run other) {
+			long a = current ^ Long.MIN_VALUE;
+			long b = other.current ^ Long.MIN_VALUE;
+			return a < b ? -1 : a == b ? 0 : 1;
+		}
+	}
+}
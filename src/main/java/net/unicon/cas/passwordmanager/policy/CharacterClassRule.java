@@ -0,0 +1,31 @@
+package net.unicon.cas.passwordmanager.policy;
+
+/**
+ * <p>Requires a password to have characters from a number of the classes
+ * lowercase letters, uppercase letters, digits and other characters (e.g.
+ * "3 of the 4"). A limit of 0 isn't checked. The number of characters of each
+ * class is checked by LowercaseRule, UppercaseRule, DigitRule and
+ * OtherCharacterRule.</p>
+ */
+public class CharacterClassRule implements PasswordRule {
+
+	private int minClasses = 0;
+
+	@Override
+	public PasswordRuleViolation check(PasswordCharacteristics password) {
+		if(password.getCharacterClasses() < minClasses) {
+			return new PasswordRuleViolation("cas.pm.newpassword.classes",
+					"The password must contain " + minClasses + " of: lowercase letters, uppercase letters, "
+					+ "numbers and symbols", minClasses);
+		}
+		return null;
+	}
+
+	/**
+	 * <p>Sets the minimum number of classes (lowercase, uppercase, digits,
+	 * others) the password must have characters from.</p>
+	 */
+	public void setMinClasses(int minClasses) {
+		this.minClasses = minClasses;
+	}
+}
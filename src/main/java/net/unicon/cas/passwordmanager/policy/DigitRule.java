@@ -0,0 +1,23 @@
+package net.unicon.cas.passwordmanager.policy;
+
+/**
+ * <p>Requires a password to have a number of digits. A limit of 0 isn't
+ * checked.</p>
+ */
+public class DigitRule implements PasswordRule {
+
+	private int minDigits = 0;
+
+	@Override
+	public PasswordRuleViolation check(PasswordCharacteristics password) {
+		if(password.getDigits() < minDigits) {
+			return new PasswordRuleViolation("cas.pm.newpassword.digits",
+					"The password must contain at least " + minDigits + " number(s)", minDigits);
+		}
+		return null;
+	}
+
+	public void setMinDigits(int minDigits) {
+		this.minDigits = minDigits;
+	}
+}
@@ -0,0 +1,32 @@
+package net.unicon.cas.passwordmanager.policy;
+
+/**
+ * <p>Requires a password to be between minLength and maxLength characters
+ * long. A limit of 0 isn't checked.</p>
+ */
+public class LengthRule implements PasswordRule {
+
+	private int minLength = 0;
+	private int maxLength = 0;
+
+	@Override
+	public PasswordRuleViolation check(PasswordCharacteristics password) {
+		if(password.getLength() < minLength) {
+			return new PasswordRuleViolation("cas.pm.newpassword.too-short",
+					"The password must be at least " + minLength + " characters", minLength);
+		}
+		if(maxLength > 0 && password.getLength() > maxLength) {
+			return new PasswordRuleViolation("cas.pm.newpassword.too-long",
+					"The password must be at most " + maxLength + " characters", maxLength);
+		}
+		return null;
+	}
+
+	public void setMinLength(int minLength) {
+		this.minLength = minLength;
+	}
+
+	public void setMaxLength(int maxLength) {
+		this.maxLength = maxLength;
+	}
+}
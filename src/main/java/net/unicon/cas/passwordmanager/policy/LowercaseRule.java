@@ -0,0 +1,23 @@
+package net.unicon.cas.passwordmanager.policy;
+
+/**
+ * <p>Requires a password to have a number of lowercase letters. A limit of 0 isn't
+ * checked.</p>
+ */
+public class LowercaseRule implements PasswordRule {
+
+	private int minLowercase = 0;
+
+	@Override
+	public PasswordRuleViolation check(PasswordCharacteristics password) {
+		if(password.getLowercase() < minLowercase) {
+			return new PasswordRuleViolation("cas.pm.newpassword.lowercase",
+					"The password must contain at least " + minLowercase + " lowercase letter(s)", minLowercase);
+		}
+		return null;
+	}
+
+	public void setMinLowercase(int minLowercase) {
+		this.minLowercase = minLowercase;
+	}
+}
@@ -0,0 +1,73 @@
+package net.unicon.cas.passwordmanager.policy;
+
+/**
+ * <p>MD4 (RFC 1320), needed for NTLM hashes and not provided by the JDK's
+ * MessageDigest. Only hashes whole byte arrays.</p>
+ */
+final class Md4 {
+
+	private Md4() { }
+
+	static byte[] digest(byte[] message) {
+		// pad to 56 mod 64, then the length in bits, little-endian
+		int padded = ((message.length + 8) / 64 + 1) * 64;
+		byte[] data = new byte[padded];
+		System.arraycopy(message, 0, data, 0, message.length);
+		data[message.length] = (byte) 0x80;
+		long bits = (long) message.length * 8;
+		for(int i=0;i<8;i++) {
+			data[padded - 8 + i] = (byte) (bits >>> (8 * i));
+		}
+
+		int a = 0x67452301;
+		int b = 0xefcdab89;
+		int c = 0x98badcfe;
+		int d = 0x10325476;
+		int[] x = new int[16];
+		for(int block=0;block<padded;block+=64) {
+			for(int i=0;i<16;i++) {
+				int o = block + i * 4;
+				x[i] = (data[o] & 0xff) | (data[o + 1] & 0xff) << 8
+						| (data[o + 2] & 0xff) << 16 | (data[o + 3] & 0xff) << 24;
+			}
+			int aa = a;
+			int bb = b;
+			int cc = c;
+			int dd = d;
+
+			for(int i=0;i<16;i+=4) {
+				a = Integer.rotateLeft(a + ((b & c) | (~b & d)) + x[i], 3);
+				d = Integer.rotateLeft(d + ((a & b) | (~a & c)) + x[i + 1], 7);
+				c = Integer.rotateLeft(c + ((d & a) | (~d & b)) + x[i + 2], 11);
+				b = Integer.rotateLeft(b + ((c & d) | (~c & a)) + x[i + 3], 19);
+			}
+			for(int i=0;i<4;i++) {
+				a = Integer.rotateLeft(a + ((b & c) | (b & d) | (c & d)) + x[i] + 0x5a827999, 3);
+				d = Integer.rotateLeft(d + ((a & b) | (a & c) | (b & c)) + x[i + 4] + 0x5a827999, 5);
+				c = Integer.rotateLeft(c + ((d & a) | (d & b) | (a & b)) + x[i + 8] + 0x5a827999, 9);
+				b = Integer.rotateLeft(b + ((c & d) | (c & a) | (d & a)) + x[i + 12] + 0x5a827999, 13);
+			}
+			int[] order = { 0, 2, 1, 3 };
+			for(int i : order) {
+				a = Integer.rotateLeft(a + (b ^ c ^ d) + x[i] + 0x6ed9eba1, 3);
+				d = Integer.rotateLeft(d + (a ^ b ^ c) + x[i + 8] + 0x6ed9eba1, 9);
+				c = Integer.rotateLeft(c + (d ^ a ^ b) + x[i + 4] + 0x6ed9eba1, 11);
+				b = Integer.rotateLeft(b + (c ^ d ^ a) + x[i + 12] + 0x6ed9eba1, 15);
+			}
+
+			a += aa;
+			b += bb;
+			c += cc;
+			d += dd;
+		}
+
+		byte[] digest = new byte[16];
+		int[] state = { a, b, c, d };
+		for(int i=0;i<4;i++) {
+			for(int j=0;j<4;j++) {
+				digest[i * 4 + j] = (byte) (state[i] >>> (8 * j));
+			}
+		}
+		return digest;
+	}
+}
@@ -0,0 +1,18 @@
+package net.unicon.cas.passwordmanager.policy;
+
+/**
+ * <p>Rejects passwords containing the old password, ignoring case, so
+ * "Secret1" can't simply become "Secret12". Only checked when changing a
+ * password, since the old one isn't known when resetting it.</p>
+ */
+public class OldPasswordRule implements PasswordRule {
+
+	@Override
+	public PasswordRuleViolation check(PasswordCharacteristics password) {
+		if(password.isContainsOldPassword()) {
+			return new PasswordRuleViolation("cas.pm.newpassword.similar",
+					"The new password is too similar to the current one");
+		}
+		return null;
+	}
+}
@@ -0,0 +1,27 @@
+package net.unicon.cas.passwordmanager.policy;
+
+/**
+ * <p>Requires a password to have a number of characters that aren't letters
+ * or digits. A limit of 0 isn't checked.</p>
+ */
+public class OtherCharacterRule implements PasswordRule {
+
+	private int minOthers = 0;
+
+	@Override
+	public PasswordRuleViolation check(PasswordCharacteristics password) {
+		if(password.getOthers() < minOthers) {
+			return new PasswordRuleViolation("cas.pm.newpassword.others",
+					"The password must contain at least " + minOthers + " symbol(s)", minOthers);
+		}
+		return null;
+	}
+
+	/**
+	 * <p>Sets the minimum number of characters that aren't letters or
+	 * digits.</p>
+	 */
+	public void setMinOthers(int minOthers) {
+		this.minOthers = minOthers;
+	}
+}
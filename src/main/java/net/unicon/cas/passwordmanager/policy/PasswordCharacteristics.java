@@ -0,0 +1,141 @@
+package net.unicon.cas.passwordmanager.policy;
+
+/**
+ * <p>What a PasswordPolicy found in a single pass over a password: its
+ * length, how many characters of each class it has, its longest run of
+ * repeated and sequential characters, and whether it contains the username
+ * or old password.</p>
+ */
+public class PasswordCharacteristics {
+
+	private int length;
+	private int lowercase;
+	private int uppercase;
+	private int digits;
+	private int others;
+	private int longestRepeat;
+	private int longestSequence;
+	private int usernameLength;
+	private boolean containsUsername;
+	private boolean containsOldPassword;
+
+	/**
+	 * <p>Scans a password. The username and old password are looked for
+	 * ignoring case, with a matcher that never goes back over a character,
+	 * so the whole scan is a single pass.</p>
+	 * @param password password to scan
+	 * @param username username to look for, or null
+	 * @param oldPassword old password to look for, or null
+	 */
+	public static PasswordCharacteristics scan(String password, String username, String oldPassword) {
+		PasswordCharacteristics c = new PasswordCharacteristics();
+		SubstringMatcher usernameMatcher = SubstringMatcher.of(username);
+		SubstringMatcher oldPasswordMatcher = SubstringMatcher.of(oldPassword);
+		int repeat = 0;
+		int sequence = 0;
+		int step = 0;
+		char previous = 0;
+
+		c.length = password.length();
+		c.usernameLength = username == null ? 0 : username.length();
+		for(int i=0;i<password.length();i++) {
+			char ch = password.charAt(i);
+			if(Character.isLowerCase(ch)) {
+				c.lowercase++;
+			} else if(Character.isUpperCase(ch)) {
+				c.uppercase++;
+			} else if(Character.isDigit(ch)) {
+				c.digits++;
+			} else {
+				c.others++;
+			}
+
+			if(i > 0 && ch == previous) {
+				repeat++;
+			} else {
+				repeat = 1;
+			}
+			c.longestRepeat = Math.max(c.longestRepeat, repeat);
+
+			// runs like "abc", "4321"
+			int diff = ch - previous;
+			if(i > 0 && (diff == 1 || diff == -1)) {
+				// a change of direction ("cb" in "abcb") starts a new run
+				// of two from the previous character
+				sequence = sequence == 1 || diff == step ? sequence + 1 : 2;
+			} else {
+				sequence = 1;
+			}
+			step = diff;
+			c.longestSequence = Math.max(c.longestSequence, sequence);
+			previous = ch;
+
+			if(usernameMatcher != null && usernameMatcher.next(ch)) {
+				c.containsUsername = true;
+			}
+			if(oldPasswordMatcher != null && oldPasswordMatcher.next(ch)) {
+				c.containsOldPassword = true;
+			}
+		}
+		return c;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public int getLowercase() {
+		return lowercase;
+	}
+
+	public int getUppercase() {
+		return uppercase;
+	}
+
+	public int getDigits() {
+		return digits;
+	}
+
+	/**
+	 * <p>Gets the number of characters that aren't letters or digits.</p>
+	 */
+	public int getOthers() {
+		return others;
+	}
+
+	/**
+	 * <p>Gets the number of character classes (lowercase, uppercase, digits,
+	 * others) the password has at least one character of.</p>
+	 */
+	public int getCharacterClasses() {
+		return (lowercase > 0 ? 1 : 0) + (uppercase > 0 ? 1 : 0)
+				+ (digits > 0 ? 1 : 0) + (others > 0 ? 1 : 0);
+	}
+
+	/**
+	 * <p>Gets the length of the longest run of the same character.</p>
+	 */
+	public int getLongestRepeat() {
+		return longestRepeat;
+	}
+
+	/**
+	 * <p>Gets the length of the longest run of ascending or descending
+	 * consecutive characters.</p>
+	 */
+	public int getLongestSequence() {
+		return longestSequence;
+	}
+
+	public int getUsernameLength() {
+		return usernameLength;
+	}
+
+	public boolean isContainsUsername() {
+		return containsUsername;
+	}
+
+	public boolean isContainsOldPassword() {
+		return containsOldPassword;
+	}
+}
@@ -0,0 +1,57 @@
+package net.unicon.cas.passwordmanager.policy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>Checks new passwords against a list of rules. The password is scanned
+ * once, whatever the number of rules, and every rule it breaks is reported
+ * with its own message code, so the user can be told exactly what's
+ * wrong.</p>
+ *
+ * <p>Rules are configured as beans, e.g.</p>
+ * <pre>
+ * &lt;bean class="net.unicon.cas.passwordmanager.policy.PasswordPolicy"&gt;
+ *     &lt;property name="rules"&gt;
+ *         &lt;list&gt;
+ *             &lt;bean class="net.unicon.cas.passwordmanager.policy.LengthRule" p:minLength="8"/&gt;
+ *             &lt;bean class="net.unicon.cas.passwordmanager.policy.UsernameRule"/&gt;
+ *         &lt;/list&gt;
+ *     &lt;/property&gt;
+ * &lt;/bean&gt;
+ * </pre>
+ */
+public class PasswordPolicy {
+
+	private PasswordRule[] rules = new PasswordRule[0];
+
+	/**
+	 * <p>Checks a password against every rule.</p>
+	 * @param password the new password
+	 * @param username the user's username, or null if not known
+	 * @param oldPassword the user's current password, or null if not known
+	 * @return the rules broken, empty if none
+	 */
+	public List<PasswordRuleViolation> check(String password, String username, String oldPassword) {
+		PasswordCharacteristics characteristics = PasswordCharacteristics.scan(password, username, oldPassword);
+		List<PasswordRuleViolation> violations = null;
+		for(PasswordRule rule : rules) {
+			PasswordRuleViolation violation = rule.check(characteristics);
+			if(violation != null) {
+				if(violations == null) {
+					violations = new ArrayList<PasswordRuleViolation>(2);
+				}
+				violations.add(violation);
+			}
+		}
+		return violations == null ? Collections.<PasswordRuleViolation>emptyList() : violations;
+	}
+
+	/**
+	 * <p>Sets the rules, in the order their messages are shown.</p>
+	 */
+	public void setRules(List<PasswordRule> rules) {
+		this.rules = rules.toArray(new PasswordRule[rules.size()]);
+	}
+}
@@ -0,0 +1,16 @@
+package net.unicon.cas.passwordmanager.policy;
+
+/**
+ * <p>A single requirement of a PasswordPolicy. Rules don't look at the
+ * password themselves; the policy scans it once and each rule checks the
+ * resulting PasswordCharacteristics.</p>
+ */
+public interface PasswordRule {
+
+	/**
+	 * <p>Checks a password against the rule.</p>
+	 * @param password characteristics of the password being checked
+	 * @return the violation, or null if the password satisfies the rule
+	 */
+	PasswordRuleViolation check(PasswordCharacteristics password);
+}
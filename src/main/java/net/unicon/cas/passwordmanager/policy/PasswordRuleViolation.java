@@ -0,0 +1,39 @@
+package net.unicon.cas.passwordmanager.policy;
+
+import java.io.Serializable;
+
+/**
+ * <p>Bean for holding why a password was rejected: a message code, the
+ * arguments for the message and a default text to use if the code isn't
+ * defined.</p>
+ */
+public class PasswordRuleViolation implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+	private final String code;
+	private final String defaultText;
+	private final Object[] args;
+
+	public PasswordRuleViolation(String code, String defaultText, Object... args) {
+		this.code = code;
+		this.defaultText = defaultText;
+		this.args = args;
+	}
+
+	public String getCode() {
+		return code;
+	}
+
+	public String getDefaultText() {
+		return defaultText;
+	}
+
+	public Object[] getArgs() {
+		return args;
+	}
+
+	@Override
+	public String toString() {
+		return code;
+	}
+}
@@ -0,0 +1,28 @@
+package net.unicon.cas.passwordmanager.policy;
+
+/**
+ * <p>Rejects passwords with long runs of the same character ("aaaa"). A
+ * limit of 0 isn't checked. Runs of consecutive characters are checked by
+ * SequenceRule.</p>
+ */
+public class RepetitionRule implements PasswordRule {
+
+	private int maxRepeated = 0;
+
+	@Override
+	public PasswordRuleViolation check(PasswordCharacteristics password) {
+		if(maxRepeated > 0 && password.getLongestRepeat() > maxRepeated) {
+			return new PasswordRuleViolation("cas.pm.newpassword.repeated",
+					"The password must not repeat the same character more than " + maxRepeated + " times in a row",
+					maxRepeated);
+		}
+		return null;
+	}
+
+	/**
+	 * <p>Sets the longest allowed run of the same character.</p>
+	 */
+	public void setMaxRepeated(int maxRepeated) {
+		this.maxRepeated = maxRepeated;
+	}
+}
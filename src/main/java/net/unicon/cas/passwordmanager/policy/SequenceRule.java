@@ -0,0 +1,28 @@
+package net.unicon.cas.passwordmanager.policy;
+
+/**
+ * <p>Rejects passwords with long runs of consecutive characters ("abcd",
+ * "4321"). A limit of 0 isn't checked.</p>
+ */
+public class SequenceRule implements PasswordRule {
+
+	private int maxSequence = 0;
+
+	@Override
+	public PasswordRuleViolation check(PasswordCharacteristics password) {
+		if(maxSequence > 0 && password.getLongestSequence() > maxSequence) {
+			return new PasswordRuleViolation("cas.pm.newpassword.sequence",
+					"The password must not contain more than " + maxSequence + " consecutive characters like abc or 123",
+					maxSequence);
+		}
+		return null;
+	}
+
+	/**
+	 * <p>Sets the longest allowed run of ascending or descending
+	 * consecutive characters.</p>
+	 */
+	public void setMaxSequence(int maxSequence) {
+		this.maxSequence = maxSequence;
+	}
+}
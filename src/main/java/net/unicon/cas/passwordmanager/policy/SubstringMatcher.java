@@ -0,0 +1,62 @@
+package net.unicon.cas.passwordmanager.policy;
+
+/**
+ * <p>Finds a string within another one character at a time, ignoring case
+ * (Knuth-Morris-Pratt).</p>
+ */
+class SubstringMatcher {
+
+	private final char[] pattern;
+	private final int[] fallback;
+	private int matched;
+
+	private SubstringMatcher(String pattern) {
+		this.pattern = new char[pattern.length()];
+		for(int i=0;i<pattern.length();i++) {
+			this.pattern[i] = fold(pattern.charAt(i));
+		}
+		// fallback[i] is the length of the longest proper prefix of
+		// pattern[0..i] that is also a suffix of it
+		fallback = new int[this.pattern.length];
+		int k = 0;
+		for(int i=1;i<this.pattern.length;i++) {
+			while(k > 0 && this.pattern[i] != this.pattern[k]) {
+				k = fallback[k - 1];
+			}
+			if(this.pattern[i] == this.pattern[k]) {
+				k++;
+			}
+			fallback[i] = k;
+		}
+	}
+
+	/**
+	 * @return a matcher, or null if there's nothing to look for
+	 */
+	static SubstringMatcher of(String pattern) {
+		return pattern == null || pattern.length() == 0 ? null : new SubstringMatcher(pattern);
+	}
+
+	/**
+	 * <p>Feeds the next character of the text.</p>
+	 * @return true if the text read so far ends with the pattern
+	 */
+	boolean next(char c) {
+		c = fold(c);
+		while(matched > 0 && pattern[matched] != c) {
+			matched = fallback[matched - 1];
+		}
+		if(pattern[matched] == c) {
+			matched++;
+		}
+		if(matched == pattern.length) {
+			matched = fallback[matched - 1];
+			return true;
+		}
+		return false;
+	}
+
+	private static char fold(char c) {
+		return Character.toLowerCase(Character.toUpperCase(c));
+	}
+}
@@ -0,0 +1,23 @@
+package net.unicon.cas.passwordmanager.policy;
+
+/**
+ * <p>Requires a password to have a number of uppercase letters. A limit of 0 isn't
+ * checked.</p>
+ */
+public class UppercaseRule implements PasswordRule {
+
+	private int minUppercase = 0;
+
+	@Override
+	public PasswordRuleViolation check(PasswordCharacteristics password) {
+		if(password.getUppercase() < minUppercase) {
+			return new PasswordRuleViolation("cas.pm.newpassword.uppercase",
+					"The password must contain at least " + minUppercase + " uppercase letter(s)", minUppercase);
+		}
+		return null;
+	}
+
+	public void setMinUppercase(int minUppercase) {
+		this.minUppercase = minUppercase;
+	}
+}
@@ -0,0 +1,28 @@
+package net.unicon.cas.passwordmanager.policy;
+
+/**
+ * <p>Rejects passwords containing the username, ignoring case. Usernames
+ * shorter than minUsernameLength aren't checked, since a short username
+ * would rule out too many passwords.</p>
+ */
+public class UsernameRule implements PasswordRule {
+
+	private int minUsernameLength = 3;
+
+	@Override
+	public PasswordRuleViolation check(PasswordCharacteristics password) {
+		if(password.getUsernameLength() >= minUsernameLength && password.isContainsUsername()) {
+			return new PasswordRuleViolation("cas.pm.newpassword.username",
+					"The password must not contain your NetID");
+		}
+		return null;
+	}
+
+	/**
+	 * <p>Sets the length a username must have to be checked. Default is
+	 * 3.</p>
+	 */
+	public void setMinUsernameLength(int minUsernameLength) {
+		this.minUsernameLength = minUsernameLength;
+	}
+}
@@ -0,0 +1,83 @@
+package net.unicon.cas.passwordmanager.service;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * <p>Stands in for a network between several lockout services running in
+ * the same JVM, e.g. to try out a multi-node setup without a cluster. Each
+ * service gets its own transport from createTransport(); updates sent by
+ * one are delivered asynchronously to all the others.</p>
+ */
+public class InProcessLockoutReplicationHub implements DisposableBean {
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+	private final List<HubTransport> transports = new CopyOnWriteArrayList<HubTransport>();
+	private final ExecutorService deliveryExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "pm-lockout-hub");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/**
+	 * <p>Creates a transport connected to this hub.</p>
+	 */
+	public LockoutReplicationTransport createTransport() {
+		return new HubTransport();
+	}
+
+	private void deliver(final HubTransport sender, final List<LockoutUpdate> updates) {
+		try {
+			deliveryExecutor.execute(new Runnable() {
+				public void run() {
+					for(HubTransport transport : transports) {
+						if(transport != sender) {
+							try {
+								transport.listener.onUpdates(updates);
+							} catch(RuntimeException ex) {
+								logger.warn("Couldn't deliver lockout updates to " + transport.nodeId, ex);
+							}
+						}
+					}
+				}
+			});
+		} catch(RejectedExecutionException ex) {
+			logger.debug("Hub is shut down, dropping " + updates.size() + " lockout updates");
+		}
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		deliveryExecutor.shutdownNow();
+	}
+
+	private class HubTransport implements LockoutReplicationTransport {
+
+		private volatile String nodeId;
+		private volatile Listener listener;
+
+		public void start(String nodeId, Listener listener) {
+			this.nodeId = nodeId;
+			this.listener = listener;
+			transports.add(this);
+		}
+
+		public void send(List<LockoutUpdate> updates) {
+			deliver(this, updates);
+		}
+
+		public void stop() {
+			transports.remove(this);
+		}
+	}
+}
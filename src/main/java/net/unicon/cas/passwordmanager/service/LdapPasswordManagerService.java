@@ -1,139 +1,194 @@
 package net.unicon.cas.passwordmanager.service;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.validation.constraints.Size;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import net.unicon.cas.passwordmanager.LdapServerUnavailableException;
+import net.unicon.cas.passwordmanager.PasswordManagerException;
 import net.unicon.cas.passwordmanager.UserLockedOutException;
+import net.unicon.cas.passwordmanager.cache.RotatingBloomFilter;
 import net.unicon.cas.passwordmanager.ldap.LdapServer;
+import net.unicon.cas.passwordmanager.ldap.UserEntrySnapshot;
 import net.unicon.cas.passwordmanager.flow.SecurityChallenge;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.ldap.AuthenticationException;
 import org.springframework.ldap.NameNotFoundException;
 import org.springframework.ldap.core.ObjectRetrievalException;
 
 /**
  * <p>LDAP implementation of a PasswordManagerService.</p>
+ *
+ * <p>Servers are tried in the order they're configured, and the first one
+ * that has exactly one entry for the user is used. In parallel lookup mode
+ * all servers are searched at the same time, but the result of the
+ * highest-priority server that has the user still wins.</p>
+ *
+ * <p>If a routing index is set, the server a user was found on is
+ * remembered and later operations for the user go straight to it. If the
+ * user is no longer there, the servers are searched again.</p>
+ *
+ * <p>If a negative lookup filter is set, usernames that no server has are
+ * remembered for a while, and lookups for them fail without searching.
+ * The filter is only consulted for lookups, never for changes.</p>
+ *
+ * <p>Servers that throw LdapServerUnavailableException (e.g. because their
+ * circuit breaker is open) are skipped. If no available server has the
+ * user, the unavailable exception is thrown rather than
+ * NameNotFoundException, since the user may be on a skipped server.</p>
  * @author Drew Mazurek &lt;dmazurek@unicon.net&gt;
  *
  */
-public class LdapPasswordManagerService implements PasswordManagerService {
+public class LdapPasswordManagerService implements PasswordManagerService,
+	InitializingBean, DisposableBean {
 
 	private final Log logger = LogFactory.getLog(this.getClass());
 	@Size(min=1)
 	private List<LdapServer> ldapServers;
 	private PasswordManagerLockoutService lockoutService;
+	private boolean parallelLookup = false;
+	private int parallelLookupThreads = 0;
+	private ExecutorService lookupExecutor;
+	private UserServerRoutingIndex routingIndex;
+	private RotatingBloomFilter negativeLookupFilter;
+	private final Map<String,LdapServer> serversByKey = new HashMap<String,LdapServer>();
+	private final Map<LdapServer,String> keysByServer = new IdentityHashMap<LdapServer,String>();
 
 	@Override
-	public SecurityChallenge getUserSecurityChallenge(String username) {
-		
-		for(LdapServer server : ldapServers) {
-			try {
-				SecurityChallenge challenge = server.getUserSecurityChallenge(username);
-				if(logger.isDebugEnabled()) {
-					if(challenge != null) {
-						logger.debug("Successfully got security challenge for " + username + " at " + server.getDescription());
-					} else {
-						logger.debug("Got null security challenge for " + username + " at " + server.getDescription());
-					}
-				}
-				return challenge;
-			} catch(NameNotFoundException ex) {
-				logger.debug("Didn't find " + username + " in " + server.getDescription());
-				// ignore it... try the next server
-			} catch(ObjectRetrievalException ex) {
-				logger.debug("Multiple results found for " + username);
-				// ignore it... try the next server
+	public SecurityChallenge getUserSecurityChallenge(final String username) {
+
+		ServerMatch<SecurityChallenge> match = findFirst(username, new ServerOperation<SecurityChallenge>() {
+			public SecurityChallenge execute(LdapServer server) {
+				return server.getUserSecurityChallenge(username);
+			}
+		});
+
+		SecurityChallenge challenge = match.getResult();
+		if(logger.isDebugEnabled()) {
+			if(challenge != null) {
+				logger.debug("Successfully got security challenge for " + username + " at " + match.getServer().getDescription());
+			} else {
+				logger.debug("Got null security challenge for " + username + " at " + match.getServer().getDescription());
 			}
 		}
-		
-		throw new NameNotFoundException("Couldn't find username " 
-				+ username + " in any of provided servers.");
+		return challenge;
 	}
 
 	@Override
-	public void setUserSecurityChallenge(String username,
-			SecurityChallenge securityChallenge) {
-		
-		for(LdapServer server : ldapServers) {
-			try {
+	public void setUserSecurityChallenge(final String username,
+			final SecurityChallenge securityChallenge) {
+
+		modifyFirst(username, new ServerOperation<Object>() {
+			public Object execute(LdapServer server) {
 				server.setUserSecurityChallenge(username, securityChallenge);
 				logger.debug("Successfully set user security challenge for " + username + " at " + server.getDescription());
-				return;
-			} catch(NameNotFoundException ex) {
-				logger.debug("Didn't find " + username + " in " + server.getDescription());
-				// ignore it... try the next server
-			} catch(ObjectRetrievalException ex) {
-				logger.debug("Multiple results found for " + username);
-				// ignore it... try the next server
+				return null;
 			}
-		}
-		
-		throw new NameNotFoundException("Couldn't find username " 
-				+ username + " in any of provided servers.");
+		});
 	}
-	
-	public SecurityChallenge getDefaultSecurityChallenge(String username) {
-		
-		for(LdapServer ldapServer : ldapServers) {
-			try {
-				SecurityChallenge challenge = ldapServer.getDefaultSecurityChallenge(username);
-				if(logger.isDebugEnabled()) {
-					if(challenge != null) {
-						logger.debug("Successfully got default security challenge for " + username + " at " + ldapServer.getDescription());
-					} else {
-						logger.debug("Got null default security challenge for " + username + " at " + ldapServer.getDescription());
-					}
-				}
-				return challenge;
-			} catch(NameNotFoundException ex) {
-				logger.debug("Didn't find " + username + " in " + ldapServer.getDescription());
-				// ignore... we'll try another server
-			} catch(ObjectRetrievalException ex) {
-				logger.debug("Multiple results found for " + username);
-				// ignore it... try the next server
+
+	public SecurityChallenge getDefaultSecurityChallenge(final String username) {
+
+		ServerMatch<SecurityChallenge> match = findFirst(username, new ServerOperation<SecurityChallenge>() {
+			public SecurityChallenge execute(LdapServer server) {
+				return server.getDefaultSecurityChallenge(username);
+			}
+		});
+
+		SecurityChallenge challenge = match.getResult();
+		if(logger.isDebugEnabled()) {
+			if(challenge != null) {
+				logger.debug("Successfully got default security challenge for " + username + " at " + match.getServer().getDescription());
+			} else {
+				logger.debug("Got null default security challenge for " + username + " at " + match.getServer().getDescription());
 			}
 		}
-		
-		logger.debug("Couldn't find default security questions for " + username);
-		throw new NameNotFoundException("Couldn't find username " 
-				+ username + " in any of provided servers.");
+		return challenge;
 	}
 
+	/**
+	 * <p>Gets a snapshot of the user's entry (DN, custom and default security
+	 * challenges) from the first server that has the user. The DN is cached
+	 * by that server, so a following password change doesn't search again.</p>
+	 * @param username user to look up
+	 * @return snapshot of the user's entry
+	 */
+	public UserEntrySnapshot getUserEntrySnapshot(final String username) {
+
+		return findFirst(username, new ServerOperation<UserEntrySnapshot>() {
+			public UserEntrySnapshot execute(LdapServer server) {
+				return server.getUserEntrySnapshot(username);
+			}
+		}).getResult();
+	}
+
+	/**
+	 * <p>Gets when the user's password expires from the first server that
+	 * has the user.</p>
+	 * @param username user to look up
+	 * @return the password's expiry, or null if the server can't tell
+	 */
 	@Override
-	public void setUserPassword(String username, String password) {
+	public PasswordWarningInfo getPasswordWarningInfo(final String username) {
+
+		return findFirst(username, new ServerOperation<PasswordWarningInfo>() {
+			public PasswordWarningInfo execute(LdapServer server) {
+				return server.getPasswordWarningInfo(username);
+			}
+		}).getResult();
+	}
+
+	@Override
+	public void setUserPassword(final String username, final String password) {
 		logger.debug("We have " + ldapServers.size() + " LDAP servers to look at.");
-		for(LdapServer ldapServer : ldapServers) {
-			logger.debug("Checking server " + ldapServer.getDescription() + " for user " + username);
-			try {
-				ldapServer.setPassword(username, password);
-				logger.debug("Successfully set password for " + username + " at " + ldapServer.getDescription());
-				return;
-			} catch(NameNotFoundException ex) {
-				logger.debug("Didn't find " + username + " in " + ldapServer.getDescription());
-				// ignore... we'll try another server
-			} catch(ObjectRetrievalException ex) {
-				logger.debug("Multiple results found for " + username);
-				// ignore it... try the next server
+
+		modifyFirst(username, new ServerOperation<Object>() {
+			public Object execute(LdapServer server) {
+				server.setPassword(username, password);
+				logger.debug("Successfully set password for " + username + " at " + server.getDescription());
+				return null;
 			}
-		}
-		
-		logger.debug("Couldn't find server for " + username);
-		throw new NameNotFoundException("Couldn't find username " 
-				+ username + " in any of provided servers.");		
+		});
 	}
 
 	@Override
 	public void changeUserPassword(String username, String oldPassword, String newPassword) throws UserLockedOutException {
-		
+
 		// throws UserLockedOutException if this isn't allowed
 		lockoutService.allowAttempt(username);
-		
-		for(LdapServer ldapServer : ldapServers) {
+
+		// in parallel lookup mode or with a routing index, only the server
+		// that has the user is tried
+		List<LdapServer> candidates = ldapServers;
+		if((parallelLookup || routingIndex != null) && ldapServers.size() > 1) {
+			candidates = new ArrayList<LdapServer>();
+			try {
+				candidates.add(resolveServer(username));
+			} catch(NameNotFoundException ex) {
+				// fall through and register the incorrect attempt
+			}
+		}
+
+		LdapServerUnavailableException unavailable = null;
+		for(LdapServer ldapServer : candidates) {
 			try {
-				if(ldapServer.verifyPassword(username, oldPassword)) {
-					ldapServer.setPassword(username, newPassword);
+				if(ldapServer.changePassword(username, oldPassword, newPassword)) {
 					logger.debug("Successfully changed password for " + username + " at " + ldapServer.getDescription());
 					lockoutService.clearIncorrectAttempts(username);
 					return;
@@ -147,13 +202,228 @@ public class LdapPasswordManagerService implements PasswordManagerService {
 			} catch(ObjectRetrievalException ex) {
 				logger.debug("Multiple results found for " + username);
 				// ignore it... try the next server
+			} catch(LdapServerUnavailableException ex) {
+				logger.debug(ldapServer.getDescription() + " is unavailable");
+				unavailable = ex;
 			}
 		}
-		
+
+		if(unavailable != null) {
+			// don't count an outage against the user
+			throw unavailable;
+		}
 		lockoutService.registerIncorrectAttempt(username);
 		logger.debug("Couldn't find server for " + username + " or bad password.");
-		throw new NameNotFoundException("Couldn't find username " 
-				+ username + " in any of provided servers or bad password.");	
+		throw new NameNotFoundException("Couldn't find username "
+				+ username + " in any of provided servers or bad password.");
+	}
+
+	/**
+	 * <p>Finds the highest-priority server that has exactly one entry for
+	 * the user.</p>
+	 * @param username user to look up
+	 * @return the server the user belongs to
+	 * @throws NameNotFoundException if no server has the user
+	 */
+	protected LdapServer resolveServer(final String username) {
+		return locate(username, new ServerOperation<String>() {
+			public String execute(LdapServer server) {
+				return server.lookupDn(username);
+			}
+		}).getServer();
+	}
+
+	/**
+	 * <p>Runs a read-only operation against the configured servers and
+	 * returns the result of the first server that has the user. Usernames
+	 * recently found on no server fail straight away.</p>
+	 */
+	private <T> ServerMatch<T> findFirst(String username, ServerOperation<T> operation) {
+		if(negativeLookupFilter == null) {
+			return locate(username, operation);
+		}
+
+		if(negativeLookupFilter.mightContain(username)) {
+			logger.debug("Skipping lookup for " + username + ", recently not found on any server");
+			throw new NameNotFoundException("Couldn't find username "
+					+ username + " in any of provided servers.");
+		}
+		try {
+			return locate(username, operation);
+		} catch(NameNotFoundException ex) {
+			negativeLookupFilter.put(username);
+			throw ex;
+		}
+	}
+
+	/**
+	 * <p>Runs an operation against the first server that has the user. The
+	 * user's routed server, if known, is tried before searching all
+	 * servers.</p>
+	 */
+	private <T> ServerMatch<T> locate(String username, ServerOperation<T> operation) {
+		if(routingIndex == null || ldapServers.size() < 2) {
+			return scanServers(username, operation);
+		}
+
+		String serverKey = routingIndex.getServerKey(username);
+		LdapServer routed = serverKey == null ? null : serversByKey.get(serverKey);
+		if(routed != null) {
+			try {
+				return new ServerMatch<T>(routed, operation.execute(routed));
+			} catch(NameNotFoundException ex) {
+				logger.debug("Stale route for " + username + " to " + routed.getDescription());
+				routingIndex.remove(username);
+			} catch(ObjectRetrievalException ex) {
+				logger.debug("Stale route for " + username + " to " + routed.getDescription());
+				routingIndex.remove(username);
+			} catch(LdapServerUnavailableException ex) {
+				// keep the route; the user is probably still there
+				logger.debug(routed.getDescription() + " is unavailable, searching the other servers");
+			}
+		}
+
+		ServerMatch<T> match = scanServers(username, operation);
+		routingIndex.setServerKey(username, keysByServer.get(match.getServer()));
+		return match;
+	}
+
+	private <T> ServerMatch<T> scanServers(String username, ServerOperation<T> operation) {
+		if(parallelLookup && ldapServers.size() > 1) {
+			return findFirstInParallel(username, operation);
+		}
+
+		LdapServerUnavailableException unavailable = null;
+		for(LdapServer server : ldapServers) {
+			try {
+				return new ServerMatch<T>(server, operation.execute(server));
+			} catch(NameNotFoundException ex) {
+				logger.debug("Didn't find " + username + " in " + server.getDescription());
+				// ignore... we'll try another server
+			} catch(ObjectRetrievalException ex) {
+				logger.debug("Multiple results found for " + username);
+				// ignore it... try the next server
+			} catch(LdapServerUnavailableException ex) {
+				logger.debug(server.getDescription() + " is unavailable");
+				unavailable = ex;
+			}
+		}
+
+		throw notFound(username, unavailable);
+	}
+
+	private RuntimeException notFound(String username, LdapServerUnavailableException unavailable) {
+		logger.debug("Couldn't find server for " + username);
+		if(unavailable != null) {
+			return new LdapServerUnavailableException("Couldn't find username "
+					+ username + " in any available server.", unavailable);
+		}
+		return new NameNotFoundException("Couldn't find username "
+				+ username + " in any of provided servers.");
+	}
+
+	/**
+	 * <p>Runs an operation that modifies the user's entry against the first
+	 * server that has the user. In parallel lookup mode, the server is
+	 * found first and only that server is modified.</p>
+	 */
+	private <T> T modifyFirst(String username, ServerOperation<T> operation) {
+		if(parallelLookup && ldapServers.size() > 1) {
+			return operation.execute(resolveServer(username));
+		}
+		return locate(username, operation).getResult();
+	}
+
+	private <T> ServerMatch<T> findFirstInParallel(String username, final ServerOperation<T> operation) {
+
+		List<Future<T>> futures = new ArrayList<Future<T>>(ldapServers.size());
+		for(final LdapServer server : ldapServers) {
+			futures.add(lookupExecutor.submit(new Callable<T>() {
+				public T call() throws Exception {
+					return operation.execute(server);
+				}
+			}));
+		}
+
+		LdapServerUnavailableException unavailable = null;
+		try {
+			// wait for the servers in priority order; a lower-priority
+			// result is only used once all higher-priority servers have
+			// reported that they don't have the user
+			for(int i=0;i<futures.size();i++) {
+				LdapServer server = ldapServers.get(i);
+				try {
+					T result = futures.get(i).get();
+					return new ServerMatch<T>(server, result);
+				} catch(ExecutionException ex) {
+					Throwable cause = ex.getCause();
+					if(cause instanceof NameNotFoundException) {
+						logger.debug("Didn't find " + username + " in " + server.getDescription());
+					} else if(cause instanceof ObjectRetrievalException) {
+						logger.debug("Multiple results found for " + username);
+					} else if(cause instanceof LdapServerUnavailableException) {
+						logger.debug(server.getDescription() + " is unavailable");
+						unavailable = (LdapServerUnavailableException) cause;
+					} else if(cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					} else {
+						throw new PasswordManagerException("Error looking up " + username
+								+ " in " + server.getDescription(), cause);
+					}
+				}
+			}
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new PasswordManagerException("Interrupted looking up " + username, ex);
+		} finally {
+			// the answer is settled; stop any searches still running
+			for(Future<T> future : futures) {
+				future.cancel(true);
+			}
+		}
+
+		throw notFound(username, unavailable);
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		// routes are stored by server description so they survive servers
+		// being reordered, falling back to the position in the list when a
+		// description is missing or shared
+		Map<String,Integer> descriptionCounts = new HashMap<String,Integer>();
+		for(LdapServer server : ldapServers) {
+			String description = server.getDescription();
+			Integer count = descriptionCounts.get(description);
+			descriptionCounts.put(description, count == null ? 1 : count + 1);
+		}
+		for(int i=0;i<ldapServers.size();i++) {
+			LdapServer server = ldapServers.get(i);
+			String description = server.getDescription();
+			String key = description != null && description.length() > 0
+					&& descriptionCounts.get(description) == 1 ? description : "#" + i;
+			serversByKey.put(key, server);
+			keysByServer.put(server, key);
+		}
+
+		if(parallelLookup) {
+			int threads = parallelLookupThreads > 0 ? parallelLookupThreads : 4 * ldapServers.size();
+			// when every thread and queue slot is taken, the caller runs the
+			// search itself rather than failing
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+					60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(threads * 4),
+					new LookupThreadFactory(), new ThreadPoolExecutor.CallerRunsPolicy());
+			executor.allowCoreThreadTimeOut(true);
+			lookupExecutor = executor;
+			logger.info("Parallel lookups enabled across " + ldapServers.size()
+					+ " LDAP servers with " + threads + " threads.");
+		}
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		if(lookupExecutor != null) {
+			lookupExecutor.shutdownNow();
+		}
 	}
 
 	public void setLdapServers(List<LdapServer> ldapServers) {
@@ -163,4 +433,81 @@ public class LdapPasswordManagerService implements PasswordManagerService {
 	public void setLockoutService(PasswordManagerLockoutService lockoutService) {
 		this.lockoutService = lockoutService;
 	}
+
+	/**
+	 * <p>Enables searching all LDAP servers at the same time instead of one
+	 * after another. The highest-priority server that has the user still
+	 * wins. Default is false.</p>
+	 * @param parallelLookup true to enable parallel lookups
+	 */
+	public void setParallelLookup(boolean parallelLookup) {
+		this.parallelLookup = parallelLookup;
+	}
+
+	/**
+	 * <p>Sets the number of threads used for parallel lookups. Defaults to
+	 * four per LDAP server.</p>
+	 * @param parallelLookupThreads number of lookup threads
+	 */
+	public void setParallelLookupThreads(int parallelLookupThreads) {
+		this.parallelLookupThreads = parallelLookupThreads;
+	}
+
+	/**
+	 * <p>Sets the index used to remember which server each user was found
+	 * on. If not set, the servers are searched for every operation.</p>
+	 * @param routingIndex user to server routing index
+	 */
+	public void setRoutingIndex(UserServerRoutingIndex routingIndex) {
+		this.routingIndex = routingIndex;
+	}
+
+	/**
+	 * <p>Sets the filter that remembers usernames no server has, so repeated
+	 * lookups for them don't search again. If not set, every lookup
+	 * searches.</p>
+	 * @param negativeLookupFilter filter of recently absent usernames
+	 */
+	public void setNegativeLookupFilter(RotatingBloomFilter negativeLookupFilter) {
+		this.negativeLookupFilter = negativeLookupFilter;
+	}
+
+	/**
+	 * <p>An operation against a single LDAP server. Throws
+	 * NameNotFoundException or ObjectRetrievalException if the server doesn't
+	 * have exactly one entry for the user.</p>
+	 */
+	private interface ServerOperation<T> {
+		T execute(LdapServer server);
+	}
+
+	private static class ServerMatch<T> {
+
+		private final LdapServer server;
+		private final T result;
+
+		ServerMatch(LdapServer server, T result) {
+			this.server = server;
+			this.result = result;
+		}
+
+		LdapServer getServer() {
+			return server;
+		}
+
+		T getResult() {
+			return result;
+		}
+	}
+
+	private static class LookupThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger threadNumber = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "pm-ldap-lookup-" + threadNumber.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
 }
@@ -0,0 +1,38 @@
+package net.unicon.cas.passwordmanager.service;
+
+import java.util.List;
+
+/**
+ * <p>Carries lockout state between the nodes of a cluster for a
+ * ReplicatedPasswordManagerLockoutService. Delivery may be delayed,
+ * duplicated or reordered; the states are merged so that none of these
+ * matter. Lost updates are made up for by the next update for the same
+ * user.</p>
+ */
+public interface LockoutReplicationTransport {
+
+	/**
+	 * <p>Receives lockout state sent by other nodes.</p>
+	 */
+	public interface Listener {
+
+		public void onUpdates(List<LockoutUpdate> updates);
+	}
+
+	/**
+	 * <p>Starts the transport. Updates received from other nodes are passed
+	 * to the listener from a thread owned by the transport.</p>
+	 * @param nodeId id of the local node
+	 * @param listener receiver of other nodes' updates
+	 */
+	public void start(String nodeId, Listener listener);
+
+	/**
+	 * <p>Sends a batch of updates to the other nodes. Shouldn't block for
+	 * long; may drop the batch if the other nodes can't be reached.</p>
+	 * @param updates updates to send
+	 */
+	public void send(List<LockoutUpdate> updates);
+
+	public void stop();
+}
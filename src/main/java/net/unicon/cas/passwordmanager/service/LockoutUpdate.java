@@ -0,0 +1,64 @@
+package net.unicon.cas.passwordmanager.service;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>Replicated lockout state of one user, as sent between the nodes of a
+ * cluster. Each node only ever increases its own attempt count, so states
+ * are merged by taking the highest count per node and the latest lockout
+ * time. Clearing a user's attempts starts a new epoch; a state from an older
+ * epoch is ignored.</p>
+ */
+public class LockoutUpdate implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+	private final String username;
+	private final long epoch;
+	private final long lockedUntil;
+	private final Map<String,Integer> attemptsByNode;
+
+	public LockoutUpdate(String username, long epoch, long lockedUntil,
+			Map<String,Integer> attemptsByNode) {
+		this.username = username;
+		this.epoch = epoch;
+		this.lockedUntil = lockedUntil;
+		this.attemptsByNode = Collections.unmodifiableMap(new HashMap<String,Integer>(attemptsByNode));
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	/**
+	 * <p>Gets the epoch, which changes each time the user's attempts are
+	 * cleared.</p>
+	 */
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * <p>Gets the time, in milliseconds since the epoch, that the user's
+	 * lockout ends, or 0 if the user isn't locked out.</p>
+	 */
+	public long getLockedUntil() {
+		return lockedUntil;
+	}
+
+	/**
+	 * <p>Gets the number of incorrect attempts counted by each node in this
+	 * epoch, keyed by node id.</p>
+	 */
+	public Map<String,Integer> getAttemptsByNode() {
+		return attemptsByNode;
+	}
+
+	@Override
+	public String toString() {
+		return "LockoutUpdate[" + username + ", epoch=" + epoch + ", lockedUntil="
+				+ lockedUntil + ", attempts=" + attemptsByNode + "]";
+	}
+}
@@ -0,0 +1,401 @@
+package net.unicon.cas.passwordmanager.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.validation.constraints.NotNull;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import net.unicon.cas.passwordmanager.PasswordManagerException;
+import net.unicon.cas.passwordmanager.UserLockedOutException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * <p>Lockout service that keeps its state in a memory-mapped file, so
+ * lockouts survive a restart or redeploy. The file is a fixed-size,
+ * open-addressed hash table of fixed-size records, updated in place;
+ * starting up only maps the file, however many records it holds.</p>
+ *
+ * <p>Usernames aren't stored, only a salted 64-bit hash. The table is split
+ * into segments, each with its own lock, and a user's record is always in
+ * the segment its hash selects. A lookup probes at most maxProbes slots.
+ * Expired and cleared records are reused in place; if the probed slots are
+ * all in use, the one that expires soonest is overwritten.</p>
+ *
+ * <p>Record layout (32 bytes): hash (8), incorrect attempts (4), unused (4),
+ * unlock time (8), expiry time (8). Times are milliseconds since the epoch.</p>
+ */
+public class MappedFilePasswordManagerLockoutService implements
+		PasswordManagerLockoutService, InitializingBean, DisposableBean {
+
+	private static final long MAGIC = 0x504d4c4f434b3031L; // "PMLOCK01"
+	private static final int HEADER_SIZE = 64;
+	private static final int SALT_OFFSET = 24;
+	private static final int SALT_LENGTH = 16;
+	private static final int RECORD_SIZE = 32;
+	private static final int ATTEMPTS = 8;
+	private static final int UNLOCK_AT = 16;
+	private static final int EXPIRES = 24;
+	private static final int SEGMENTS = 64;
+
+	private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch(NoSuchAlgorithmException ex) {
+				throw new PasswordManagerException("SHA-256 not supported", ex);
+			}
+		}
+	};
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+	@NotNull
+	private File file;
+	private int capacity = 262144;
+	private int maxProbes = 16;
+	private int allowedIncorrectAttempts = Integer.MAX_VALUE;
+	private int secondsUntilNextAllowedAttempt = 0;
+	private long attemptWindowSeconds = 86400;
+	private long syncIntervalSeconds = 0;
+
+	private RandomAccessFile randomAccessFile;
+	private MappedByteBuffer buffer;
+	private byte[] salt;
+	private int segmentSize;
+	private final Object[] locks = new Object[SEGMENTS];
+	private ScheduledExecutorService syncExecutor;
+
+	@Override
+	public void registerIncorrectAttempt(String username) throws UserLockedOutException {
+
+		logger.debug("Registering incorrect attempt for " + username);
+
+		long hash = hash(username);
+		long now = System.currentTimeMillis();
+		boolean lockedOut;
+		synchronized(lockFor(hash)) {
+			int offset = findOrClaim(hash, now);
+			int attempts = buffer.getInt(offset + ATTEMPTS) + 1;
+			long expires = now + attemptWindowSeconds * 1000L;
+			buffer.putInt(offset + ATTEMPTS, attempts);
+			lockedOut = attempts >= allowedIncorrectAttempts;
+			if(lockedOut) {
+				long unlockAt = now + secondsUntilNextAllowedAttempt * 1000L;
+				buffer.putLong(offset + UNLOCK_AT, unlockAt);
+				expires = Math.max(expires, unlockAt);
+			}
+			buffer.putLong(offset + EXPIRES, Math.max(expires, buffer.getLong(offset + EXPIRES)));
+		}
+
+		if(lockedOut) {
+			logger.debug("Locking out " + username + " from changes for "
+					+ secondsUntilNextAllowedAttempt + " seconds");
+			throw new UserLockedOutException("User " + username + " locked out.");
+		}
+	}
+
+	@Override
+	public void allowAttempt(String username) throws UserLockedOutException {
+
+		if(username == null) {
+			logger.debug("Null username.");
+			return;
+		}
+
+		long hash = hash(username);
+		long now = System.currentTimeMillis();
+		synchronized(lockFor(hash)) {
+			int offset = find(hash, now);
+			if(offset < 0) {
+				logger.debug("No lockout status found for " + username);
+				return;
+			}
+			int attempts = buffer.getInt(offset + ATTEMPTS);
+			if(attempts < allowedIncorrectAttempts) {
+				logger.debug("User " + username + " tried " + attempts + "/"
+						+ allowedIncorrectAttempts + " allowed attempts.");
+				return;
+			}
+			if(now > buffer.getLong(offset + UNLOCK_AT)) {
+				logger.debug("Timer expired, user " + username + " can attempt changes again.");
+				clear(offset);
+				return;
+			}
+		}
+
+		logger.info("User " + username + " used all their attempts. Locked out.");
+		throw new UserLockedOutException("User " + username + " locked out.");
+	}
+
+	@Override
+	public void clearIncorrectAttempts(String username) {
+		long hash = hash(username);
+		synchronized(lockFor(hash)) {
+			int offset = find(hash, System.currentTimeMillis());
+			if(offset >= 0) {
+				clear(offset);
+			}
+		}
+	}
+
+	// marks the record free for reuse; the hash stays so that probe
+	// sequences passing through the slot aren't cut short
+	private void clear(int offset) {
+		buffer.putInt(offset + ATTEMPTS, 0);
+		buffer.putLong(offset + UNLOCK_AT, 0L);
+		buffer.putLong(offset + EXPIRES, 0L);
+	}
+
+	private Object lockFor(long hash) {
+		return locks[segmentOf(hash)];
+	}
+
+	private int segmentOf(long hash) {
+		return (int) ((hash >>> 32) & (SEGMENTS - 1));
+	}
+
+	private int slotOffset(long hash, int probe) {
+		int segment = segmentOf(hash);
+		int slot = (int) (((hash & 0x7fffffffL) + probe) % segmentSize);
+		return HEADER_SIZE + (segment * segmentSize + slot) * RECORD_SIZE;
+	}
+
+	/**
+	 * @return offset of the user's live record, or -1 if there is none.
+	 * Caller must hold the segment lock.
+	 */
+	private int find(long hash, long now) {
+		for(int probe=0;probe<maxProbes;probe++) {
+			int offset = slotOffset(hash, probe);
+			long slotHash = buffer.getLong(offset);
+			if(slotHash == 0) {
+				return -1;
+			}
+			if(slotHash == hash) {
+				return buffer.getLong(offset + EXPIRES) > now ? offset : -1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return offset of the user's record, reset if it had expired, claiming
+	 * a free or the soonest-expiring slot if the user has none. Caller must
+	 * hold the segment lock.
+	 */
+	private int findOrClaim(long hash, long now) {
+		int free = -1;
+		int victim = -1;
+		long victimExpires = Long.MAX_VALUE;
+		for(int probe=0;probe<maxProbes;probe++) {
+			int offset = slotOffset(hash, probe);
+			long slotHash = buffer.getLong(offset);
+			if(slotHash == hash) {
+				if(buffer.getLong(offset + EXPIRES) <= now) {
+					clear(offset);
+				}
+				return offset;
+			}
+			if(slotHash == 0) {
+				if(free < 0) {
+					free = offset;
+				}
+				// nothing is stored past an empty slot
+				break;
+			}
+			long expires = buffer.getLong(offset + EXPIRES);
+			if(expires <= now) {
+				if(free < 0) {
+					free = offset;
+				}
+			} else if(expires < victimExpires) {
+				victim = offset;
+				victimExpires = expires;
+			}
+		}
+
+		int offset = free >= 0 ? free : victim;
+		if(free < 0) {
+			logger.debug("Lockout table segment full, overwriting the record expiring soonest");
+		}
+		buffer.putLong(offset, hash);
+		clear(offset);
+		return offset;
+	}
+
+	private long hash(String username) {
+		MessageDigest digest = SHA256.get();
+		digest.reset();
+		digest.update(salt);
+		try {
+			digest.update(username.getBytes("UTF-8"));
+		} catch(UnsupportedEncodingException ex) {
+			throw new PasswordManagerException("UTF-8 not supported", ex);
+		}
+		byte[] d = digest.digest();
+		long hash = 0;
+		for(int i=0;i<8;i++) {
+			hash = (hash << 8) | (d[i] & 0xff);
+		}
+		// 0 marks an empty slot
+		return hash == 0 ? 1 : hash;
+	}
+
+	/**
+	 * <p>Flushes changes to the file to disk. Changes already survive the
+	 * process exiting; this only matters if the machine itself fails.</p>
+	 */
+	public void sync() {
+		buffer.force();
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		for(int i=0;i<SEGMENTS;i++) {
+			locks[i] = new Object();
+		}
+
+		boolean exists = file.exists() && file.length() >= HEADER_SIZE;
+		randomAccessFile = new RandomAccessFile(file, "rw");
+		if(exists) {
+			randomAccessFile.seek(0);
+			if(randomAccessFile.readLong() != MAGIC) {
+				throw new IOException(file + " is not a lockout file");
+			}
+			int fileCapacity = randomAccessFile.readInt();
+			if(fileCapacity < SEGMENTS || fileCapacity % SEGMENTS != 0
+					|| randomAccessFile.readInt() != RECORD_SIZE) {
+				throw new IOException(file + " has an unsupported layout");
+			}
+			if(fileCapacity != capacity) {
+				logger.warn(file + " has capacity " + fileCapacity + ", not the configured "
+						+ capacity + "; using the file's capacity. Delete the file to resize it.");
+				capacity = fileCapacity;
+			}
+		} else {
+			if(capacity < SEGMENTS || capacity > (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE) {
+				throw new IllegalArgumentException("capacity must be between " + SEGMENTS + " and "
+						+ (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE);
+			}
+			// round down to a whole number of segments
+			capacity -= capacity % SEGMENTS;
+		}
+
+		long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+		if(randomAccessFile.length() != size) {
+			randomAccessFile.setLength(size);
+		}
+		buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		segmentSize = capacity / SEGMENTS;
+		salt = new byte[SALT_LENGTH];
+
+		if(exists) {
+			buffer.position(SALT_OFFSET);
+			buffer.get(salt);
+			logger.info("Mapped lockout file " + file + " with " + capacity + " slots");
+		} else {
+			new SecureRandom().nextBytes(salt);
+			buffer.putLong(0, MAGIC);
+			buffer.putInt(8, capacity);
+			buffer.putInt(12, RECORD_SIZE);
+			buffer.position(SALT_OFFSET);
+			buffer.put(salt);
+			buffer.force();
+			logger.info("Created lockout file " + file + " with " + capacity + " slots");
+		}
+		if(maxProbes > segmentSize) {
+			maxProbes = segmentSize;
+		}
+
+		if(syncIntervalSeconds > 0) {
+			syncExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "pm-lockout-sync");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			syncExecutor.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					sync();
+				}
+			}, syncIntervalSeconds, syncIntervalSeconds, TimeUnit.SECONDS);
+		}
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		if(syncExecutor != null) {
+			syncExecutor.shutdownNow();
+		}
+		if(buffer != null) {
+			buffer.force();
+		}
+		if(randomAccessFile != null) {
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * <p>Sets the file lockout state is kept in. It's created if it doesn't
+	 * exist.</p>
+	 */
+	public void setFile(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * <p>Sets the number of records the file holds when it's created. Each
+	 * takes 32 bytes. Default is 262144 (8 MB).</p>
+	 */
+	public void setCapacity(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * <p>Sets the maximum number of slots probed for a user. Default is
+	 * 16.</p>
+	 */
+	public void setMaxProbes(int maxProbes) {
+		this.maxProbes = maxProbes;
+	}
+
+	public void setAllowedIncorrectAttempts(int allowedIncorrectAttempts) {
+		this.allowedIncorrectAttempts = allowedIncorrectAttempts;
+	}
+
+	public void setSecondsUntilNextAllowedAttempt(int secondsUntilNextAllowedAttempt) {
+		this.secondsUntilNextAllowedAttempt = secondsUntilNextAllowedAttempt;
+	}
+
+	/**
+	 * <p>Sets the number of seconds after the last incorrect attempt that a
+	 * user's incorrect attempts are forgotten. Default is 86400 (one
+	 * day).</p>
+	 */
+	public void setAttemptWindowSeconds(long attemptWindowSeconds) {
+		this.attemptWindowSeconds = attemptWindowSeconds;
+	}
+
+	/**
+	 * <p>Sets how often, in seconds, changes are flushed to disk. 0, the
+	 * default, leaves it to the operating system.</p>
+	 */
+	public void setSyncIntervalSeconds(long syncIntervalSeconds) {
+		this.syncIntervalSeconds = syncIntervalSeconds;
+	}
+}
@@ -1,46 +1,100 @@
 package net.unicon.cas.passwordmanager.service;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import net.unicon.cas.passwordmanager.UserLockedOutException;
+import net.unicon.cas.passwordmanager.cache.TimingWheel;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 
+/**
+ * <p>Keeps lockout status in memory.</p>
+ *
+ * <p>Incorrect attempts are forgotten attemptWindowSeconds after the last
+ * one, or once the user's lockout ends if that is later. A timing wheel
+ * tracks when each status expires and a background sweeper discards
+ * expired statuses every sweepIntervalSeconds. No more than maxEntries
+ * users are tracked. When full, expired statuses are discarded first, then
+ * the earliest created status that is neither locked out nor at the limit
+ * is evicted; a locked out user is never evicted. If no such status turns
+ * up among the first few candidates, the new user's incorrect attempt isn't
+ * counted. Users who aren't tracked are always allowed to attempt, so
+ * filling the store can't lock anyone out.</p>
+ *
+ * <p>Each user's status is updated with atomic operations rather than under
+ * a lock, so concurrent incorrect attempts for the same user are all
+ * counted. A status removed from the store is retired first; an attempt that
+ * finds a retired status starts again with a fresh one.</p>
+ */
 public class MemoryPasswordManagerLockoutService implements
-		PasswordManagerLockoutService {
+		PasswordManagerLockoutService, InitializingBean, DisposableBean {
+	
+	// statuses looked at for eviction before an attempt is dropped instead
+	private static final int EVICTION_CANDIDATES = 16;
 	
 	private final Log logger = LogFactory.getLog(this.getClass());
 	private final ConcurrentHashMap<String,UserLockoutStatus> lockoutMap = new ConcurrentHashMap<String,UserLockoutStatus>();
 	private int allowedIncorrectAttempts = Integer.MAX_VALUE;
 	private int secondsUntilNextAllowedAttempt = 0;
+	private int maxEntries = 100000;
+	private long attemptWindowSeconds = 86400;
+	private long sweepIntervalSeconds = 60;
+	// keyed by status rather than username, so a stale entry can't cancel
+	// or discard a newer status for the same user
+	private TimingWheel<UserLockoutStatus> expiryWheel;
+	private ScheduledExecutorService sweeper;
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong droppedAttempts = new AtomicLong();
 	
 	@Override
 	public void registerIncorrectAttempt(String username) throws UserLockedOutException {
 		
 		logger.debug("Registering incorrect attempt for " + username);
 		
-		UserLockoutStatus status = lockoutMap.get(username);
-		if(status == null) {
-			status = new UserLockoutStatus(username);
-			lockoutMap.put(username, status);
+		long now = System.currentTimeMillis();
+		UserLockoutStatus status;
+		int attempts;
+		for(;;) {
+			status = getOrCreateStatus(username, now);
+			if(status == null) {
+				dropAttempt(username);
+				return;
+			}
+			// extend the expiry before counting, so the sweeper can't discard
+			// a status whose new attempt it hasn't seen
+			status.extendExpires(now + attemptWindowSeconds * 1000L);
+			attempts = status.incrementIncorrectAttempts();
+			if(attempts >= 0) {
+				break;
+			}
+			// retired while we were using it; finish removing it and retry
+			lockoutMap.remove(username, status);
 		}
 		
-		int attempts = status.incrementIncorrectAttempts();
-		
 		if(attempts < allowedIncorrectAttempts) {
 			return;
 		}
 		
 		// set the lockout time
 		Date d = new Date();
-		d.setTime(d.getTime() + secondsUntilNextAllowedAttempt * 1000);
+		d.setTime(now + secondsUntilNextAllowedAttempt * 1000L);
 		logger.debug("Locking out " + username + " from changes until " + d);
-		status.setNextAttemptAllowed(d);
+		status.extendNextAttemptAllowed(d.getTime());
+		status.extendExpires(d.getTime());
 		
 		throw new UserLockedOutException("User " + username + " locked out.");
 	}
-
+	
 	@Override
 	public void allowAttempt(String username) throws UserLockedOutException {
 		
@@ -57,40 +111,229 @@ public class MemoryPasswordManagerLockoutService implements
 		}
 		
 		if(status.getIncorrectAttempts() < allowedIncorrectAttempts) {
-			logger.debug("User " + username + " tried " 
-					+ status.getIncorrectAttempts() + "/" 
+			logger.debug("User " + username + " tried "
+					+ status.getIncorrectAttempts() + "/"
 					+ allowedIncorrectAttempts + " allowed attempts.");
 			return;
 		}
 		
 		Date now = new Date();
+		long next = status.getNextAttemptAllowedMillis();
 		
-		if(now.after(status.getNextAttemptAllowed())) {
+		// a zero lockout time means the attempt that used up the allowance
+		// hasn't set it yet
+		if(next != 0 && now.getTime() > next) {
 			logger.debug("Timer expired, user " + username + " can attempt changes again.");
-			lockoutMap.remove(username);
+			remove(username, status);
 			return;
 		}
-
+		
 		logger.info("User " + username + " used all their attempts. Locked out.");
-		if(logger.isDebugEnabled()) {
-			Date next = status.getNextAttemptAllowed();
-			long diff = (next.getTime() - now.getTime()) / 1000;
+		if(logger.isDebugEnabled() && next != 0) {
+			long diff = (next - now.getTime()) / 1000;
 			logger.debug("--> next change allowed in " + diff + " seconds.");
 		}
-
+		
 		throw new UserLockedOutException("User " + username + " locked out.");
 	}
-
+	
 	@Override
 	public void clearIncorrectAttempts(String username) {
-		lockoutMap.remove(username);		
+		UserLockoutStatus status = lockoutMap.get(username);
+		if(status != null) {
+			remove(username, status);
+		}
 	}
-
+	
+	private void remove(String username, UserLockoutStatus status) {
+		status.retire();
+		lockoutMap.remove(username, status);
+		expiryWheel.cancel(status);
+	}
+	
+	// returns null if the store is full and no status could be evicted
+	private UserLockoutStatus getOrCreateStatus(String username, long now) {
+		UserLockoutStatus status = lockoutMap.get(username);
+		if(status != null) {
+			return status;
+		}
+		
+		if(!makeRoom(now)) {
+			return null;
+		}
+		UserLockoutStatus created = new UserLockoutStatus(username);
+		created.setExpires(now + attemptWindowSeconds * 1000L);
+		status = lockoutMap.putIfAbsent(username, created);
+		if(status != null) {
+			// another thread created it first
+			return status;
+		}
+		// later attempts only extend the expiry; the sweeper reschedules
+		// statuses that turn out not to have expired yet
+		expiryWheel.schedule(created, created.getExpires());
+		return created;
+	}
+	
+	// makes room for another status if the store is full, by discarding
+	// expired statuses and then evicting the earliest created status that
+	// isn't locked out; returns false if there is still no room
+	private boolean makeRoom(long now) {
+		if(lockoutMap.size() < maxEntries) {
+			return true;
+		}
+		sweep();
+		List<UserLockoutStatus> kept = new ArrayList<UserLockoutStatus>();
+		for(int i=0;i<EVICTION_CANDIDATES && lockoutMap.size() >= maxEntries;i++) {
+			UserLockoutStatus status = expiryWheel.pollEarliest();
+			if(status == null) {
+				break;
+			}
+			int attempts = status.getIncorrectAttempts();
+			// retiring only succeeds if no attempt was counted since the check
+			if(attempts < allowedIncorrectAttempts && status.getNextAttemptAllowedMillis() <= now
+					&& status.retire(attempts)) {
+				lockoutMap.remove(status.getUsername(), status);
+				evictions.incrementAndGet();
+				logger.debug("Lockout store full, evicted status for " + status.getUsername());
+			} else if(!status.isRetired()) {
+				kept.add(status);
+			}
+		}
+		// locked out or at the limit; put them back once the candidates have
+		// been looked at, or the first would be polled again
+		for(UserLockoutStatus status : kept) {
+			expiryWheel.schedule(status, status.getExpires());
+		}
+		return lockoutMap.size() < maxEntries;
+	}
+	
+	private void dropAttempt(String username) {
+		long count = droppedAttempts.incrementAndGet();
+		if(count % 1000 == 1) {
+			logger.warn("Lockout store full with " + maxEntries + " users, none of which can be evicted;"
+					+ " incorrect attempts by other users aren't counted (" + count + " so far)");
+		}
+		logger.debug("Lockout store full, not counting incorrect attempt by " + username);
+	}
+	
+	/**
+	 * <p>Discards the statuses that have expired.</p>
+	 */
+	public void sweep() {
+		long now = System.currentTimeMillis();
+		int removed = 0;
+		for(UserLockoutStatus status : expiryWheel.advance(now)) {
+			String username = status.getUsername();
+			if(status.isRetired()) {
+				continue;
+			}
+			// read the count before the expiry: an attempt extends the expiry
+			// before counting, so if the status still looks expired, retiring
+			// it only succeeds if no attempt was counted in between
+			int attempts = status.getIncorrectAttempts();
+			if(status.getExpires() <= now && status.retire(attempts)) {
+				lockoutMap.remove(username, status);
+				removed++;
+			} else if(!status.isRetired()) {
+				// attempted again since it was scheduled
+				expiryWheel.schedule(status, status.getExpires());
+			}
+		}
+		if(removed > 0) {
+			logger.debug("Discarded " + removed + " expired lockout statuses.");
+		}
+	}
+	
+	/**
+	 * <p>Gets the number of users whose lockout status is tracked.</p>
+	 */
+	public int getSize() {
+		return lockoutMap.size();
+	}
+	
+	/**
+	 * <p>Gets the number of statuses evicted early because the store was
+	 * full.</p>
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+	
+	/**
+	 * <p>Gets the number of incorrect attempts that weren't counted because
+	 * the store was full of statuses that couldn't be evicted.</p>
+	 */
+	public long getDroppedAttempts() {
+		return droppedAttempts.get();
+	}
+	
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		if(maxEntries < 1) {
+			throw new IllegalArgumentException("maxEntries must be at least 1");
+		}
+		// size the wheel to span the longest expiry so a sweep only sees
+		// expired statuses
+		long tickMillis = Math.max(1, sweepIntervalSeconds) * 1000L;
+		long spanMillis = Math.max(attemptWindowSeconds, secondsUntilNextAllowedAttempt) * 1000L;
+		int buckets = (int) Math.min(65536, spanMillis / tickMillis + 2);
+		expiryWheel = new TimingWheel<UserLockoutStatus>(buckets, tickMillis);
+		
+		sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "pm-lockout-sweeper");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		sweeper.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					sweep();
+				} catch(RuntimeException ex) {
+					logger.warn("Lockout sweep failed", ex);
+				}
+			}
+		}, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	@Override
+	public void destroy() throws Exception {
+		if(sweeper != null) {
+			sweeper.shutdownNow();
+		}
+	}
+	
 	public void setAllowedIncorrectAttempts(int allowedIncorrectAttempts) {
 		this.allowedIncorrectAttempts = allowedIncorrectAttempts;
 	}
-
+	
 	public void setSecondsUntilNextAllowedAttempt(int secondsUntilNextAllowedAttempt) {
 		this.secondsUntilNextAllowedAttempt = secondsUntilNextAllowedAttempt;
 	}
+	
+	/**
+	 * <p>Sets the maximum number of users whose lockout status is kept.
+	 * Default is 100000.</p>
+	 */
+	public void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+	
+	/**
+	 * <p>Sets the number of seconds after the last incorrect attempt that a
+	 * user's incorrect attempts are forgotten. Default is 86400 (one
+	 * day).</p>
+	 */
+	public void setAttemptWindowSeconds(long attemptWindowSeconds) {
+		this.attemptWindowSeconds = attemptWindowSeconds;
+	}
+	
+	/**
+	 * <p>Sets how often, in seconds, expired statuses are discarded. Default
+	 * is 60.</p>
+	 */
+	public void setSweepIntervalSeconds(long sweepIntervalSeconds) {
+		this.sweepIntervalSeconds = sweepIntervalSeconds;
+	}
 }
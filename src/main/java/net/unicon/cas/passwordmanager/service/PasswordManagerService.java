@@ -56,4 +56,11 @@ public interface PasswordManagerService {
 	 */
 	public void changeUserPassword(String username, String oldPassword, String newPassword)
 	 	throws UserLockedOutException;
+
+	/**
+	 * <p>Gets when the user's password expires.</p>
+	 * @param username user to look up
+	 * @return the password's expiry, or null if it can't be told
+	 */
+	public PasswordWarningInfo getPasswordWarningInfo(String username);
 }
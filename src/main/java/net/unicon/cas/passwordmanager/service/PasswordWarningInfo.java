@@ -10,11 +10,19 @@ import java.io.Serializable;
 public class PasswordWarningInfo implements Serializable {
 
 	private static final long serialVersionUID = 1L;
+	/** secondsUntilExpiry of a password that never expires, or isn't known to */
+	public static final long NEVER = -1;
 	private final long pwdAgeSeconds;
+	private final long secondsUntilExpiry;
 	private final boolean warn;
 	
 	public PasswordWarningInfo(long pwdAgeSeconds, boolean warn) {
+		this(pwdAgeSeconds, NEVER, warn);
+	}
+	
+	public PasswordWarningInfo(long pwdAgeSeconds, long secondsUntilExpiry, boolean warn) {
 		this.pwdAgeSeconds = pwdAgeSeconds;
+		this.secondsUntilExpiry = secondsUntilExpiry;
 		this.warn = warn;
 	}
 
@@ -22,6 +30,23 @@ public class PasswordWarningInfo implements Serializable {
 		return pwdAgeSeconds;
 	}
 
+	/**
+	 * <p>Gets the number of seconds until the password expires.</p>
+	 * @return seconds until expiry, 0 if already expired, or NEVER
+	 */
+	public long getSecondsUntilExpiry() {
+		return secondsUntilExpiry;
+	}
+
+	/**
+	 * <p>Gets the number of whole days until the password expires, as shown
+	 * on the password warning page.</p>
+	 * @return days until expiry, or null if it never expires
+	 */
+	public Integer getExpireDays() {
+		return secondsUntilExpiry == NEVER ? null : Integer.valueOf((int) (secondsUntilExpiry / 86400));
+	}
+
 	public boolean isWarn() {
 		return warn;
 	}
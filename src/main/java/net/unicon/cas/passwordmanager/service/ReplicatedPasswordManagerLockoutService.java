@@ -0,0 +1,516 @@
+package net.unicon.cas.passwordmanager.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.validation.constraints.NotNull;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import net.unicon.cas.passwordmanager.UserLockedOutException;
+import net.unicon.cas.passwordmanager.cache.TimingWheel;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * <p>Lockout service whose attempt counts are shared by all the nodes of a
+ * cluster, so an attacker doesn't get more attempts by landing on different
+ * nodes.</p>
+ *
+ * <p>Each node keeps a full copy of the lockout state in memory and answers
+ * from it, so checks cost no more than with MemoryPasswordManagerLockoutService.
+ * Every node counts its own attempts for a user; the user's attempt count
+ * is the sum over all nodes. Changed users are collected and sent to the
+ * other nodes in batches every flushIntervalMillis through a pluggable
+ * LockoutReplicationTransport. Clearing a user's attempts starts a new
+ * epoch, which wins over older counts wherever they arrive.</p>
+ *
+ * <p>As with MemoryPasswordManagerLockoutService, attempts are forgotten
+ * attemptWindowSeconds after the last one and no more than maxEntries
+ * users are tracked. When full, the earliest created record that nobody is
+ * locked out by is evicted; if none turns up among the first few
+ * candidates, the new user's incorrect attempt isn't counted and updates
+ * about users who aren't tracked are dropped. Users who aren't tracked are
+ * always allowed to attempt.</p>
+ */
+public class ReplicatedPasswordManagerLockoutService implements
+		PasswordManagerLockoutService, InitializingBean, DisposableBean {
+
+	// records looked at for eviction before an attempt is dropped instead
+	private static final int EVICTION_CANDIDATES = 16;
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+	private final ConcurrentHashMap<String,Record> records = new ConcurrentHashMap<String,Record>();
+	// users changed since the last flush
+	private final ConcurrentHashMap<String,Boolean> dirty = new ConcurrentHashMap<String,Boolean>();
+	@NotNull
+	private LockoutReplicationTransport transport;
+	private String nodeId = UUID.randomUUID().toString();
+	private int allowedIncorrectAttempts = Integer.MAX_VALUE;
+	private int secondsUntilNextAllowedAttempt = 0;
+	private int maxEntries = 100000;
+	private long attemptWindowSeconds = 86400;
+	private long sweepIntervalSeconds = 60;
+	private long flushIntervalMillis = 100;
+	private TimingWheel<String> expiryWheel;
+	private ScheduledExecutorService scheduler;
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong droppedAttempts = new AtomicLong();
+
+	@Override
+	public void registerIncorrectAttempt(String username) throws UserLockedOutException {
+
+		logger.debug("Registering incorrect attempt for " + username);
+
+		long now = System.currentTimeMillis();
+		boolean lockedOut;
+		for(;;) {
+			Record record = getOrCreateRecord(username, now);
+			if(record == null) {
+				dropAttempt(username);
+				return;
+			}
+			synchronized(record) {
+				if(record.retired) {
+					continue;
+				}
+				Integer local = record.attemptsByNode.get(nodeId);
+				record.attemptsByNode.put(nodeId, local == null ? 1 : local + 1);
+				record.total++;
+				lockedOut = record.total >= allowedIncorrectAttempts;
+				if(lockedOut) {
+					record.lockedUntil = Math.max(record.lockedUntil,
+							now + secondsUntilNextAllowedAttempt * 1000L);
+				}
+				record.touch(now, attemptWindowSeconds);
+			}
+			break;
+		}
+		dirty.put(username, Boolean.TRUE);
+
+		if(lockedOut) {
+			logger.debug("Locking out " + username + " from changes");
+			throw new UserLockedOutException("User " + username + " locked out.");
+		}
+	}
+
+	@Override
+	public void allowAttempt(String username) throws UserLockedOutException {
+
+		if(username == null) {
+			logger.debug("Null username.");
+			return;
+		}
+
+		Record record = records.get(username);
+		if(record == null) {
+			logger.debug("No lockout status found for " + username);
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		synchronized(record) {
+			if(record.retired || record.total < allowedIncorrectAttempts) {
+				logger.debug("User " + username + " tried " + record.total + "/"
+						+ allowedIncorrectAttempts + " allowed attempts.");
+				return;
+			}
+			if(record.lockedUntil == 0) {
+				// the limit was reached by counts from other nodes
+				record.lockedUntil = now + secondsUntilNextAllowedAttempt * 1000L;
+				record.touch(now, attemptWindowSeconds);
+			} else if(now > record.lockedUntil) {
+				logger.debug("Timer expired, user " + username + " can attempt changes again.");
+				record.clear(now, attemptWindowSeconds);
+				dirty.put(username, Boolean.TRUE);
+				return;
+			}
+			logger.info("User " + username + " used all their attempts. Locked out.");
+		}
+
+		throw new UserLockedOutException("User " + username + " locked out.");
+	}
+
+	@Override
+	public void clearIncorrectAttempts(String username) {
+		Record record = records.get(username);
+		if(record == null) {
+			return;
+		}
+		// keep the cleared record so that older counts arriving from other
+		// nodes are recognised as belonging to the previous epoch
+		synchronized(record) {
+			record.clear(System.currentTimeMillis(), attemptWindowSeconds);
+		}
+		dirty.put(username, Boolean.TRUE);
+	}
+
+	/**
+	 * <p>Merges lockout state received from other nodes.</p>
+	 */
+	protected void merge(List<LockoutUpdate> updates) {
+		long now = System.currentTimeMillis();
+		for(LockoutUpdate update : updates) {
+			String username = update.getUsername();
+			for(;;) {
+				Record record = getOrCreateRecord(username, now);
+				if(record == null) {
+					logger.debug("Lockout store full, dropped update for " + username);
+					break;
+				}
+				synchronized(record) {
+					if(record.retired) {
+						continue;
+					}
+					if(record.merge(update)) {
+						record.touch(now, attemptWindowSeconds);
+					} else {
+						// the sender is behind; send it our newer state
+						dirty.put(username, Boolean.TRUE);
+					}
+				}
+				break;
+			}
+		}
+	}
+
+	/**
+	 * <p>Sends the state of the users changed since the last flush to the
+	 * other nodes.</p>
+	 */
+	public void flush() {
+		if(dirty.isEmpty()) {
+			return;
+		}
+		List<LockoutUpdate> updates = new ArrayList<LockoutUpdate>();
+		for(String username : dirty.keySet()) {
+			dirty.remove(username);
+			Record record = records.get(username);
+			if(record != null) {
+				synchronized(record) {
+					updates.add(new LockoutUpdate(username, record.epoch, record.lockedUntil,
+							record.attemptsByNode));
+				}
+			}
+		}
+		if(!updates.isEmpty()) {
+			try {
+				transport.send(updates);
+			} catch(RuntimeException ex) {
+				logger.warn("Couldn't send " + updates.size() + " lockout updates", ex);
+			}
+		}
+	}
+
+	// returns null if the store is full
+	private Record getOrCreateRecord(String username, long now) {
+		Record record = records.get(username);
+		if(record != null) {
+			return record;
+		}
+
+		if(!makeRoom(now)) {
+			return null;
+		}
+		Record created = new Record();
+		created.expires = now + attemptWindowSeconds * 1000L;
+		record = records.putIfAbsent(username, created);
+		if(record != null) {
+			return record;
+		}
+		// later changes only extend the expiry; the sweeper reschedules
+		// records that turn out not to have expired yet
+		expiryWheel.schedule(username, created.expires);
+		return created;
+	}
+
+	// makes room for another record if the store is full, by discarding
+	// expired records and then evicting the earliest created record that
+	// nobody is locked out by; returns false if there is still no room
+	private boolean makeRoom(long now) {
+		if(records.size() < maxEntries) {
+			return true;
+		}
+		sweep();
+		List<String> kept = new ArrayList<String>();
+		for(int i=0;i<EVICTION_CANDIDATES && records.size() >= maxEntries;i++) {
+			String username = expiryWheel.pollEarliest();
+			if(username == null) {
+				break;
+			}
+			if(evict(username, now)) {
+				evictions.incrementAndGet();
+				logger.debug("Lockout store full, evicted record for " + username);
+			} else {
+				kept.add(username);
+			}
+		}
+		// locked out or at the limit; put them back once the candidates have
+		// been looked at, or the first would be polled again
+		for(String username : kept) {
+			reschedule(username);
+		}
+		return records.size() < maxEntries;
+	}
+
+	private void reschedule(String username) {
+		Record record = records.get(username);
+		if(record != null) {
+			synchronized(record) {
+				if(!record.retired) {
+					expiryWheel.schedule(username, record.expires);
+				}
+			}
+		}
+	}
+
+	// removes the record unless the user is locked out or at the limit
+	private boolean evict(String username, long now) {
+		Record record = records.get(username);
+		if(record == null) {
+			return false;
+		}
+		synchronized(record) {
+			if(record.retired || record.total >= allowedIncorrectAttempts || record.lockedUntil > now) {
+				return false;
+			}
+			record.retired = true;
+		}
+		records.remove(username, record);
+		return true;
+	}
+
+	private void dropAttempt(String username) {
+		long count = droppedAttempts.incrementAndGet();
+		if(count % 1000 == 1) {
+			logger.warn("Lockout store full with " + maxEntries + " users, none of which can be evicted;"
+					+ " incorrect attempts by other users aren't counted (" + count + " so far)");
+		}
+		logger.debug("Lockout store full, not counting incorrect attempt by " + username);
+	}
+
+	// removes the record if it expires before the given time
+	private boolean retire(String username, long before) {
+		Record record = records.get(username);
+		if(record == null) {
+			return false;
+		}
+		synchronized(record) {
+			if(record.expires > before) {
+				expiryWheel.schedule(username, record.expires);
+				return false;
+			}
+			record.retired = true;
+		}
+		records.remove(username, record);
+		return true;
+	}
+
+	/**
+	 * <p>Discards the records that have expired.</p>
+	 */
+	public void sweep() {
+		long now = System.currentTimeMillis();
+		int removed = 0;
+		for(String username : expiryWheel.advance(now)) {
+			if(retire(username, now)) {
+				removed++;
+			}
+		}
+		if(removed > 0) {
+			logger.debug("Discarded " + removed + " expired lockout records.");
+		}
+	}
+
+	/**
+	 * <p>Gets the number of users whose lockout state is tracked.</p>
+	 */
+	public int getSize() {
+		return records.size();
+	}
+
+	/**
+	 * <p>Gets the number of records evicted early because the store was
+	 * full.</p>
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * <p>Gets the number of incorrect attempts that weren't counted because
+	 * the store was full of records that couldn't be evicted.</p>
+	 */
+	public long getDroppedAttempts() {
+		return droppedAttempts.get();
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		if(maxEntries < 1) {
+			throw new IllegalArgumentException("maxEntries must be at least 1");
+		}
+		long tickMillis = Math.max(1, sweepIntervalSeconds) * 1000L;
+		long spanMillis = Math.max(attemptWindowSeconds, secondsUntilNextAllowedAttempt) * 1000L;
+		expiryWheel = new TimingWheel<String>((int) Math.min(65536, spanMillis / tickMillis + 2), tickMillis);
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "pm-lockout-replication");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					flush();
+				} catch(RuntimeException ex) {
+					logger.warn("Lockout flush failed", ex);
+				}
+			}
+		}, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					sweep();
+				} catch(RuntimeException ex) {
+					logger.warn("Lockout sweep failed", ex);
+				}
+			}
+		}, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+
+		transport.start(nodeId, new LockoutReplicationTransport.Listener() {
+			public void onUpdates(List<LockoutUpdate> updates) {
+				merge(updates);
+			}
+		});
+		logger.info("Replicated lockout service started as node " + nodeId);
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		if(scheduler != null) {
+			scheduler.shutdownNow();
+		}
+		// pass on anything still pending before leaving
+		flush();
+		transport.stop();
+	}
+
+	public void setTransport(LockoutReplicationTransport transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * <p>Sets the id of this node. Must be unique in the cluster; defaults to
+	 * a random id.</p>
+	 */
+	public void setNodeId(String nodeId) {
+		this.nodeId = nodeId;
+	}
+
+	public void setAllowedIncorrectAttempts(int allowedIncorrectAttempts) {
+		this.allowedIncorrectAttempts = allowedIncorrectAttempts;
+	}
+
+	public void setSecondsUntilNextAllowedAttempt(int secondsUntilNextAllowedAttempt) {
+		this.secondsUntilNextAllowedAttempt = secondsUntilNextAllowedAttempt;
+	}
+
+	/**
+	 * <p>Sets the maximum number of users whose lockout state is kept.
+	 * Default is 100000.</p>
+	 */
+	public void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * <p>Sets the number of seconds after the last change that a user's
+	 * incorrect attempts are forgotten. Default is 86400 (one day).</p>
+	 */
+	public void setAttemptWindowSeconds(long attemptWindowSeconds) {
+		this.attemptWindowSeconds = attemptWindowSeconds;
+	}
+
+	/**
+	 * <p>Sets how often, in seconds, expired records are discarded. Default
+	 * is 60.</p>
+	 */
+	public void setSweepIntervalSeconds(long sweepIntervalSeconds) {
+		this.sweepIntervalSeconds = sweepIntervalSeconds;
+	}
+
+	/**
+	 * <p>Sets how often, in milliseconds, changes are sent to the other
+	 * nodes. Default is 100.</p>
+	 */
+	public void setFlushIntervalMillis(long flushIntervalMillis) {
+		this.flushIntervalMillis = flushIntervalMillis;
+	}
+
+	/**
+	 * <p>Lockout state of one user, guarded by its own lock.</p>
+	 */
+	private static class Record {
+
+		private long epoch;
+		private final Map<String,Integer> attemptsByNode = new HashMap<String,Integer>();
+		private int total;
+		private long lockedUntil;
+		private long expires;
+		private boolean retired;
+
+		void touch(long now, long attemptWindowSeconds) {
+			expires = Math.max(expires, Math.max(lockedUntil, now + attemptWindowSeconds * 1000L));
+		}
+
+		void clear(long now, long attemptWindowSeconds) {
+			epoch = Math.max(epoch + 1, now);
+			attemptsByNode.clear();
+			total = 0;
+			lockedUntil = 0;
+			touch(now, attemptWindowSeconds);
+		}
+
+		/**
+		 * @return false if the update is older than this record
+		 */
+		boolean merge(LockoutUpdate update) {
+			if(update.getEpoch() < epoch) {
+				return false;
+			}
+			if(update.getEpoch() > epoch) {
+				epoch = update.getEpoch();
+				attemptsByNode.clear();
+				lockedUntil = 0;
+			}
+			for(Map.Entry<String,Integer> entry : update.getAttemptsByNode().entrySet()) {
+				Integer current = attemptsByNode.get(entry.getKey());
+				if(current == null || current < entry.getValue()) {
+					attemptsByNode.put(entry.getKey(), entry.getValue());
+				}
+			}
+			lockedUntil = Math.max(lockedUntil, update.getLockedUntil());
+			total = 0;
+			for(Integer attempts : attemptsByNode.values()) {
+				total += attempts;
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package net.unicon.cas.passwordmanager.service;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Counts requests per key over a sliding window and tells when a key goes
+ * over its limit. Memory is fixed however many keys are seen: keys are
+ * hashed into a small table of counters (a count-min sketch with two rows),
+ * so an unrelated key sharing a slot can only make a count higher, never
+ * lower. The two rows use the two halves of a 64-bit hash of the key seeded
+ * at random, so keys crafted to collide in one row don't collide in the
+ * other.</p>
+ *
+ * <p>Each counter is a ring of buckets covering windowSeconds. A bucket is a
+ * single long holding the time slice it counts and its count, updated with
+ * compare-and-set, so counting takes no locks.</p>
+ */
+public class SlidingWindowRateLimiter {
+
+	private static final int ROWS = 2;
+	private static final int COUNT_BITS = 24;
+	private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+	private final AtomicLongArray buckets;
+	private final int width;
+	private final int bucketsPerWindow;
+	private final long sliceMillis;
+	private final int limit;
+	private final long seed = new SecureRandom().nextLong();
+
+	/**
+	 * @param limit number of requests allowed per key within the window
+	 * @param windowSeconds length of the sliding window
+	 * @param bucketsPerWindow number of slices the window is divided into;
+	 * more slices make the window slide more smoothly
+	 * @param width number of counters per row; more counters mean fewer
+	 * keys sharing a counter
+	 */
+	public SlidingWindowRateLimiter(int limit, long windowSeconds, int bucketsPerWindow, int width) {
+		if(limit < 1 || windowSeconds < 1 || bucketsPerWindow < 1 || width < 1) {
+			throw new IllegalArgumentException("limit, windowSeconds, bucketsPerWindow and width must be positive");
+		}
+		this.limit = limit;
+		this.bucketsPerWindow = bucketsPerWindow;
+		// slices of at least a second keep the slice number within the 40
+		// bits left next to the count
+		this.sliceMillis = Math.max(1000L, windowSeconds * 1000L / bucketsPerWindow);
+		this.width = width;
+		this.buckets = new AtomicLongArray(ROWS * width * bucketsPerWindow);
+	}
+
+	/**
+	 * <p>Counts a request for the key.</p>
+	 * @param key key to count the request against, e.g. a client address
+	 * @return true if the key is within its limit, including this request
+	 */
+	public boolean tryAcquire(String key) {
+		long slice = System.currentTimeMillis() / sliceMillis;
+		long hash = hash(key);
+		long estimate = Long.MAX_VALUE;
+		for(int row=0;row<ROWS;row++) {
+			int counter = counter(hash, row);
+			increment(counter, slice);
+			estimate = Math.min(estimate, sum(counter, slice));
+		}
+		return estimate <= limit;
+	}
+
+	/**
+	 * <p>Gets the estimated number of requests for the key in the current
+	 * window, without counting one.</p>
+	 */
+	public long getCount(String key) {
+		long slice = System.currentTimeMillis() / sliceMillis;
+		long hash = hash(key);
+		long estimate = Long.MAX_VALUE;
+		for(int row=0;row<ROWS;row++) {
+			estimate = Math.min(estimate, sum(counter(hash, row), slice));
+		}
+		return estimate;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	private void increment(int counter, long slice) {
+		int i = counter * bucketsPerWindow + (int) (slice % bucketsPerWindow);
+		for(;;) {
+			long current = buckets.get(i);
+			long updated;
+			if(current >>> COUNT_BITS != slice) {
+				// the bucket last counted an older slice; start it again
+				updated = (slice << COUNT_BITS) | 1;
+			} else if((current & COUNT_MASK) == COUNT_MASK) {
+				return;
+			} else {
+				updated = current + 1;
+			}
+			if(buckets.compareAndSet(i, current, updated)) {
+				return;
+			}
+		}
+	}
+
+	private long sum(int counter, long slice) {
+		long total = 0;
+		int base = counter * bucketsPerWindow;
+		for(int b=0;b<bucketsPerWindow;b++) {
+			long value = buckets.get(base + b);
+			// only buckets counting a slice within the window
+			if(slice - (value >>> COUNT_BITS) < bucketsPerWindow) {
+				total += value & COUNT_MASK;
+			}
+		}
+		return total;
+	}
+
+	// each row takes its own half of the hash
+	private int counter(long hash, int row) {
+		int h = (int) (hash >>> (32 * row));
+		return row * width + (h & 0x7fffffff) % width;
+	}
+
+	// seeded MurmurHash3-style hash over the characters, rather than
+	// String.hashCode, whose collisions are easy to construct
+	private long hash(String key) {
+		long h = seed;
+		for(int i=0;i<key.length();i++) {
+			long k = key.charAt(i) * 0x87c37b91114253d5L;
+			k = Long.rotateLeft(k, 31) * 0x4cf5ad432745937fL;
+			h ^= k;
+			h = Long.rotateLeft(h, 27) * 5 + 0x52dce729;
+		}
+		return mix(h ^ key.length());
+	}
+
+	// MurmurHash3 64-bit finalizer
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
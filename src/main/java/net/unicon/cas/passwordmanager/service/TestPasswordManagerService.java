@@ -91,4 +91,9 @@ public class TestPasswordManagerService implements PasswordManagerService {
 		// nothing to see here
 	}
 
+	@Override
+	public PasswordWarningInfo getPasswordWarningInfo(String username) {
+		return null;
+	}
+
 }
@@ -0,0 +1,290 @@
+package net.unicon.cas.passwordmanager.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import net.unicon.cas.passwordmanager.PasswordManagerException;
+
+/**
+ * <p>Sends lockout updates to a fixed list of peer nodes as UDP datagrams.
+ * Each node lists the others in peers (e.g.
+ * "cas2.example.edu:9876,cas3.example.edu:9876") and listens on port.
+ * Datagrams that are lost are made up for by the next update for the same
+ * user.</p>
+ *
+ * <p>Every datagram is signed with HMAC-SHA256 using sharedSecret, and
+ * unsigned or wrongly signed datagrams are dropped. The secret is required,
+ * since otherwise anyone who can send to the port can clear lockouts; the
+ * transport only starts without one if allowUnsigned is explicitly set, for
+ * clusters whose port can't be reached from outside.</p>
+ */
+public class UdpLockoutReplicationTransport implements LockoutReplicationTransport {
+
+	private static final int MAGIC = 0x504d4c4b;
+	private static final int VERSION = 1;
+	private static final int MAX_DATAGRAM_SIZE = 60000;
+	private static final int MAC_LENGTH = 32;
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+	private int port;
+	private String peers = "";
+	private String sharedSecret;
+	private boolean allowUnsigned = false;
+	private List<InetSocketAddress> peerAddresses;
+	private DatagramSocket socket;
+	private Thread receiver;
+	private String nodeId;
+	private Mac sendMac;
+
+	@Override
+	public void start(String nodeId, final Listener listener) {
+		if((sharedSecret == null || sharedSecret.length() == 0) && !allowUnsigned) {
+			throw new IllegalStateException("sharedSecret is required to sign lockout updates"
+					+ " (set allowUnsigned to replicate them unsigned)");
+		}
+		if(allowUnsigned && (sharedSecret == null || sharedSecret.length() == 0)) {
+			logger.warn("Lockout updates are not signed; anyone who can reach port " + port
+					+ " can change lockouts");
+		}
+		this.nodeId = nodeId;
+		peerAddresses = new ArrayList<InetSocketAddress>();
+		for(String peer : peers.split(",")) {
+			peer = peer.trim();
+			if(peer.length() == 0) {
+				continue;
+			}
+			int colon = peer.lastIndexOf(':');
+			if(colon < 0) {
+				throw new IllegalArgumentException("Peer " + peer + " must be host:port");
+			}
+			peerAddresses.add(new InetSocketAddress(peer.substring(0, colon),
+					Integer.parseInt(peer.substring(colon + 1))));
+		}
+
+		try {
+			socket = new DatagramSocket(port);
+		} catch(SocketException ex) {
+			throw new PasswordManagerException("Couldn't listen for lockout updates on port " + port, ex);
+		}
+		sendMac = createMac();
+
+		receiver = new Thread(new Runnable() {
+			public void run() {
+				receive(listener);
+			}
+		}, "pm-lockout-udp-receiver");
+		receiver.setDaemon(true);
+		receiver.start();
+		logger.info("Replicating lockouts over UDP port " + port + " to " + peerAddresses);
+	}
+
+	@Override
+	public synchronized void send(List<LockoutUpdate> updates) {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		int count = 0;
+		for(LockoutUpdate update : updates) {
+			byte[] encoded = encode(update);
+			if(count > 0 && body.size() + encoded.length > MAX_DATAGRAM_SIZE - 256) {
+				sendDatagram(body.toByteArray(), count);
+				body.reset();
+				count = 0;
+			}
+			body.write(encoded, 0, encoded.length);
+			count++;
+		}
+		if(count > 0) {
+			sendDatagram(body.toByteArray(), count);
+		}
+	}
+
+	private void sendDatagram(byte[] body, int count) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + 128);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			out.writeUTF(nodeId);
+			out.writeInt(count);
+			out.write(body);
+			if(sendMac != null) {
+				out.write(sendMac.doFinal(bytes.toByteArray()));
+			}
+			out.flush();
+			byte[] datagram = bytes.toByteArray();
+			for(InetSocketAddress peer : peerAddresses) {
+				try {
+					socket.send(new DatagramPacket(datagram, datagram.length, peer));
+				} catch(IOException ex) {
+					logger.debug("Couldn't send lockout updates to " + peer, ex);
+				}
+			}
+		} catch(IOException ex) {
+			// can't happen writing to memory
+			throw new PasswordManagerException("Couldn't encode lockout updates", ex);
+		}
+	}
+
+	private byte[] encode(LockoutUpdate update) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeUTF(update.getUsername());
+			out.writeLong(update.getEpoch());
+			out.writeLong(update.getLockedUntil());
+			out.writeShort(update.getAttemptsByNode().size());
+			for(Map.Entry<String,Integer> entry : update.getAttemptsByNode().entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeInt(entry.getValue());
+			}
+			out.flush();
+			return bytes.toByteArray();
+		} catch(IOException ex) {
+			throw new PasswordManagerException("Couldn't encode lockout update", ex);
+		}
+	}
+
+	private void receive(Listener listener) {
+		Mac receiveMac = createMac();
+		byte[] buffer = new byte[65536];
+		while(!socket.isClosed()) {
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			try {
+				socket.receive(packet);
+			} catch(IOException ex) {
+				if(!socket.isClosed()) {
+					logger.warn("Error receiving lockout updates", ex);
+				}
+				continue;
+			}
+
+			try {
+				List<LockoutUpdate> updates = decode(packet, receiveMac);
+				if(updates != null && !updates.isEmpty()) {
+					listener.onUpdates(updates);
+				}
+			} catch(IOException ex) {
+				logger.debug("Dropping malformed lockout datagram from " + packet.getSocketAddress());
+			} catch(RuntimeException ex) {
+				logger.warn("Error applying lockout updates from " + packet.getSocketAddress(), ex);
+			}
+		}
+	}
+
+	// returns null for datagrams that should be ignored
+	private List<LockoutUpdate> decode(DatagramPacket packet, Mac mac) throws IOException {
+		int length = packet.getLength();
+		if(mac != null) {
+			if(length < MAC_LENGTH) {
+				return null;
+			}
+			length -= MAC_LENGTH;
+			mac.update(packet.getData(), packet.getOffset(), length);
+			byte[] expected = mac.doFinal();
+			byte[] actual = Arrays.copyOfRange(packet.getData(), packet.getOffset() + length,
+					packet.getOffset() + length + MAC_LENGTH);
+			if(!MessageDigest.isEqual(expected, actual)) {
+				logger.warn("Dropping lockout datagram with a bad signature from " + packet.getSocketAddress());
+				return null;
+			}
+		}
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(packet.getData(),
+				packet.getOffset(), length));
+		if(in.readInt() != MAGIC || in.readByte() != VERSION) {
+			return null;
+		}
+		String sender = in.readUTF();
+		if(sender.equals(nodeId)) {
+			return null;
+		}
+		int count = in.readInt();
+		List<LockoutUpdate> updates = new ArrayList<LockoutUpdate>(Math.min(count, 1024));
+		for(int i=0;i<count;i++) {
+			String username = in.readUTF();
+			long epoch = in.readLong();
+			long lockedUntil = in.readLong();
+			int nodes = in.readUnsignedShort();
+			Map<String,Integer> attemptsByNode = new HashMap<String,Integer>();
+			for(int j=0;j<nodes;j++) {
+				attemptsByNode.put(in.readUTF(), in.readInt());
+			}
+			updates.add(new LockoutUpdate(username, epoch, lockedUntil, attemptsByNode));
+		}
+		return updates;
+	}
+
+	private Mac createMac() {
+		if(sharedSecret == null || sharedSecret.length() == 0) {
+			return null;
+		}
+		try {
+			Mac mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(new SecretKeySpec(sharedSecret.getBytes("UTF-8"), MAC_ALGORITHM));
+			return mac;
+		} catch(GeneralSecurityException ex) {
+			throw new PasswordManagerException("Couldn't initialize " + MAC_ALGORITHM, ex);
+		} catch(IOException ex) {
+			throw new PasswordManagerException("UTF-8 not supported", ex);
+		}
+	}
+
+	@Override
+	public void stop() {
+		if(socket != null) {
+			socket.close();
+		}
+		if(receiver != null) {
+			receiver.interrupt();
+		}
+	}
+
+	/**
+	 * <p>Sets the UDP port to listen on for other nodes' updates.</p>
+	 */
+	public void setPort(int port) {
+		this.port = port;
+	}
+
+	/**
+	 * <p>Sets the other nodes as a comma-separated list of host:port.</p>
+	 */
+	public void setPeers(String peers) {
+		this.peers = peers == null ? "" : peers;
+	}
+
+	/**
+	 * <p>Sets the secret used to sign datagrams. All nodes must use the same
+	 * secret. Required unless allowUnsigned is set.</p>
+	 */
+	public void setSharedSecret(String sharedSecret) {
+		this.sharedSecret = sharedSecret;
+	}
+
+	/**
+	 * <p>Allows starting without a shared secret, in which case datagrams
+	 * aren't signed. Default is false.</p>
+	 */
+	public void setAllowUnsigned(boolean allowUnsigned) {
+		this.allowUnsigned = allowUnsigned;
+	}
+}
@@ -1,12 +1,27 @@
 package net.unicon.cas.passwordmanager.service;
 
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * <p>Lockout status of a single user. All fields are updated atomically, so
+ * concurrent incorrect attempts for the same user are counted exactly.</p>
+ *
+ * <p>A status that has been removed from its store is retired: its attempt
+ * count can no longer change, and callers that find a retired status must
+ * look it up again.</p>
+ */
 public class UserLockoutStatus {
 
+	// attempt count that marks a retired status
+	private static final int RETIRED = -1;
+	
 	private String username;
-	private int incorrectAttempts = 0;
-	private Date nextAttemptAllowed;
+	private final AtomicInteger incorrectAttempts = new AtomicInteger();
+	// 0 if the user has never been locked out
+	private final AtomicLong nextAttemptAllowed = new AtomicLong();
+	private final AtomicLong expires = new AtomicLong();
 	
 	public UserLockoutStatus() { }
 	
@@ -26,19 +41,49 @@ public class UserLockoutStatus {
 	 * <p>Gets the number of bad security question/password change attempts.</p>
 	 */
 	public int getIncorrectAttempts() {
-		return incorrectAttempts;
+		return Math.max(0, incorrectAttempts.get());
 	}
 	
 	public void setIncorrectAttempts(int incorrectAttempts) {
-		this.incorrectAttempts = incorrectAttempts;
+		this.incorrectAttempts.set(incorrectAttempts);
 	}
 	
 	/**
 	 * <p>Increments the number of bad security question/password change attempts.</p>
-	 * @return The new value (after incrementing) of bad attempts.
+	 * @return The new value (after incrementing) of bad attempts, or -1 if
+	 * this status has been retired and the attempt wasn't counted.
 	 */
 	public int incrementIncorrectAttempts() {
-		return ++this.incorrectAttempts;
+		for(;;) {
+			int current = incorrectAttempts.get();
+			if(current == RETIRED) {
+				return RETIRED;
+			}
+			if(incorrectAttempts.compareAndSet(current, current + 1)) {
+				return current + 1;
+			}
+		}
+	}
+	
+	/**
+	 * <p>Retires this status so no more attempts are counted against it.</p>
+	 */
+	public void retire() {
+		incorrectAttempts.set(RETIRED);
+	}
+	
+	/**
+	 * <p>Retires this status only if no attempt has been counted since the
+	 * given count was read.</p>
+	 * @param expectedAttempts attempt count read by the caller
+	 * @return true if the status was retired
+	 */
+	public boolean retire(int expectedAttempts) {
+		return incorrectAttempts.compareAndSet(expectedAttempts, RETIRED);
+	}
+	
+	public boolean isRetired() {
+		return incorrectAttempts.get() == RETIRED;
 	}
 	
 	/**
@@ -46,11 +91,59 @@ public class UserLockoutStatus {
 	 * their security questions or change their password again.
 	 */
 	public Date getNextAttemptAllowed() {
-		return nextAttemptAllowed;
+		long next = nextAttemptAllowed.get();
+		return next == 0 ? null : new Date(next);
 	}
 	
 	public void setNextAttemptAllowed(
 			Date nextAttemptAllowed) {
-		this.nextAttemptAllowed = nextAttemptAllowed;
+		this.nextAttemptAllowed.set(nextAttemptAllowed == null ? 0 : nextAttemptAllowed.getTime());
+	}
+	
+	/**
+	 * <p>Gets the time, in milliseconds since the epoch, that the user will
+	 * be allowed to attempt changes again, or 0 if they were never locked
+	 * out.</p>
+	 */
+	public long getNextAttemptAllowedMillis() {
+		return nextAttemptAllowed.get();
+	}
+	
+	/**
+	 * <p>Moves the time the user will be allowed to attempt changes again
+	 * later, never earlier.</p>
+	 * @param millis time in milliseconds since the epoch
+	 */
+	public void extendNextAttemptAllowed(long millis) {
+		extend(nextAttemptAllowed, millis);
+	}
+	
+	/**
+	 * <p>Gets the time, in milliseconds since the epoch, after which this
+	 * status no longer matters and can be discarded.</p>
+	 */
+	public long getExpires() {
+		return expires.get();
+	}
+	
+	public void setExpires(long expires) {
+		this.expires.set(expires);
+	}
+	
+	/**
+	 * <p>Moves the expiry time later, never earlier.</p>
+	 * @param millis time in milliseconds since the epoch
+	 */
+	public void extendExpires(long millis) {
+		extend(expires, millis);
+	}
+	
+	private static void extend(AtomicLong value, long millis) {
+		for(;;) {
+			long current = value.get();
+			if(current >= millis || value.compareAndSet(current, millis)) {
+				return;
+			}
+		}
 	}
 }
@@ -0,0 +1,217 @@
+package net.unicon.cas.passwordmanager.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import net.unicon.cas.passwordmanager.cache.ExpiringLruCache;
+import net.unicon.cas.passwordmanager.cache.ExpiringLruCache.ExpiringEntry;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * <p>Remembers which LDAP server each user was last found on, so that later
+ * operations for the user can go straight to that server instead of
+ * searching the chained servers in turn. Routes expire after a time to
+ * live and the least recently used routes are dropped once the index is
+ * full.</p>
+ *
+ * <p>If a persistence file is set, the routes are saved to it periodically
+ * and on shutdown and reloaded on startup.</p>
+ */
+public class UserServerRoutingIndex implements InitializingBean, DisposableBean {
+
+	private static final long DEFAULT_SAVE_INTERVAL_SECONDS = 300;
+
+	private final Log logger = LogFactory.getLog(this.getClass());
+	private final ExpiringLruCache<String,String> routes = new ExpiringLruCache<String,String>();
+	private File persistenceFile;
+	private long saveIntervalSeconds = DEFAULT_SAVE_INTERVAL_SECONDS;
+	private ScheduledExecutorService saveExecutor;
+
+	/**
+	 * <p>Gets the key of the server the user was last found on.</p>
+	 * @param username user to route
+	 * @return server key, or null if the user's server isn't known
+	 */
+	public String getServerKey(String username) {
+		return routes.get(username);
+	}
+
+	public void setServerKey(String username, String serverKey) {
+		routes.put(username, serverKey);
+	}
+
+	public void remove(String username) {
+		routes.remove(username);
+	}
+
+	public long getHits() {
+		return routes.getHits();
+	}
+
+	public long getMisses() {
+		return routes.getMisses();
+	}
+
+	public int getSize() {
+		return routes.size();
+	}
+
+	/**
+	 * <p>Writes the current routes to the persistence file.</p>
+	 */
+	public synchronized void save() {
+		if(persistenceFile == null) {
+			return;
+		}
+
+		Properties properties = new Properties();
+		for(ExpiringEntry<String,String> entry : routes.getEntries()) {
+			properties.setProperty(entry.getKey(), entry.getExpires() + "," + entry.getValue());
+		}
+
+		// write to a temporary file first so a crash can't leave a partial file
+		File tmp = new File(persistenceFile.getPath() + ".tmp");
+		OutputStream out = null;
+		try {
+			out = new BufferedOutputStream(new FileOutputStream(tmp));
+			properties.store(out, "CAS password manager user routing index");
+			out.close();
+			out = null;
+			if(!tmp.renameTo(persistenceFile)) {
+				persistenceFile.delete();
+				if(!tmp.renameTo(persistenceFile)) {
+					throw new IOException("Couldn't rename " + tmp + " to " + persistenceFile);
+				}
+			}
+			logger.debug("Saved " + properties.size() + " user routes to " + persistenceFile);
+		} catch(IOException ex) {
+			logger.warn("Couldn't save user routes to " + persistenceFile, ex);
+		} finally {
+			closeQuietly(out);
+		}
+	}
+
+	/**
+	 * <p>Loads routes from the persistence file, skipping any that have
+	 * expired.</p>
+	 */
+	public synchronized void load() {
+		if(persistenceFile == null || !persistenceFile.exists()) {
+			return;
+		}
+
+		Properties properties = new Properties();
+		InputStream in = null;
+		try {
+			in = new BufferedInputStream(new FileInputStream(persistenceFile));
+			properties.load(in);
+		} catch(IOException ex) {
+			logger.warn("Couldn't load user routes from " + persistenceFile, ex);
+			return;
+		} finally {
+			closeQuietly(in);
+		}
+
+		for(String username : properties.stringPropertyNames()) {
+			String value = properties.getProperty(username);
+			int comma = value.indexOf(',');
+			if(comma < 0) {
+				continue;
+			}
+			try {
+				long expires = Long.parseLong(value.substring(0, comma));
+				routes.put(username, value.substring(comma + 1), expires);
+			} catch(NumberFormatException ex) {
+				logger.debug("Skipping malformed route for " + username);
+			}
+		}
+		logger.info("Loaded " + routes.size() + " user routes from " + persistenceFile);
+	}
+
+	private void closeQuietly(Closeable closeable) {
+		if(closeable != null) {
+			try {
+				closeable.close();
+			} catch(IOException ex) {
+				// nothing else to do
+			}
+		}
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception {
+		if(persistenceFile == null) {
+			return;
+		}
+		load();
+		if(saveIntervalSeconds > 0) {
+			saveExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "pm-routing-index-save");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			saveExecutor.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					save();
+				}
+			}, saveIntervalSeconds, saveIntervalSeconds, TimeUnit.SECONDS);
+		}
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		if(saveExecutor != null) {
+			saveExecutor.shutdownNow();
+		}
+		save();
+	}
+
+	/**
+	 * <p>Sets the maximum number of users whose server is remembered.</p>
+	 */
+	public void setMaxSize(int maxSize) {
+		routes.setMaxSize(maxSize);
+	}
+
+	/**
+	 * <p>Sets the number of seconds a route is used before the user's server
+	 * is looked up again.</p>
+	 */
+	public void setTimeToLiveSeconds(long timeToLiveSeconds) {
+		routes.setTimeToLiveSeconds(timeToLiveSeconds);
+	}
+
+	/**
+	 * <p>Sets the file routes are saved to and loaded from. If not set,
+	 * or empty, routes aren't persisted.</p>
+	 */
+	public void setPersistenceFile(String persistenceFile) {
+		this.persistenceFile = persistenceFile == null || persistenceFile.trim().length() == 0
+				? null : new File(persistenceFile.trim());
+	}
+
+	/**
+	 * <p>Sets how often, in seconds, routes are saved to the persistence file
+	 * in addition to on shutdown. 0 saves only on shutdown.</p>
+	 */
+	public void setSaveIntervalSeconds(long saveIntervalSeconds) {
+		this.saveIntervalSeconds = saveIntervalSeconds;
+	}
+}
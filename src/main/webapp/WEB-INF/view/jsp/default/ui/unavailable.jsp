@@ -0,0 +1,33 @@
+<%--
+  ~ Licensed to Jasig under one or more contributor license
+  ~ agreements. See the NOTICE file distributed with this work
+  ~ for additional information regarding copyright ownership.
+  ~ Jasig licenses this file to you under the Apache License,
+  ~ Version 2.0 (the "License"); you may not use this file
+  ~ except in compliance with the License.  You may obtain a
+  ~ copy of the License at the following location:
+  ~
+  ~   http://www.apache.org/licenses/LICENSE-2.0
+  ~
+  ~ Unless required by applicable law or agreed to in writing,
+  ~ software distributed under the License is distributed on an
+  ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+  ~ KIND, either express or implied.  See the License for the
+  ~ specific language governing permissions and limitations
+  ~ under the License.
+  --%>
+
+<jsp:directive.include file="includes/top.jsp" />
+<link type="text/css" rel="stylesheet" href="<c:url value="/css/cas-pm.css" />" />
+
+    <div id="msg" class="info">
+        <h2><spring:message code="pm.unavailable.header" /></h2>
+        
+        <p><spring:message code="pm.unavailable.text" /></p>
+        
+        <br />
+        
+        <p><a href="<c:url value="/login" />"><spring:message code="pm.unavailable.exit-link.text" /></a></p>
+    </div>
+
+<jsp:directive.include file="includes/bottom.jsp" />
\ No newline at end of file